@@ -4,11 +4,17 @@ import static pt.tecnico.po.ui.Dialog.IO;
 import pt.tecnico.po.ui.Menu;
 
 import mmt.app.main.MainMenu;
+import mmt.app.http.ApiServer;
+import mmt.app.batch.BatchRunner;
 
 import mmt.core.TicketOffice;
+import mmt.core.ConnectionScanRouter;
+import mmt.core.RaptorRouter;
 
 import mmt.core.exceptions.ImportFileException;
 
+import java.io.IOException;
+import java.util.Arrays;
 
 /**
  * Main driver for the travel management application.
@@ -23,18 +29,81 @@ public class App {
 		/* Checks if our using the app through the terminal or with import files */
 		String datafile = System.getProperty("import");
 
+		/* Compiled timetable of the import file, opened instead of parsing its services */
+		String timetable = System.getProperty("timetable");
+
 		/* If we have an import file we create a new parser */
 		if (datafile != null) {
+			boolean opened = false;
+
+			if (timetable != null) {
+				try {
+					office.openTimetable(timetable, datafile);
+					office.importPassengers(datafile);
+					opened = true;
+				} catch (ImportFileException | IOException e) {
+					/* The compiled timetable cannot be used: the import file is parsed and compiled again */
+					office = new TicketOffice();
+				}
+			}
+
+			if (!opened) {
+				try {
+					office.importFile(datafile);
+					if (timetable != null) office.compileTimetable(timetable, datafile);
+				} catch (ImportFileException | IOException e) {
+					e.printStackTrace(); // No behavior described: just present the problem
+				}
+			}
+		}
+
+		/* Chooses the itinerary search engine */
+		String router = System.getProperty("router");
+		if ("csa".equals(router)) {
+			office.setRouter(new ConnectionScanRouter());
+		} else if ("raptor".equals(router)) {
+			int maxTransfers = Integer.getInteger("maxTransfers", RaptorRouter.DEFAULT_MAX_TRANSFERS);
+			office.setRouter(new RaptorRouter(maxTransfers));
+		}
+
+		/* Options of itinerary searches kept, in train stops */
+		Integer searchCache = Integer.getInteger("searchCache");
+		if (searchCache != null) office.setSearchCacheCapacity(searchCache);
+
+		/* Saves files without blocking the terminal */
+		office.setBackgroundSave(Boolean.getBoolean("backgroundSave"));
+
+		/* Runs batch scripts instead of the menus: the exit status is 1 if a script could not be run */
+		String batch = System.getProperty("batch");
+		if (batch != null) {
+			int threads = Integer.getInteger("batchThreads", Runtime.getRuntime().availableProcessors());
+			int failed = new BatchRunner(office, threads).run(Arrays.asList(batch.split(",")));
+			office.awaitSave();
+			if (failed > 0) System.exit(1);
+			return;
+		}
+
+		/* Serves the local HTTP API while the terminal is open */
+		ApiServer server = null;
+		Integer port = Integer.getInteger("http");
+		if (port != null) {
 			try {
-				office.importFile(datafile);
-			} catch (ImportFileException e) {
+				server = new ApiServer(office);
+				server.start(port);
+			} catch (IOException e) {
 				e.printStackTrace(); // No behavior described: just present the problem
+				server = null;
 			}
 		}
 
 		Menu menu = new MainMenu(office);
 		menu.open();
 
+		if (server != null) server.stop();
+
+		/* Waits for a file being saved in the background */
+		office.awaitSave();
+
 		IO.close();
 	}
 
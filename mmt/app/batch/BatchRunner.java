@@ -0,0 +1,87 @@
+package mmt.app.batch;
+
+import java.io.IOException;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import mmt.core.TicketOffice;
+
+/**
+ * Runs batch scripts (see BatchScript) against a ticket office, several at once. The
+ * output of each script is written, when it ends, to a file named after it with ".out"
+ * added. Scripts running at once share the ticket office, as clerks at the office do.
+ */
+public class BatchRunner {
+
+	/** The ticket office the scripts are run against. */
+	private final TicketOffice _receiver;
+
+	/** The number of scripts run at once. */
+	private final int _threads;
+
+	/**
+	 * @param receiver the ticket office the scripts are run against.
+	 * @param threads the number of scripts run at once.
+	 */
+	public BatchRunner(TicketOffice receiver, int threads) {
+		_receiver = receiver;
+		_threads = Math.max(1, threads);
+	}
+
+	/**
+	 * Runs scripts, and waits until they end.
+	 *
+	 * @param scripts the names of the script files.
+	 * @return the number of scripts that could not be read or written.
+	 */
+	public int run(List<String> scripts) {
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(_threads, Math.max(1, scripts.size())));
+		List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+
+		for (String script : scripts) {
+			results.add(executor.submit(() -> run(script)));
+		}
+
+		int failed = 0;
+		for (int i = 0; i < scripts.size(); i++) {
+			try {
+				if (!results.get(i).get()) failed++;
+			} catch (InterruptedException | ExecutionException e) {
+				e.printStackTrace(); // No behavior described: just present the problem
+				failed++;
+			}
+		}
+
+		executor.shutdown();
+		return failed;
+	}
+
+	/**
+	 * Runs a script and writes its output.
+	 *
+	 * @param script the name of the script file.
+	 * @return false if the script could not be read or written.
+	 */
+	private boolean run(String script) {
+		try {
+			List<String> lines = Files.readAllLines(Paths.get(script), StandardCharsets.UTF_8);
+			String output = new BatchScript(_receiver).run(lines);
+			Files.write(Paths.get(script + ".out"), output.getBytes(StandardCharsets.UTF_8));
+			return true;
+
+		} catch (IOException e) {
+			System.err.println(Message.scriptFailed(script));
+			return false;
+		}
+	}
+
+}
@@ -0,0 +1,165 @@
+package mmt.app.batch;
+
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import mmt.core.Itinerary;
+import mmt.core.TicketOffice;
+
+import mmt.app.exceptions.BadDateException;
+import mmt.app.exceptions.BadPassengerNameException;
+import mmt.app.exceptions.BadTimeException;
+import mmt.app.exceptions.NoSuchItineraryException;
+import mmt.app.exceptions.NoSuchPassengerException;
+import mmt.app.exceptions.NoSuchStationException;
+import mmt.core.exceptions.BadDateSpecificationException;
+import mmt.core.exceptions.BadTimeSpecificationException;
+import mmt.core.exceptions.InvalidPassengerNameException;
+import mmt.core.exceptions.NoSuchItineraryChoiceException;
+import mmt.core.exceptions.NoSuchPassengerIdException;
+import mmt.core.exceptions.NoSuchStationNameException;
+
+import pt.tecnico.po.ui.DialogException;
+
+/**
+ * A script of commands run against a ticket office without the menus. Each line is a
+ * command, with its fields separated by '|' as in the import file; empty lines and lines
+ * starting with '#' are ignored:
+ *
+ * <ul>
+ * <li>PASSENGER|name registers a passenger, and shows its id.</li>
+ * <li>RENAME|id|name changes the name of a passenger.</li>
+ * <li>SEARCH|id|departure|arrival|date|time shows the itineraries found for a
+ * passenger, numbered as the itinerary menu numbers them (§3.4.3).</li>
+ * <li>COMMIT|id|departure|arrival|date|time|choice looks up the itineraries and buys
+ * the chosen one (0 buys nothing), and shows it.</li>
+ * <li>SAVE|file saves the ticket office to a file.</li>
+ * </ul>
+ *
+ * A command that fails shows the message the menus show for the same error, and the
+ * script goes on. The output is kept in memory until the script ends.
+ */
+public class BatchScript {
+
+	/** The ticket office the commands are run against. */
+	private final TicketOffice _receiver;
+
+	/** The output of the script. */
+	private final StringBuilder _output = new StringBuilder();
+
+	/**
+	 * @param receiver the ticket office the commands are run against.
+	 */
+	public BatchScript(TicketOffice receiver) {
+		_receiver = receiver;
+	}
+
+	/**
+	 * Runs the commands of a script.
+	 *
+	 * @param lines the lines of the script.
+	 * @return the output of the script.
+	 */
+	public String run(List<String> lines) {
+		int number = 0;
+
+		for (String line : lines) {
+			number++;
+			if (line.isEmpty() || line.startsWith("#")) continue;
+
+			String[] fields = line.split("\\|", -1);
+			try {
+				if (!execute(fields)) {
+					addLine(Message.badCommand(number, line));
+				}
+			} catch (DialogException e) {
+				addLine(Message.commandFailed(number, e.getMessage()));
+			} catch (IOException e) {
+				addLine(Message.commandFailed(number, Message.saveFailed(fields[1])));
+			}
+		}
+
+		return _output.toString();
+	}
+
+	/**
+	 * Runs a command.
+	 *
+	 * @param fields the fields of the command.
+	 * @return false if the fields are not a command.
+	 * @throws DialogException if the command fails.
+	 * @throws IOException if a file cannot be saved.
+	 */
+	private boolean execute(String[] fields) throws DialogException, IOException {
+		try {
+
+			switch (fields[0]) {
+			case "PASSENGER":
+				if (fields.length != 2) return false;
+				addLine(Integer.toString(_receiver.registerPassenger(fields[1])));
+				return true;
+
+			case "RENAME":
+				if (fields.length != 3) return false;
+				_receiver.changePassengerName(Integer.parseInt(fields[1]), fields[2]);
+				return true;
+
+			case "SEARCH":
+				if (fields.length != 6) return false;
+				search(fields).forEach((Itinerary it)-> {
+					addLine(it.toString());
+				});
+				return true;
+
+			case "COMMIT":
+				if (fields.length != 7) return false;
+				Itinerary itinerary = _receiver.commitItinerary(Integer.parseInt(fields[1]), search(fields),
+						Integer.parseInt(fields[6]));
+				if (itinerary != null) addLine(itinerary.toString());
+				return true;
+
+			case "SAVE":
+				if (fields.length != 2) return false;
+				_receiver.save(fields[1]);
+				return true;
+
+			default:
+				return false;
+			}
+
+		} catch (NumberFormatException e) {
+			return false;
+		} catch (InvalidPassengerNameException e) {
+			throw new BadPassengerNameException(e.getName());
+		} catch (NoSuchPassengerIdException e) {
+			throw new NoSuchPassengerException(e.getId());
+		} catch (NoSuchStationNameException e) {
+			throw new NoSuchStationException(e.getName());
+		} catch (NoSuchItineraryChoiceException e) {
+			throw new NoSuchItineraryException(e.getPassengerId(), e.getItineraryId());
+		} catch (BadDateSpecificationException e) {
+			throw new BadDateException(e.getDate());
+		} catch (BadTimeSpecificationException e) {
+			throw new BadTimeException(e.getTime());
+		}
+	}
+
+	/**
+	 * Looks up the itineraries of a SEARCH or COMMIT command, numbered as the itinerary
+	 * menu numbers them.
+	 */
+	private ArrayList<Itinerary> search(String[] fields) throws NoSuchPassengerIdException, NoSuchStationNameException,
+			BadDateSpecificationException, BadTimeSpecificationException {
+		return _receiver.searchItineraries(Integer.parseInt(fields[1]), fields[2], fields[3], fields[4], fields[5]);
+	}
+
+	/**
+	 * Adds a line to the output.
+	 */
+	private void addLine(String line) {
+		_output.append(line).append('\n');
+	}
+
+}
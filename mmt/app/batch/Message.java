@@ -0,0 +1,46 @@
+package mmt.app.batch;
+
+/** Messages for batch scripts. */
+@SuppressWarnings("nls")
+public final class Message {
+
+	/**
+	 * @param line the number of the line.
+	 * @param command the line.
+	 * @return error message for a line that is not a command
+	 */
+	public static String badCommand(int line, String command) {
+		return "Linha " + line + ": comando inválido '" + command + "'.";
+	}
+
+	/**
+	 * @param line the number of the line.
+	 * @param message the error message.
+	 * @return error message for a command that failed
+	 */
+	public static String commandFailed(int line, String message) {
+		return "Linha " + line + ": " + message;
+	}
+
+	/**
+	 * @param file the name of the file.
+	 * @return error message for a file that could not be saved
+	 */
+	public static String saveFailed(String file) {
+		return "Não foi possível guardar o ficheiro '" + file + "'.";
+	}
+
+	/**
+	 * @param script the name of the script.
+	 * @return error message for a script that could not be read or written
+	 */
+	public static String scriptFailed(String script) {
+		return "Não foi possível executar o ficheiro '" + script + "'.";
+	}
+
+	/** Prevent instantiation. */
+	private Message() {
+		// EMPTY
+	}
+
+}
@@ -0,0 +1,74 @@
+package mmt.app.http;
+
+import java.io.IOException;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.sun.net.httpserver.HttpServer;
+
+import mmt.core.TicketOffice;
+
+/**
+ * A local HTTP API of a ticket office, answering in JSON: passenger registration
+ * (/passengers), the services queries (/services), and the itinerary search and
+ * purchase (/itineraries).
+ *
+ * The server listens on the loopback address only. Each request is answered on a thread
+ * of its own, taken from a pool that grows with the requests being answered, so a slow
+ * search does not hold the others; the ticket office lets them run at once.
+ */
+public class ApiServer {
+
+	/** The ticket office the requests are made to. */
+	private final TicketOffice _receiver;
+
+	/** The running server, or null. */
+	private HttpServer _server;
+
+	/** The threads answering the requests, or null. */
+	private ExecutorService _executor;
+
+	/**
+	 * @param receiver the ticket office the requests are made to.
+	 */
+	public ApiServer(TicketOffice receiver) {
+		_receiver = receiver;
+	}
+
+	/**
+	 * Starts answering requests.
+	 *
+	 * @param port the port to listen on (0 for any free port).
+	 * @return the port the server listens on.
+	 * @throws IOException if the server cannot listen on the port.
+	 */
+	public int start(int port) throws IOException {
+		_server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		_server.createContext("/passengers", new PassengersHandler(_receiver));
+		_server.createContext("/services", new ServicesHandler(_receiver));
+		_server.createContext("/itineraries", new ItinerariesHandler(_receiver));
+
+		_executor = Executors.newCachedThreadPool();
+		_server.setExecutor(_executor);
+		_server.start();
+
+		return _server.getAddress().getPort();
+	}
+
+	/**
+	 * Stops answering requests, once the requests being answered are answered.
+	 */
+	public void stop() {
+		if (_server == null) return;
+
+		_server.stop(1);
+		_executor.shutdown();
+		_server = null;
+		_executor = null;
+	}
+
+}
@@ -0,0 +1,200 @@
+package mmt.app.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import mmt.core.TicketOffice;
+
+import mmt.app.exceptions.NoSuchPassengerException;
+import mmt.app.exceptions.NoSuchServiceException;
+import mmt.app.exceptions.NoSuchStationException;
+
+import pt.tecnico.po.ui.DialogException;
+
+/**
+ * Base of the handlers of the HTTP API. A request is answered with a JSON object: the
+ * result of the request, or {"error": message} with the message the terminal shows for
+ * the same error (404 if something does not exist, 400 otherwise).
+ *
+ * The parameters of a request are read from its query string and, for POST requests,
+ * from its form encoded body.
+ */
+abstract class Handler implements HttpHandler {
+
+	/**
+	 * Thrown when a request cannot be answered, with its HTTP status.
+	 */
+	static class RequestException extends Exception {
+
+		/** Serial number for serialization. */
+		private static final long serialVersionUID = 201708301028L;
+
+		/** The HTTP status of the answer. */
+		private final int _status;
+
+		/**
+		 * @param status the HTTP status of the answer.
+		 * @param message the error message.
+		 */
+		RequestException(int status, String message) {
+			super(message);
+			_status = status;
+		}
+
+		/** @return the HTTP status of the answer. */
+		int getStatus() {
+			return _status;
+		}
+	}
+
+	/** The ticket office the requests are made to. */
+	protected final TicketOffice _receiver;
+
+	/**
+	 * @param receiver the ticket office the requests are made to.
+	 */
+	Handler(TicketOffice receiver) {
+		_receiver = receiver;
+	}
+
+	/**
+	 * Answers a request.
+	 *
+	 * @param method the HTTP method of the request.
+	 * @param path the path of the request after the path of the handler ("" or "/...").
+	 * @param parameters the parameters of the request.
+	 * @return the JSON answer.
+	 * @throws DialogException if the ticket office reports an error.
+	 * @throws RequestException if the request is invalid.
+	 */
+	abstract String answer(String method, String path, Map<String, String> parameters)
+			throws DialogException, RequestException;
+
+	/** @see com.sun.net.httpserver.HttpHandler#handle(HttpExchange) */
+	@Override
+	public final void handle(HttpExchange exchange) throws IOException {
+		int status = 200;
+		String body;
+
+		try {
+			String method = exchange.getRequestMethod();
+			String path = exchange.getRequestURI().getRawPath().substring(exchange.getHttpContext().getPath().length());
+
+			Map<String, String> parameters = new HashMap<String, String>();
+			decode(exchange.getRequestURI().getRawQuery(), parameters);
+			if ("POST".equals(method)) {
+				try (InputStream in = exchange.getRequestBody()) {
+					decode(new String(in.readAllBytes(), StandardCharsets.UTF_8), parameters);
+				}
+			}
+
+			body = answer(method, path, parameters);
+
+		} catch (RequestException e) {
+			status = e.getStatus();
+			body = Json.error(e.getMessage());
+
+		} catch (NoSuchPassengerException | NoSuchServiceException | NoSuchStationException e) {
+			status = 404;
+			body = Json.error(e.getMessage());
+
+		} catch (DialogException e) {
+			status = 400;
+			body = Json.error(e.getMessage());
+
+		} catch (RuntimeException e) {
+			status = 500;
+			body = Json.error(String.valueOf(e));
+		}
+
+		byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+		exchange.sendResponseHeaders(status, bytes.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(bytes);
+		}
+	}
+
+	/**
+	 * Adds the parameters of a query string or form encoded body.
+	 *
+	 * @throws RequestException if a parameter is not well encoded.
+	 */
+	private static void decode(String encoded, Map<String, String> parameters) throws RequestException {
+		if (encoded == null || encoded.isEmpty()) return;
+
+		for (String pair : encoded.split("&")) {
+			int equals = pair.indexOf('=');
+			String name = equals < 0 ? pair : pair.substring(0, equals);
+			String value = equals < 0 ? "" : pair.substring(equals + 1);
+			try {
+				parameters.put(URLDecoder.decode(name, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+			} catch (IllegalArgumentException e) {
+				throw new RequestException(400, "Malformed parameter: " + pair);
+			}
+		}
+	}
+
+	/**
+	 * Returns a parameter of a request.
+	 *
+	 * @param parameters the parameters of the request.
+	 * @param name the name of the parameter.
+	 * @return the value of the parameter.
+	 * @throws RequestException if the request does not have the parameter.
+	 */
+	static String getString(Map<String, String> parameters, String name) throws RequestException {
+		String value = parameters.get(name);
+		if (value == null) throw new RequestException(400, "Missing parameter: " + name);
+		return value;
+	}
+
+	/**
+	 * Returns an integer parameter of a request.
+	 *
+	 * @param parameters the parameters of the request.
+	 * @param name the name of the parameter.
+	 * @return the value of the parameter.
+	 * @throws RequestException if the request does not have the parameter, or it is not an integer.
+	 */
+	static int getInt(Map<String, String> parameters, String name) throws RequestException {
+		return parseInt(getString(parameters, name));
+	}
+
+	/**
+	 * Parses an integer of a request.
+	 *
+	 * @param value the text of the integer.
+	 * @return the integer.
+	 * @throws RequestException if the text is not an integer.
+	 */
+	static int parseInt(String value) throws RequestException {
+		try {
+			return Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			throw new RequestException(400, "Not a number: " + value);
+		}
+	}
+
+	/**
+	 * Returns the exception for a request with an unsupported method or path.
+	 *
+	 * @param method the HTTP method of the request.
+	 * @param path the path of the request after the path of the handler.
+	 * @return the exception to throw.
+	 */
+	static RequestException notFound(String method, String path) {
+		return new RequestException(404, "No such resource: " + method + " " + path);
+	}
+
+}
@@ -0,0 +1,80 @@
+package mmt.app.http;
+
+import java.util.ArrayList;
+import java.util.Map;
+
+import mmt.core.Itinerary;
+import mmt.core.TicketOffice;
+
+import mmt.app.exceptions.BadDateException;
+import mmt.app.exceptions.BadTimeException;
+import mmt.app.exceptions.NoSuchItineraryException;
+import mmt.app.exceptions.NoSuchPassengerException;
+import mmt.app.exceptions.NoSuchStationException;
+import mmt.core.exceptions.BadDateSpecificationException;
+import mmt.core.exceptions.BadTimeSpecificationException;
+import mmt.core.exceptions.NoSuchItineraryChoiceException;
+import mmt.core.exceptions.NoSuchPassengerIdException;
+import mmt.core.exceptions.NoSuchStationNameException;
+
+import pt.tecnico.po.ui.DialogException;
+
+/**
+ * /itineraries: looks up itineraries for a passenger and buys them, as the itinerary
+ * menu does (§3.4.3). The search is given by the parameters passenger, departure,
+ * arrival, date and time.
+ *
+ * <ul>
+ * <li>GET /itineraries answers {"itineraries": [descriptions]}, with the options
+ * found, numbered from 1.</li>
+ * <li>POST /itineraries choice=n looks up the options again and buys option n (0 buys
+ * nothing), and answers {"itinerary": description}, or {"itinerary": ""}.</li>
+ * </ul>
+ */
+class ItinerariesHandler extends Handler {
+
+	/**
+	 * @param receiver the ticket office the requests are made to.
+	 */
+	ItinerariesHandler(TicketOffice receiver) {
+		super(receiver);
+	}
+
+	/** @see mmt.app.http.Handler#answer(String, String, Map) */
+	@Override
+	String answer(String method, String path, Map<String, String> parameters) throws DialogException, RequestException {
+		if (!path.isEmpty() || !("GET".equals(method) || "POST".equals(method))) throw notFound(method, path);
+
+		int id = getInt(parameters, "passenger");
+
+		try {
+
+			ArrayList<Itinerary> itineraryOptions;
+			itineraryOptions = _receiver.searchItineraries(id, getString(parameters, "departure"), getString(parameters, "arrival"),
+					getString(parameters, "date"), getString(parameters, "time"));
+
+			if ("GET".equals(method)) {
+				ArrayList<String> descriptions = new ArrayList<String>(itineraryOptions.size());
+				itineraryOptions.forEach((Itinerary it)-> {
+					descriptions.add(it.toString());
+				});
+				return Json.object("itineraries", descriptions);
+			}
+
+			Itinerary itinerary = _receiver.commitItinerary(id, itineraryOptions, getInt(parameters, "choice"));
+			return Json.object("itinerary", itinerary == null ? "" : itinerary.toString());
+
+		} catch (NoSuchPassengerIdException e) {
+			throw new NoSuchPassengerException(e.getId());
+		} catch (NoSuchStationNameException e) {
+			throw new NoSuchStationException(e.getName());
+		} catch (NoSuchItineraryChoiceException e) {
+			throw new NoSuchItineraryException(e.getPassengerId(), e.getItineraryId());
+		} catch (BadDateSpecificationException e) {
+			throw new BadDateException(e.getDate());
+		} catch (BadTimeSpecificationException e) {
+			throw new BadTimeException(e.getTime());
+		}
+	}
+
+}
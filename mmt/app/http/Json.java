@@ -0,0 +1,86 @@
+package mmt.app.http;
+
+import java.util.Collection;
+
+/**
+ * Writes the JSON answers of the HTTP API.
+ */
+final class Json {
+
+	/** No instances. */
+	private Json() {}
+
+	/**
+	 * @param message the error message.
+	 * @return the JSON object {"error": message}.
+	 */
+	static String error(String message) {
+		return "{\"error\":" + string(message) + "}";
+	}
+
+	/**
+	 * @param name the name of the field.
+	 * @param value the value of the field.
+	 * @return the JSON object {name: value}, with an integer value.
+	 */
+	static String object(String name, int value) {
+		return "{" + string(name) + ":" + value + "}";
+	}
+
+	/**
+	 * @param name the name of the field.
+	 * @param value the value of the field.
+	 * @return the JSON object {name: value}, with a string value.
+	 */
+	static String object(String name, String value) {
+		return "{" + string(name) + ":" + string(value) + "}";
+	}
+
+	/**
+	 * @param name the name of the field.
+	 * @param values the values of the field.
+	 * @return the JSON object {name: [values]}, with an array of strings.
+	 */
+	static String object(String name, Collection<String> values) {
+		StringBuilder json = new StringBuilder();
+		json.append('{').append(string(name)).append(":[");
+
+		boolean first = true;
+		for (String value : values) {
+			if (!first) json.append(',');
+			json.append(string(value));
+			first = false;
+		}
+
+		return json.append("]}").toString();
+	}
+
+	/**
+	 * @param value the string.
+	 * @return the JSON string with the value, quoted and escaped.
+	 */
+	static String string(String value) {
+		StringBuilder json = new StringBuilder(value.length() + 2);
+		json.append('"');
+
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+			case '"':  json.append("\\\""); break;
+			case '\\': json.append("\\\\"); break;
+			case '\n': json.append("\\n"); break;
+			case '\r': json.append("\\r"); break;
+			case '\t': json.append("\\t"); break;
+			default:
+				if (c < 0x20) {
+					json.append(String.format("\\u%04x", (int) c));
+				} else {
+					json.append(c);
+				}
+			}
+		}
+
+		return json.append('"').toString();
+	}
+
+}
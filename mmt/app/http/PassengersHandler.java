@@ -0,0 +1,53 @@
+package mmt.app.http;
+
+import java.util.Map;
+
+import mmt.core.TicketOffice;
+
+import mmt.app.exceptions.BadPassengerNameException;
+import mmt.app.exceptions.NoSuchPassengerException;
+import mmt.core.exceptions.InvalidPassengerNameException;
+import mmt.core.exceptions.NoSuchPassengerIdException;
+
+import pt.tecnico.po.ui.DialogException;
+
+/**
+ * /passengers: registers passengers and shows them.
+ *
+ * <ul>
+ * <li>POST /passengers name=... registers a passenger, and answers {"id": id}.</li>
+ * <li>GET /passengers/id answers {"passenger": description}.</li>
+ * </ul>
+ */
+class PassengersHandler extends Handler {
+
+	/**
+	 * @param receiver the ticket office the requests are made to.
+	 */
+	PassengersHandler(TicketOffice receiver) {
+		super(receiver);
+	}
+
+	/** @see mmt.app.http.Handler#answer(String, String, Map) */
+	@Override
+	String answer(String method, String path, Map<String, String> parameters) throws DialogException, RequestException {
+		try {
+
+			if ("POST".equals(method) && path.isEmpty()) {
+				return Json.object("id", _receiver.registerPassenger(getString(parameters, "name")));
+			}
+
+			if ("GET".equals(method) && path.startsWith("/")) {
+				return Json.object("passenger", _receiver.getPassengerDescription(parseInt(path.substring(1))));
+			}
+
+			throw notFound(method, path);
+
+		} catch (InvalidPassengerNameException e) {
+			throw new BadPassengerNameException(e.getName());
+		} catch (NoSuchPassengerIdException e) {
+			throw new NoSuchPassengerException(e.getId());
+		}
+	}
+
+}
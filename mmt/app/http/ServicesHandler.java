@@ -0,0 +1,72 @@
+package mmt.app.http;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+
+import mmt.core.Service;
+import mmt.core.TicketOffice;
+
+import mmt.app.exceptions.NoSuchServiceException;
+import mmt.app.exceptions.NoSuchStationException;
+import mmt.core.exceptions.NoSuchServiceIdException;
+import mmt.core.exceptions.NoSuchStationNameException;
+
+import pt.tecnico.po.ui.DialogException;
+
+/**
+ * /services: shows the services of the timetable.
+ *
+ * <ul>
+ * <li>GET /services answers {"services": [descriptions]}, with every service.</li>
+ * <li>GET /services?departing=station, or ?arriving=station, answers the services
+ * departing from, or arriving at, the station.</li>
+ * <li>GET /services/id answers {"service": description}.</li>
+ * </ul>
+ */
+class ServicesHandler extends Handler {
+
+	/**
+	 * @param receiver the ticket office the requests are made to.
+	 */
+	ServicesHandler(TicketOffice receiver) {
+		super(receiver);
+	}
+
+	/** @see mmt.app.http.Handler#answer(String, String, Map) */
+	@Override
+	String answer(String method, String path, Map<String, String> parameters) throws DialogException, RequestException {
+		if (!"GET".equals(method)) throw notFound(method, path);
+
+		try {
+
+			if (path.startsWith("/")) {
+				return Json.object("service", _receiver.getService(parseInt(path.substring(1))).toString());
+			}
+
+			if (!path.isEmpty()) throw notFound(method, path);
+
+			Collection<Service> services;
+			if (parameters.containsKey("departing")) {
+				services = _receiver.searchServiceWithStartStation(parameters.get("departing"));
+			} else if (parameters.containsKey("arriving")) {
+				services = _receiver.searchServiceWithEndStation(parameters.get("arriving"));
+			} else {
+				services = _receiver.getServices();
+			}
+
+			ArrayList<String> descriptions = new ArrayList<String>(services.size());
+			services.forEach((Service s)-> {
+				descriptions.add(s.toString());
+			});
+
+			return Json.object("services", descriptions);
+
+		} catch (NoSuchServiceIdException e) {
+			throw new NoSuchServiceException(e.getId());
+		} catch (NoSuchStationNameException e) {
+			throw new NoSuchStationException(e.getName());
+		}
+	}
+
+}
@@ -1,7 +1,6 @@
 package mmt.app.itineraries;
 
 import java.util.ArrayList;
-import java.util.Collections;
 import java.time.LocalTime;
 
 import mmt.core.TicketOffice;
@@ -52,30 +51,19 @@ public class DoRegisterItinerary extends Command<TicketOffice> {
 			ArrayList<Itinerary> itineraryOptions;
 			itineraryOptions = _receiver.searchItineraries(id.value(), start.value(), end.value(), date.value(), time.value());
 
-			Collections.sort(itineraryOptions);
-			_receiver.updateListId(itineraryOptions);
-
 			itineraryOptions.forEach((Itinerary it)-> {
 				_display.addLine(it.toString());
 			});
 
 			_display.display();
 
-			int options = itineraryOptions.size();
-
-			if (options == 0) return;
+			if (itineraryOptions.isEmpty()) return;
 			Input<Integer> choice = _form.addIntegerInput(Message.requestItineraryChoice());
 
 			_form.parse();
 			_form.clear();
 
-			if (choice.value() != 0) {
-				if (choice.value() > options || choice.value() < 0) {
-					throw new NoSuchItineraryChoiceException(id.value(),choice.value());
-				}
-				_receiver.commitItinerary(id.value(), itineraryOptions.get(choice.value() - 1));
-			}
-
+			_receiver.commitItinerary(id.value(), itineraryOptions, choice.value());
 
 		} catch (NoSuchPassengerIdException e) {
 			throw new NoSuchPassengerException(e.getId());
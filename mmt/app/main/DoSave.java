@@ -47,7 +47,14 @@ public class DoSave extends Command<TicketOffice> {
 				_receiver.setFileName( _file.value() );
 			}
 
-			_receiver.save( _receiver.getFileName() );
+			if ( _receiver.isBackgroundSave() ) {
+				/* The terminal is not blocked while the file is written; errors are shown when it completes */
+				_receiver.saveInBackground( _receiver.getFileName() ).whenComplete( (saved, e) -> {
+					if (e != null) e.printStackTrace();
+				});
+			} else {
+				_receiver.save( _receiver.getFileName() );
+			}
 
 		} catch (FileNotFoundException i) {
 			_display.addLine( Message.fileNotFound( _file.value() ) );
@@ -41,8 +41,7 @@ public class DoRegisterPassenger extends Command<TicketOffice> {
 
 			_form.parse();
 
-			int id = _receiver.getNextPassengerId();
-			_receiver.addPassenger(id, _name.value());
+			_receiver.registerPassenger(_name.value());
 
 		} catch (InvalidPassengerNameException e) {
 			throw new BadPassengerNameException (e.getName());
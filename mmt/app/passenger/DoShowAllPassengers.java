@@ -1,11 +1,10 @@
 package mmt.app.passenger;
 
-import java.util.Collection;
+import java.util.List;
 
 import pt.tecnico.po.ui.Command;
 import pt.tecnico.po.ui.Display;
 
-import mmt.core.Passenger;
 import mmt.core.TicketOffice;
 
 import pt.tecnico.po.ui.DialogException;
@@ -28,10 +27,10 @@ public class DoShowAllPassengers extends Command<TicketOffice> {
 	 */
 	@Override
 	public final void execute() throws DialogException {
-		Collection<Passenger> passengers = _receiver.getPassengers();
+		List<String> passengers = _receiver.getPassengerDescriptions();
 
-		passengers.forEach((Passenger passenger)-> {
-			_display.addLine(passenger.toString());
+		passengers.forEach((String passenger)-> {
+			_display.addLine(passenger);
 		});
 
 		_display.display();
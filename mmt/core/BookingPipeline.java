@@ -0,0 +1,328 @@
+package mmt.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Makes the bookings of a ticket office on a single writer thread, so clerks buying
+ * itineraries at once do not contend for the passengers and the journal.
+ *
+ * Bookings are submitted to a bounded ring buffer. A clerk claims the next slot with an
+ * atomic counter, without locking, and publishes its booking in it; when the buffer is
+ * full, it waits for the writer to free a slot. The writer takes the published bookings
+ * in order, in batches: it records the batch in the journal with a single write to disk,
+ * and then buys the itineraries and completes the future of each booking. Bookings that
+ * cannot be recorded fail without being bought.
+ *
+ * A booking holds the train company and journal of the ticket office when it was
+ * submitted. The ticket office drains the pipeline before it replaces, resets or freezes
+ * the company, so every booking is made in the company it was submitted to.
+ *
+ * A booking that fails, with any error, completes its own future exceptionally and the
+ * writer goes on. Should the writer itself stop, the bookings waiting for it fail, and
+ * so do the bookings submitted afterwards, instead of waiting for it forever.
+ */
+class BookingPipeline {
+
+	/** The default number of slots of the ring buffer. */
+	static final int DEFAULT_CAPACITY = 1 << 10;
+
+	/** The maximum number of bookings made in a batch. */
+	private static final int BATCH = 256;
+
+	/** The number of times the writer yields, waiting for bookings, before it sleeps. */
+	private static final int IDLE_YIELDS = 100;
+
+	/**
+	 * An itinerary bought by a passenger, waiting to be made.
+	 */
+	private static final class Booking {
+
+		/** The train company of the passenger. */
+		private final TrainCompany _trainCompany;
+
+		/** The journal of the train company (null if changes are not being recorded). */
+		private final Journal _journal;
+
+		/** The id of the passenger who bought the itinerary. */
+		private final int _passengerId;
+
+		/** The itinerary bought. */
+		private final Itinerary _itinerary;
+
+		/** Completes when the booking is made and recorded. */
+		private final CompletableFuture<Void> _done = new CompletableFuture<Void>();
+
+		/**
+		 * Constructor.
+		 */
+		Booking(TrainCompany trainCompany, Journal journal, int passengerId, Itinerary itinerary) {
+			_trainCompany = trainCompany;
+			_journal = journal;
+			_passengerId = passengerId;
+			_itinerary = itinerary;
+		}
+	}
+
+	/** The slots of the ring buffer: slot i holds the booking with sequence number i modulo its length. */
+	private final AtomicReferenceArray<Booking> _slots;
+
+	/** Mask of the slot of a sequence number. */
+	private final int _mask;
+
+	/** The sequence number of the next slot to claim. */
+	private final AtomicLong _claimed = new AtomicLong();
+
+	/** The sequence number of the next slot the writer takes (the slots before it are free). */
+	private volatile long _taken;
+
+	/** The sequence number of the next booking to make (the bookings before it are made). */
+	private volatile long _made;
+
+	/** Whether the writer thread was started. */
+	private final AtomicBoolean _started = new AtomicBoolean();
+
+	/** The writer thread. */
+	private volatile Thread _writer;
+
+	/** Whether the writer is waiting for bookings. */
+	private volatile boolean _idle;
+
+	/** Why the writer thread stopped (null while it runs). */
+	private volatile Throwable _failure;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param capacity the number of slots of the ring buffer (rounded up to a power of two).
+	 */
+	BookingPipeline(int capacity) {
+		int slots = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+		_slots = new AtomicReferenceArray<Booking>(slots);
+		_mask = slots - 1;
+	}
+
+	/**
+	 * Submits a booking.
+	 *
+	 * @param trainCompany the train company of the passenger.
+	 * @param journal the journal of the train company (null if changes are not being recorded).
+	 * @param passengerId the id of the passenger who bought the itinerary.
+	 * @param itinerary the itinerary bought.
+	 * @return completes when the itinerary is bought and recorded, or exceptionally (with
+	 *         NoSuchPassengerIdException, or UncheckedIOException if it could not be recorded).
+	 * @throws IllegalStateException if the writer thread stopped.
+	 */
+	CompletableFuture<Void> submit(TrainCompany trainCompany, Journal journal, int passengerId, Itinerary itinerary) {
+		checkWriter();
+		if (!_started.get() && _started.compareAndSet(false, true)) start();
+
+		Booking booking = new Booking(trainCompany, journal, passengerId, itinerary);
+		long sequence = _claimed.getAndIncrement();
+
+		/* Waits for the writer to free the slot */
+		for (int spins = 0; sequence - _taken >= _slots.length(); spins++) {
+			checkWriter();
+			if (spins < 100) {
+				Thread.onSpinWait();
+			} else {
+				LockSupport.parkNanos(10000);
+			}
+		}
+
+		int slot = (int) sequence & _mask;
+		_slots.set(slot, booking);
+		if (_idle) LockSupport.unpark(_writer);
+
+		/* The writer may have stopped before taking the booking */
+		if (_failure != null && _slots.compareAndSet(slot, booking, null)) {
+			booking._done.completeExceptionally(stopped());
+		}
+
+		return booking._done;
+	}
+
+	/**
+	 * Checks that the writer thread has not stopped.
+	 *
+	 * @throws IllegalStateException if it stopped.
+	 */
+	private void checkWriter() {
+		if (_failure != null) throw stopped();
+	}
+
+	/**
+	 * @return the exception of the bookings that cannot be made, as the writer stopped.
+	 */
+	private IllegalStateException stopped() {
+		return new IllegalStateException("The booking writer stopped", _failure);
+	}
+
+	/**
+	 * Waits until the bookings submitted are made, or the writer stopped. No booking may be
+	 * submitted meanwhile.
+	 */
+	void drain() {
+		long submitted = _claimed.get();
+		if (_made >= submitted || _failure != null) return;
+
+		synchronized (this) {
+			while (_made < submitted && _failure == null) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Starts the writer thread.
+	 */
+	private void start() {
+		Thread writer = new Thread(this::write, "booking-writer");
+		writer.setDaemon(true);
+		_writer = writer;
+		writer.start();
+	}
+
+	/**
+	 * Makes the bookings submitted, in batches, for as long as the application runs. If it
+	 * stops, the bookings not made fail.
+	 */
+	private void write() {
+		ArrayList<Booking> batch = new ArrayList<Booking>(BATCH);
+
+		try {
+			write(batch);
+		} catch (Throwable e) {
+			synchronized (this) {
+				_failure = e;
+				notifyAll();
+			}
+
+			for (Booking booking : batch) booking._done.completeExceptionally(stopped());
+			for (int slot = 0; slot < _slots.length(); slot++) {
+				Booking booking = _slots.getAndSet(slot, null);
+				if (booking != null) booking._done.completeExceptionally(stopped());
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Makes the bookings submitted, in batches.
+	 *
+	 * @param batch the list holding the bookings of the batch being made.
+	 */
+	private void write(ArrayList<Booking> batch) {
+		int idle = 0;
+
+		while (true) {
+			long next = _taken;
+
+			/* Takes the published bookings, freeing their slots */
+			while (batch.size() < BATCH) {
+				int slot = (int) (next + batch.size()) & _mask;
+				Booking booking = _slots.get(slot);
+				if (booking == null) break;
+				_slots.set(slot, null);
+				batch.add(booking);
+			}
+
+			/* Waits for bookings: yields for a while, as more usually follow, and then sleeps */
+			if (batch.isEmpty()) {
+				if (idle++ < IDLE_YIELDS) {
+					Thread.yield();
+					continue;
+				}
+				_idle = true;
+				if (_slots.get((int) next & _mask) == null) LockSupport.park(this);
+				_idle = false;
+				continue;
+			}
+			idle = 0;
+
+			_taken = next + batch.size();
+			make(batch);
+
+			synchronized (this) {
+				_made = next + batch.size();
+				notifyAll();
+			}
+			batch.clear();
+		}
+	}
+
+	/**
+	 * Records a batch of bookings in the journal, buys their itineraries, and completes
+	 * their futures.
+	 *
+	 * @param batch the bookings, in the order they were submitted.
+	 */
+	private void make(List<Booking> batch) {
+		ArrayList<Booking> valid = new ArrayList<Booking>(batch.size());
+
+		/* Passengers are only removed while the pipeline is drained */
+		for (Booking booking : batch) {
+			try {
+				booking._trainCompany.getPassenger(booking._passengerId);
+				valid.add(booking);
+			} catch (Throwable e) {
+				booking._done.completeExceptionally(e);
+			}
+		}
+
+		/* Records consecutive bookings of the same journal together, before buying them */
+		int start = 0;
+		while (start < valid.size()) {
+			Journal journal = valid.get(start)._journal;
+			int end = start + 1;
+			while (end < valid.size() && valid.get(end)._journal == journal) end++;
+
+			List<Booking> group = valid.subList(start, end);
+			start = end;
+			try {
+				if (journal != null) record(journal, group);
+			} catch (Throwable e) {
+				for (Booking booking : group) booking._done.completeExceptionally(e);
+				continue;
+			}
+
+			for (Booking booking : group) {
+				try {
+					/* The passenger's lock orders the booking with its other changes */
+					synchronized (booking._trainCompany.getPassenger(booking._passengerId)) {
+						booking._trainCompany.commitItinerary(booking._passengerId, booking._itinerary);
+					}
+					booking._done.complete(null);
+				} catch (Throwable e) {
+					booking._done.completeExceptionally(e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Records bookings in a journal, forcing them to disk once.
+	 */
+	private static void record(Journal journal, List<Booking> bookings) {
+		int[] passengerIds = new int[bookings.size()];
+		ArrayList<Itinerary> itineraries = new ArrayList<Itinerary>(bookings.size());
+
+		for (int i = 0; i < bookings.size(); i++) {
+			passengerIds[i] = bookings.get(i)._passengerId;
+			itineraries.add(bookings.get(i)._itinerary);
+		}
+
+		journal.commitItineraries(passengerIds, itineraries);
+	}
+
+}
@@ -0,0 +1,273 @@
+package mmt.core;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+import java.time.LocalTime;
+
+/**
+ * Router which keeps the itinerary options found by another router, so a search asked
+ * again is answered without searching the timetable.
+ *
+ * The departure time of a search only matters through the trains stopping at its start
+ * station: searches departing at any time up to the same next train stop there find the
+ * same options. So options are kept by start and end station, date, and the time of the
+ * first train stop at the start station at or after the departure time, and nearby
+ * searches share them.
+ *
+ * The options kept belong to one timetable. When a search is given a newer timetable
+ * (services were imported, or a file opened), the options kept are discarded; a search
+ * still running against an older timetable searches it without the cache. Options
+ * are weighed by their train stops, and the least recently used are discarded when the
+ * weight of the options kept exceeds the capacity of the cache.
+ *
+ * Several threads may search at once: the options kept are shared under the lock of the
+ * router, and each search gets its own copies of them, which it numbers and may buy.
+ */
+public class CachingRouter implements Router {
+
+	/** The default capacity of the cache, in train stops. */
+	public static final int DEFAULT_CAPACITY = 1 << 16;
+
+	/**
+	 * The search the options were found for.
+	 */
+	private static final class Key {
+
+		/** Name of the starting station. */
+		private final String _startStation;
+
+		/** Name of the ending station. */
+		private final String _endStation;
+
+		/** Departure date, in milliseconds. */
+		private final long _departureDate;
+
+		/** First train stop at the starting station at or after the departure time (-1 if none). */
+		private final int _nextStopTime;
+
+		/**
+		 * Constructor.
+		 */
+		Key(String startStation, String endStation, long departureDate, int nextStopTime) {
+			_startStation = startStation;
+			_endStation = endStation;
+			_departureDate = departureDate;
+			_nextStopTime = nextStopTime;
+		}
+
+		/** @see java.lang.Object#equals(Object) */
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) return false;
+
+			Key key = (Key) o;
+			return _departureDate == key._departureDate && _nextStopTime == key._nextStopTime
+					&& _startStation.equals(key._startStation) && _endStation.equals(key._endStation);
+		}
+
+		/** @see java.lang.Object#hashCode() */
+		@Override
+		public int hashCode() {
+			int hash = _startStation.hashCode();
+			hash = 31 * hash + _endStation.hashCode();
+			hash = 31 * hash + Long.hashCode(_departureDate);
+			return 31 * hash + _nextStopTime;
+		}
+	}
+
+	/** The router which searches the itineraries not kept. */
+	private final Router _router;
+
+	/** The maximum weight of the options kept, in train stops. */
+	private final int _capacity;
+
+	/** The options kept, from the least to the most recently used. */
+	private final LinkedHashMap<Key, ArrayList<Itinerary>> _options = new LinkedHashMap<Key, ArrayList<Itinerary>>(16, 0.75f, true);
+
+	/** The timetable the options kept were found in. */
+	private Timetable _timetable;
+
+	/** The weight of the options kept, in train stops. */
+	private int _weight;
+
+	/** Number of searches answered with options kept. */
+	private long _hits;
+
+	/** Number of searches made by the router. */
+	private long _misses;
+
+	/** Number of options discarded to keep the cache within its capacity. */
+	private long _evictions;
+
+	/** Number of times the options kept were discarded for another timetable. */
+	private long _invalidations;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param router the router which searches the itineraries not kept.
+	 * @param capacity the maximum weight of the options kept, in train stops (0 keeps none).
+	 */
+	public CachingRouter(Router router, int capacity) {
+		_router = router;
+		_capacity = capacity;
+	}
+
+	/**
+	 * @return the router which searches the itineraries not kept.
+	 */
+	public Router getRouter() {
+		return _router;
+	}
+
+	/**
+	 * @see mmt.core.Router#search(Timetable, String, String, Date, LocalTime)
+	 */
+	public ArrayList<Itinerary> search(Timetable timetable, String startStation, String endStation,
+			Date departureDate, LocalTime departureTime) {
+
+		int nextStopTime = timetable.getNextStopTime(timetable.getStationId(startStation), departureTime.toSecondOfDay());
+		Key key = new Key(startStation, endStation, departureDate.getTime(), nextStopTime);
+
+		ArrayList<Itinerary> options = lookup(timetable, key);
+		if (options == null) {
+			options = _router.search(timetable, startStation, endStation, departureDate, departureTime);
+			keep(timetable, key, options);
+		}
+
+		ArrayList<Itinerary> copies = new ArrayList<Itinerary>(options.size());
+		for (Itinerary itinerary : options) {
+			copies.add(itinerary.copy());
+		}
+		return copies;
+	}
+
+	/**
+	 * Looks up the options kept for a search, discarding the options of an older timetable.
+	 *
+	 * @return the options kept, or null (always for a timetable older than the options kept).
+	 */
+	private synchronized ArrayList<Itinerary> lookup(Timetable timetable, Key key) {
+		if (timetable != _timetable) {
+			if (_timetable != null && timetable.getVersion() < _timetable.getVersion()) {
+				_misses++;
+				return null;
+			}
+			if (_timetable != null) _invalidations++;
+			_options.clear();
+			_weight = 0;
+			_timetable = timetable;
+		}
+
+		ArrayList<Itinerary> options = _options.get(key);
+		if (options != null) {
+			_hits++;
+		} else {
+			_misses++;
+		}
+		return options;
+	}
+
+	/**
+	 * Keeps the options found for a search, unless the timetable changed since, and
+	 * discards the least recently used options beyond the capacity.
+	 */
+	private synchronized void keep(Timetable timetable, Key key, ArrayList<Itinerary> options) {
+		if (timetable != _timetable) return;
+
+		int weight = weight(options);
+		if (weight > _capacity) return;
+
+		ArrayList<Itinerary> replaced = _options.put(key, options);
+		if (replaced != null) _weight -= weight(replaced);
+		_weight += weight;
+
+		Iterator<Map.Entry<Key, ArrayList<Itinerary>>> eldest = _options.entrySet().iterator();
+		while (_weight > _capacity) {
+			_weight -= weight(eldest.next().getValue());
+			eldest.remove();
+			_evictions++;
+		}
+	}
+
+	/**
+	 * @return the weight of options, in train stops (an empty list weighs 1).
+	 */
+	private static int weight(ArrayList<Itinerary> options) {
+		int weight = 1;
+		for (Itinerary itinerary : options) {
+			weight += itinerary.getNumberOfTrainStops();
+		}
+		return weight;
+	}
+
+	/**
+	 * @return the maximum weight of the options kept, in train stops.
+	 */
+	public int getCapacity() {
+		return _capacity;
+	}
+
+	/**
+	 * @return the number of searches whose options are kept.
+	 */
+	public synchronized int size() {
+		return _options.size();
+	}
+
+	/**
+	 * @return the weight of the options kept, in train stops.
+	 */
+	public synchronized int getWeight() {
+		return _weight;
+	}
+
+	/**
+	 * @return the number of searches answered with options kept.
+	 */
+	public synchronized long getHits() {
+		return _hits;
+	}
+
+	/**
+	 * @return the number of searches made by the router.
+	 */
+	public synchronized long getMisses() {
+		return _misses;
+	}
+
+	/**
+	 * @return the fraction of searches answered with options kept (0 if none was made).
+	 */
+	public synchronized double getHitRate() {
+		long searches = _hits + _misses;
+		return searches == 0 ? 0 : (double) _hits / searches;
+	}
+
+	/**
+	 * @return the number of options discarded to keep the cache within its capacity.
+	 */
+	public synchronized long getEvictions() {
+		return _evictions;
+	}
+
+	/**
+	 * @return the number of times the options kept were discarded for another timetable.
+	 */
+	public synchronized long getInvalidations() {
+		return _invalidations;
+	}
+
+	/** @see java.lang.Object#toString() */
+	@Override
+	public synchronized String toString() {
+		return String.format(Locale.ROOT, "hits=%d misses=%d hitRate=%.3f evictions=%d invalidations=%d size=%d weight=%d/%d",
+				_hits, _misses, getHitRate(), _evictions, _invalidations, _options.size(), _weight, _capacity);
+	}
+
+}
@@ -26,6 +26,35 @@ public class CategoryManager implements java.io.Serializable {
 		_categoryList.add(new SpecialCategory());
 	}
 
+	/**
+	 * Returns the position of a category in the list of available categories.
+	 *
+	 * @param category the category.
+	 * @return the position of the category.
+	 */
+	int indexOf(Category category) {
+		return _categoryList.indexOf(category);
+	}
+
+	/**
+	 * Returns the category at a given position of the list of available categories.
+	 *
+	 * @param index the position of the category.
+	 * @return the category.
+	 */
+	Category get(int index) {
+		return _categoryList.get(index);
+	}
+
+	/**
+	 * Returns the number of available categories.
+	 *
+	 * @return the number of categories.
+	 */
+	int size() {
+		return _categoryList.size();
+	}
+
 	/**
 	 * Returns the category corresponding to the value of the itineraries.
 	 *
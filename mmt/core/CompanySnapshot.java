@@ -0,0 +1,869 @@
+package mmt.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+import mmt.core.exceptions.InvalidPassengerNameException;
+
+/**
+ * Binary snapshot of a train company. Instead of the object graph written by Java
+ * serialization, the company is written as flat records that refer to each other by id,
+ * in segments found through an index:
+ *
+ * <pre>
+ * header     magic, version, position, length and checksum of the index, (unused)
+ * index      sequence number of the last journal record, next passenger id, position
+ *            and length of the timetable, number of pages, and the position and length
+ *            of each page
+ * timetable  stations: count, then the name of each station (its id is its position)
+ *            services: count, then for each service: id, cost, whether it is current
+ *            (not replaced on import), first train stop id, number of stops, and the
+ *            station id, time, cumulative cost and cumulative minutes of each stop
+ *            transfers: number of train stops, number of stations, the first train stop
+ *            of each station (followed by the number of train stops) and the ids of the
+ *            train stops grouped by station and sorted by time, as in the transfer index
+ * page       the passengers whose ids are in the page (PAGE_SIZE ids per page): count,
+ *            then for each passenger: id, name, category, total spent, last values, and
+ *            its itineraries
+ * itinerary  number, id, passenger id, departure date, number of train stops, and the
+ *            id and arrival flag of each train stop
+ * </pre>
+ *
+ * Saving a company again to the file it was saved to or loaded from only appends the
+ * pages of the passengers that changed (see TrainCompany.passengerChanged) and a new
+ * index, then points the header to it; the timetable and the other pages are reused.
+ * Until the header is written, the file is read as it was. The whole file is written
+ * again when the timetable changed, or when the segments no longer used take more
+ * space than the ones in use.
+ *
+ * The transfers are the most expensive index to build, so they are saved as they are
+ * searched; the other search indexes are rebuilt from the services on load. Snapshots
+ * of earlier versions, which saved every transfer, are read by linking the train stops
+ * again.
+ *
+ * A company can be frozen and written later, by another thread, while its passengers
+ * keep changing (see Frozen).
+ */
+final class CompanySnapshot {
+
+	/**
+	 * A train company frozen at a point in time, to be written later, possibly by another
+	 * thread. Only the passengers, which change as tickets are sold, are copied: the pages
+	 * to write are written to memory when the company is frozen. The timetable is not
+	 * copied: the version published when the company was frozen is written, as a published
+	 * timetable is never changed.
+	 */
+	static final class Frozen {
+
+		/** The train company. */
+		private final TrainCompany _company;
+
+		/** The sequence number of the last journal record when the company was frozen. */
+		private final long _sequence;
+
+		/** The next passenger id when the company was frozen. */
+		private final int _nextPassengerId;
+
+		/** The timetable published when the company was frozen. */
+		private final Timetable _timetable;
+
+		/** The file the pages are appended to (null if the whole file is written). */
+		private final Layout _base;
+
+		/** The pages changed since the company was last frozen. */
+		private final BitSet _changedPages;
+
+		/** The pages to write, as they were when the company was frozen (null if reused). */
+		private final byte[][] _pages;
+
+		/**
+		 * Constructor.
+		 */
+		private Frozen(TrainCompany company, Layout base, BitSet changedPages, byte[][] pages) {
+			_company = company;
+			_sequence = company.getJournalSequence();
+			_nextPassengerId = company.getNextPassengerId();
+			_timetable = company.getTimetable();
+			_base = base;
+			_changedPages = changedPages;
+			_pages = pages;
+		}
+
+		/**
+		 * Returns the sequence number of the last journal record in the frozen company.
+		 *
+		 * @return the sequence number of the last journal record.
+		 */
+		long getSequence() {
+			return _sequence;
+		}
+
+		/**
+		 * Returns the pages changed since the company was last frozen, to be marked as
+		 * changed again if the frozen company cannot be written.
+		 *
+		 * @return the numbers of the changed pages.
+		 */
+		BitSet getChangedPages() {
+			return _changedPages;
+		}
+
+		/**
+		 * Returns whether the frozen pages are appended to the file they were saved to.
+		 *
+		 * @return true if only the changed pages are written.
+		 */
+		boolean isIncremental() {
+			return _base != null;
+		}
+	}
+
+	/**
+	 * Where the segments of a saved file are, so the next save to it can reuse them.
+	 */
+	static final class Layout {
+
+		/** The name of the file. */
+		private final String _fileName;
+
+		/** The train company saved to the file. */
+		private final TrainCompany _company;
+
+		/** The version of the timetable saved to the file. */
+		private final int _timetableVersion;
+
+		/** The position of the timetable. */
+		private final long _timetable;
+
+		/** The length of the timetable. */
+		private final long _timetableLength;
+
+		/** The position of each page. */
+		private final long[] _pages;
+
+		/** The length of each page (0 if the page is empty). */
+		private final int[] _lengths;
+
+		/** The length of the file. */
+		private final long _length;
+
+		/** The bytes of the file in use: the header, the index, the timetable and the pages. */
+		private final long _used;
+
+		/**
+		 * Constructor.
+		 */
+		private Layout(String fileName, TrainCompany company, int timetableVersion, long timetable,
+				long timetableLength, long[] pages, int[] lengths, long fileLength, int indexLength) {
+			_fileName = fileName;
+			_company = company;
+			_timetableVersion = timetableVersion;
+			_timetable = timetable;
+			_timetableLength = timetableLength;
+			_pages = pages;
+			_lengths = lengths;
+			_length = fileLength;
+
+			long used = HEADER + indexLength + timetableLength;
+			for (int length : lengths) used += length;
+			_used = used;
+		}
+
+		/**
+		 * Checks whether the changed pages of a train company can be appended to this file.
+		 *
+		 * @param fileName the name of the file being saved.
+		 * @param company the train company being saved.
+		 * @return true if the timetable and the other pages in the file can be reused.
+		 */
+		boolean canAppend(String fileName, TrainCompany company) {
+			return _fileName.equals(fileName) && _company == company
+					&& _timetableVersion == company.getTimetable().getVersion() && _length - _used <= _used;
+		}
+	}
+
+	/** The first bytes of a snapshot file ("MMTS"). */
+	static final int MAGIC = 0x4D4D5453;
+
+	/** The version of the snapshot format. */
+	static final int VERSION = 4;
+
+	/** The number of passenger ids in each page. */
+	static final int PAGE_SIZE = 64;
+
+	/** Bytes of the header. */
+	private static final int HEADER = 32;
+
+	/** No instances. */
+	private CompanySnapshot() {}
+
+	/**
+	 * Checks whether the first bytes of a file are the header of a snapshot.
+	 *
+	 * @param header the first bytes of the file.
+	 * @return true if the file is a snapshot.
+	 */
+	static boolean isSnapshot(int header) {
+		return header == MAGIC;
+	}
+
+	/**
+	 * Returns the page of a passenger.
+	 *
+	 * @param passengerId the passenger's id.
+	 * @return the number of the page.
+	 */
+	static int getPage(int passengerId) {
+		return passengerId / PAGE_SIZE;
+	}
+
+	/**
+	 * Writes a train company.
+	 *
+	 * @param company the train company.
+	 * @param out the stream to write to.
+	 * @throws IOException if errors occur in file writing.
+	 */
+	static void write(TrainCompany company, DataOutputStream out) throws IOException {
+		write(freeze(company, null, new BitSet()), "", out);
+	}
+
+	/**
+	 * Freezes a train company, to be written later.
+	 *
+	 * @param company the train company.
+	 * @param base the file the company was saved to, whose segments are reused (null to
+	 *             write the whole file).
+	 * @param changedPages the pages changed since the company was last frozen.
+	 * @return the frozen train company.
+	 */
+	static Frozen freeze(TrainCompany company, Layout base, BitSet changedPages) {
+		int numberOfPages = (company.getNextPassengerId() + PAGE_SIZE - 1) / PAGE_SIZE;
+		byte[][] pages = new byte[numberOfPages][];
+
+		for (int page = 0; page < numberOfPages; page++) {
+			if (base == null || changedPages.get(page) || page >= base._pages.length) {
+				pages[page] = writePage(company, page);
+			}
+		}
+
+		return new Frozen(company, base, changedPages, pages);
+	}
+
+	/**
+	 * Writes the passengers of a page to memory.
+	 */
+	private static byte[] writePage(TrainCompany company, int page) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+
+		try {
+			Collection<Passenger> passengers = company.getPassengers(page * PAGE_SIZE, (page + 1) * PAGE_SIZE);
+			out.writeInt(passengers.size());
+			for (Passenger passenger : passengers) {
+				writePassenger(company, passenger, out);
+			}
+			out.close();
+		} catch (IOException e) {
+			/* Writing to memory does not fail */
+			throw new IllegalStateException(e);
+		}
+
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Writes the whole file of a frozen train company.
+	 *
+	 * @param frozen the frozen train company.
+	 * @param fileName the name of the file.
+	 * @param out the stream to write to.
+	 * @return the layout of the file.
+	 * @throws IOException if errors occur in file writing.
+	 */
+	static Layout write(Frozen frozen, String fileName, DataOutputStream out) throws IOException {
+		TrainCompany company = frozen._company;
+
+		/* The index is followed by the timetable and the pages */
+		int indexLength = getIndexLength(frozen._pages.length);
+		long timetable = HEADER + indexLength;
+		long timetableLength = getTimetableLength(frozen._timetable);
+
+		long[] pages = new long[frozen._pages.length];
+		int[] lengths = new int[frozen._pages.length];
+		long position = timetable + timetableLength;
+		for (int page = 0; page < pages.length; page++) {
+			pages[page] = position;
+			lengths[page] = frozen._pages[page].length;
+			position += lengths[page];
+		}
+
+		byte[] index = writeIndex(frozen, timetable, timetableLength, pages, lengths);
+		out.write(writeHeader(HEADER, index));
+		out.write(index);
+
+		int start = out.size();
+		writeTimetable(frozen._timetable, out);
+		if (out.size() - start != timetableLength) {
+			throw new IllegalStateException("Timetable length " + (out.size() - start) + " != " + timetableLength);
+		}
+
+		for (byte[] page : frozen._pages) {
+			out.write(page);
+		}
+
+		return new Layout(fileName, company, frozen._timetable.getVersion(), timetable, timetableLength, pages, lengths,
+				position, indexLength);
+	}
+
+	/**
+	 * Appends the changed pages of a frozen train company to the file it was saved to,
+	 * and a new index. The file is forced to disk before and after the header is pointed
+	 * to the new index, so it is read either as it was or with every page appended.
+	 *
+	 * @param frozen the frozen train company.
+	 * @return the new layout of the file.
+	 * @throws IOException if errors occur in file writing.
+	 */
+	static Layout append(Frozen frozen) throws IOException {
+		Layout base = frozen._base;
+
+		try (FileChannel file = FileChannel.open(Paths.get(base._fileName), StandardOpenOption.WRITE)) {
+			long[] pages = Arrays.copyOf(base._pages, frozen._pages.length);
+			int[] lengths = Arrays.copyOf(base._lengths, frozen._pages.length);
+
+			/* Anything after the file saved last is left by an append that did not complete */
+			long position = base._length;
+			for (int page = 0; page < frozen._pages.length; page++) {
+				if (frozen._pages[page] == null) continue;
+
+				pages[page] = position;
+				lengths[page] = frozen._pages[page].length;
+				position += write(file, frozen._pages[page], position);
+			}
+
+			byte[] index = writeIndex(frozen, base._timetable, base._timetableLength, pages, lengths);
+			long indexPosition = position;
+			position += write(file, index, position);
+			file.truncate(position);
+			file.force(true);
+
+			write(file, writeHeader(indexPosition, index), 0);
+			file.force(true);
+
+			return new Layout(base._fileName, frozen._company, frozen._timetable.getVersion(), base._timetable,
+					base._timetableLength, pages, lengths, position, index.length);
+		}
+	}
+
+	/**
+	 * Writes bytes at a position of a file.
+	 *
+	 * @return the number of bytes written.
+	 */
+	private static int write(FileChannel file, byte[] bytes, long position) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		while (buffer.hasRemaining()) {
+			file.write(buffer, position + buffer.position());
+		}
+		return bytes.length;
+	}
+
+	/**
+	 * Returns the length of the index of a file with a given number of pages.
+	 */
+	private static int getIndexLength(int numberOfPages) {
+		return 8 + 4 + 8 + 8 + 4 + (8 + 4) * numberOfPages;
+	}
+
+	/**
+	 * Writes the header, which points to the index.
+	 */
+	private static byte[] writeHeader(long indexPosition, byte[] index) {
+		ByteBuffer header = ByteBuffer.allocate(HEADER);
+		header.putInt(MAGIC);
+		header.putInt(VERSION);
+		header.putLong(indexPosition);
+		header.putInt(index.length);
+		header.putInt(checksum(index));
+		return header.array();
+	}
+
+	/**
+	 * Writes the index of a file.
+	 */
+	private static byte[] writeIndex(Frozen frozen, long timetable, long timetableLength, long[] pages, int[] lengths) {
+		ByteBuffer index = ByteBuffer.allocate(getIndexLength(pages.length));
+		index.putLong(frozen._sequence);
+		index.putInt(frozen._nextPassengerId);
+		index.putLong(timetable);
+		index.putLong(timetableLength);
+		index.putInt(pages.length);
+		for (int page = 0; page < pages.length; page++) {
+			index.putLong(pages[page]);
+			index.putInt(lengths[page]);
+		}
+		return index.array();
+	}
+
+	/**
+	 * Returns the length of a timetable, without writing it.
+	 */
+	private static long getTimetableLength(Timetable timetable) {
+		long length = 4;
+		for (Station station : timetable.getStations().getStations()) {
+			length += 4 + station.getName().getBytes(StandardCharsets.UTF_8).length;
+		}
+
+		length += 4;
+		for (Service service : timetable.getTimetableServices()) {
+			length += 4 + 8 + 1 + 4 + 4 + (4 + 4 + 8 + 4) * (long) service.getTimetable().getNumberOfStops();
+		}
+
+		TransferIndex transfers = timetable.getTransfers();
+		length += 4 + 4 + 4 * (transfers.getNumberOfStations() + 1L) + 4L * transfers.size();
+
+		return length;
+	}
+
+	/**
+	 * Writes the stations, services and transfers of a timetable.
+	 */
+	private static void writeTimetable(Timetable timetable, DataOutputStream out) throws IOException {
+
+		/* Stations */
+		StationRegistry stations = timetable.getStations();
+		out.writeInt(stations.size());
+		for (Station station : stations.getStations()) {
+			writeString(station.getName(), out);
+		}
+
+		/* Services, including the ones replaced on import whose train stops are still indexed */
+		ArrayList<Service> services = timetable.getTimetableServices();
+		TransferIndex transfers = timetable.getTransfers();
+
+		Set<Service> current = new HashSet<Service>(timetable.getServices());
+		out.writeInt(services.size());
+		for (Service service : services) {
+			writeService(service, current.contains(service), out);
+		}
+
+		/* Transfers */
+		int[] stationOffsets = new int[transfers.getNumberOfStations() + 1];
+		for (int station = 0; station < stationOffsets.length - 1; station++) {
+			stationOffsets[station + 1] = transfers.getLastStationStop(station);
+		}
+		int[] stops = new int[transfers.size()];
+		for (int i = 0; i < stops.length; i++) {
+			stops[i] = transfers.getStop(i);
+		}
+
+		out.writeInt(transfers.size());
+		out.writeInt(stationOffsets.length - 1);
+		writeInts(stationOffsets, out);
+		writeInts(stops, out);
+	}
+
+	/**
+	 * Writes a service and its timetable.
+	 */
+	private static void writeService(Service service, boolean current, DataOutputStream out) throws IOException {
+		ServiceTimetable timetable = service.getTimetable();
+
+		out.writeInt(service.getId());
+		out.writeDouble(service.getCost());
+		out.writeBoolean(current);
+		out.writeInt(service.getFirstTrainStopId());
+		out.writeInt(timetable.getNumberOfStops());
+
+		for (int position = 0; position < timetable.getNumberOfStops(); position++) {
+			out.writeInt(timetable.getStationId(position));
+			out.writeInt(timetable.getTime(position));
+			out.writeDouble(timetable.getCumulativeCost(position));
+			out.writeInt(timetable.getCumulativeMinutes(position));
+		}
+	}
+
+	/**
+	 * Writes a passenger and its itineraries.
+	 */
+	private static void writePassenger(TrainCompany company, Passenger passenger, DataOutputStream out) throws IOException {
+		out.writeInt(passenger.getId());
+		writeString(passenger.getName(), out);
+		out.writeInt(company.getCategories().indexOf(passenger.getCategory()));
+		out.writeDouble(passenger.getTotalSpent());
+
+		double[] values = passenger.getRecentValues();
+		out.writeInt(values.length);
+		for (double value : values) {
+			out.writeDouble(value);
+		}
+
+		Map<Integer, Itinerary> itineraries = passenger.getItineraries();
+		out.writeInt(itineraries.size());
+		for (Map.Entry<Integer, Itinerary> entry : itineraries.entrySet()) {
+			Itinerary itinerary = entry.getValue();
+
+			out.writeInt(entry.getKey());
+			out.writeInt(itinerary.getId());
+			out.writeInt(itinerary.getPassengerId());
+			out.writeLong(itinerary.getDepartureDate().getTime());
+			out.writeInt(itinerary.getNumberOfTrainStops());
+
+			for (TrainStop trainstop : itinerary.getTrainStops()) {
+				out.writeInt(trainstop.getId());
+				out.writeBoolean(trainstop.isArrival());
+			}
+		}
+	}
+
+	/**
+	 * Reads a train company.
+	 *
+	 * @param in the contents of the snapshot file.
+	 * @return the train company.
+	 * @throws IOException if the file is not a valid snapshot.
+	 */
+	static TrainCompany read(ByteBuffer in) throws IOException {
+		try {
+			return readCompany(in);
+		} catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+			throw new IOException("Truncated snapshot", e);
+		}
+	}
+
+	/**
+	 * Reads the layout of a snapshot file, so the train company read from it can be
+	 * saved to it again by appending the pages that change.
+	 *
+	 * @param in the contents of the snapshot file.
+	 * @param fileName the name of the file.
+	 * @param company the train company read from the file.
+	 * @return the layout of the file, or null if it was saved in an earlier format.
+	 * @throws IOException if the file is not a valid snapshot.
+	 */
+	static Layout readLayout(ByteBuffer in, String fileName, TrainCompany company) throws IOException {
+		try {
+			if (in.getInt(4) < VERSION) return null;
+
+			ByteBuffer index = readIndex(in);
+			index.getLong();
+			index.getInt();
+			long timetable = index.getLong();
+			long timetableLength = index.getLong();
+
+			long[] pages = new long[index.getInt()];
+			int[] lengths = new int[pages.length];
+			for (int page = 0; page < pages.length; page++) {
+				pages[page] = index.getLong();
+				lengths[page] = index.getInt();
+			}
+
+			return new Layout(fileName, company, company.getTimetable().getVersion(), timetable, timetableLength, pages,
+					lengths, in.limit(), index.limit());
+
+		} catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+			throw new IOException("Truncated snapshot", e);
+		}
+	}
+
+	/**
+	 * Reads the records of a train company.
+	 */
+	private static TrainCompany readCompany(ByteBuffer in) throws IOException {
+
+		if (!isSnapshot(in.getInt())) {
+			throw new IOException("Not a train company snapshot");
+		}
+		int version = in.getInt();
+		if (version < 1 || version > VERSION) {
+			throw new IOException("Unsupported snapshot version " + version);
+		}
+
+		TrainCompany company = new TrainCompany();
+
+		if (version >= 3) {
+			ByteBuffer index = readIndex(in);
+			company.setJournalSequence(index.getLong());
+			int nextPassengerId = index.getInt();
+
+			in.position(checkPosition(in, index.getLong()));
+			index.getLong();
+			company.setTimetable(readTimetable(in, version));
+
+			/* Passengers, page by page */
+			int numberOfPages = index.getInt();
+			for (int page = 0; page < numberOfPages; page++) {
+				int position = checkPosition(in, index.getLong());
+				if (index.getInt() == 0) continue;
+
+				in.position(position);
+				readPassengers(company, in);
+			}
+			company.setNextPassengerId(nextPassengerId);
+
+		} else {
+			if (version >= 2) company.setJournalSequence(in.getLong());
+			company.setTimetable(readTimetable(in, version));
+
+			/* Passengers */
+			company.setNextPassengerId(in.getInt());
+			readPassengers(company, in);
+		}
+
+		return company;
+	}
+
+	/**
+	 * Reads the index a header points to, checking it was written whole.
+	 */
+	private static ByteBuffer readIndex(ByteBuffer in) throws IOException {
+		int position = checkPosition(in, in.getLong(8));
+		int length = in.getInt(16);
+		int checksum = in.getInt(20);
+
+		if (length < 0) {
+			throw new IOException("Invalid snapshot index");
+		}
+
+		byte[] index = new byte[length];
+		ByteBuffer contents = in.duplicate();
+		contents.position(position);
+		contents.get(index);
+
+		if (checksum(index) != checksum) {
+			throw new IOException("Invalid snapshot index");
+		}
+		return ByteBuffer.wrap(index);
+	}
+
+	/**
+	 * Checks that a position is in the file.
+	 */
+	private static int checkPosition(ByteBuffer in, long position) throws IOException {
+		if (position < 0 || position > in.limit()) {
+			throw new IOException("Invalid snapshot position " + position);
+		}
+		return (int) position;
+	}
+
+	/**
+	 * Reads the stations, services and transfers of a timetable.
+	 */
+	private static Timetable readTimetable(ByteBuffer in, int version) throws IOException {
+		Timetable timetable = new Timetable();
+
+		/* Stations */
+		int numberOfStations = in.getInt();
+		for (int i = 0; i < numberOfStations; i++) {
+			timetable.addStation(readString(in));
+		}
+
+		/* Services, with their train stops added in id order */
+		ArrayList<Service> current = new ArrayList<Service>();
+		int numberOfServices = in.getInt();
+		for (int i = 0; i < numberOfServices; i++) {
+			int id = in.getInt();
+			double cost = in.getDouble();
+			boolean isCurrent = in.get() != 0;
+			int firstTrainStopId = in.getInt();
+			int stops = in.getInt();
+
+			int[] stations = new int[stops];
+			int[] times = new int[stops];
+			double[] cumulativeCosts = new double[stops];
+			int[] cumulativeMinutes = new int[stops];
+
+			for (int position = 0; position < stops; position++) {
+				stations[position] = in.getInt();
+				times[position] = in.getInt();
+				cumulativeCosts[position] = in.getDouble();
+				cumulativeMinutes[position] = in.getInt();
+
+				if (stations[position] < 0 || stations[position] >= numberOfStations) {
+					throw new IOException("Invalid station id " + stations[position]);
+				}
+			}
+
+			if (stops > 0 && firstTrainStopId != timetable.getNumberOfTrainStops()) {
+				throw new IOException("Invalid train stop id " + firstTrainStopId);
+			}
+
+			ServiceTimetable columns = new ServiceTimetable(timetable.getStations(), stations, times, cumulativeCosts,
+					cumulativeMinutes);
+			Service service = new Service(id, cost, columns, firstTrainStopId);
+
+			timetable.restoreTrainStops(service);
+
+			if (isCurrent) current.add(service);
+		}
+
+		/* Transfers */
+		int numberOfTrainStops = in.getInt();
+		if (numberOfTrainStops != timetable.getNumberOfTrainStops()) {
+			throw new IOException("Invalid number of train stops " + numberOfTrainStops);
+		}
+
+		if (version >= 4) {
+			int numberOfStationsWithStops = in.getInt();
+			if (numberOfStationsWithStops < 0 || numberOfStationsWithStops > numberOfStations) {
+				throw new IOException("Invalid number of stations " + numberOfStationsWithStops);
+			}
+			int[] stationOffsets = readInts(in, numberOfStationsWithStops + 1);
+			int[] stops = readInts(in, numberOfTrainStops);
+
+			try {
+				timetable.restoreTransfers(stationOffsets, stops);
+			} catch (IllegalArgumentException e) {
+				throw new IOException("Invalid transfers", e);
+			}
+
+		} else {
+
+			/* Every transfer was saved: they are skipped, and the train stops linked again */
+			int[] offsets = readInts(in, numberOfTrainStops + 1);
+			if (offsets[numberOfTrainStops] < 0) {
+				throw new IOException("Invalid number of transfers " + offsets[numberOfTrainStops]);
+			}
+			in.position(in.position() + 4 * offsets[numberOfTrainStops]);
+			timetable.linkTrainStops();
+		}
+
+		for (Service service : current) {
+			timetable.addService(service.getId(), service);
+		}
+		timetable.index();
+		return timetable;
+	}
+
+	/**
+	 * Reads a number of passengers, followed by the passengers.
+	 */
+	private static void readPassengers(TrainCompany company, ByteBuffer in) throws IOException {
+		int numberOfPassengers = in.getInt();
+		for (int i = 0; i < numberOfPassengers; i++) {
+			Passenger passenger = readPassenger(company, in);
+			company.restorePassenger(passenger.getId(), passenger);
+		}
+	}
+
+	/**
+	 * Reads a passenger and its itineraries.
+	 */
+	private static Passenger readPassenger(TrainCompany company, ByteBuffer in) throws IOException {
+		Timetable timetable = company.getTimetable();
+		int id = in.getInt();
+		String name = readString(in);
+
+		Passenger passenger;
+		try {
+			passenger = new Passenger(id, name, company);
+		} catch (InvalidPassengerNameException e) {
+			throw new IOException("Invalid passenger name", e);
+		}
+
+		int category = in.getInt();
+		if (category < 0 || category >= company.getCategories().size()) {
+			throw new IOException("Invalid category " + category);
+		}
+		double totalSpent = in.getDouble();
+
+		double[] values = new double[in.getInt()];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = in.getDouble();
+		}
+		passenger.restore(company.getCategories().get(category), totalSpent, values);
+
+		int numberOfItineraries = in.getInt();
+		for (int i = 0; i < numberOfItineraries; i++) {
+			int number = in.getInt();
+			int itineraryId = in.getInt();
+			int passengerId = in.getInt();
+			Date departureDate = new Date(in.getLong());
+
+			int numberOfTrainStops = in.getInt();
+			ArrayList<TrainStop> trainstops = new ArrayList<TrainStop>(numberOfTrainStops);
+			for (int k = 0; k < numberOfTrainStops; k++) {
+				int trainStopId = in.getInt();
+				TrainStop trainstop = timetable.getTrainStop(trainStopId, in.get() != 0);
+
+				if (trainstop == null) {
+					throw new IOException("Invalid train stop id " + trainStopId);
+				}
+				trainstops.add(trainstop);
+			}
+
+			Itinerary itinerary = new Itinerary(departureDate, trainstops);
+			itinerary.updateId(itineraryId);
+			itinerary.setPassengerId(passengerId);
+			passenger.restoreItinerary(number, itinerary);
+		}
+
+		return passenger;
+	}
+
+	/**
+	 * Writes an array of ints as a single block.
+	 */
+	private static void writeInts(int[] values, DataOutputStream out) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(4 * values.length);
+		buffer.asIntBuffer().put(values);
+		out.write(buffer.array());
+	}
+
+	/**
+	 * Reads an array of ints written as a single block.
+	 */
+	private static int[] readInts(ByteBuffer in, int length) {
+		int[] values = new int[length];
+		in.asIntBuffer().get(values);
+		in.position(in.position() + 4 * length);
+		return values;
+	}
+
+	/**
+	 * Writes a string as its length followed by its UTF-8 bytes.
+	 */
+	private static void writeString(String value, DataOutputStream out) throws IOException {
+		byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	/**
+	 * Reads a string written as its length followed by its UTF-8 bytes.
+	 */
+	private static String readString(ByteBuffer in) {
+		byte[] bytes = new byte[in.getInt()];
+		in.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Returns the checksum of an index.
+	 */
+	private static int checksum(byte[] index) {
+		CRC32 crc = new CRC32();
+		crc.update(index, 0, index.length);
+		return (int) crc.getValue();
+	}
+
+}
@@ -0,0 +1,102 @@
+package mmt.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+
+import java.time.LocalTime;
+
+/**
+ * Router which answers earliest arrival queries with a single scan over the connections
+ * of the timetable, sorted by departure time (Connection Scan Algorithm).
+ *
+ * The search time is linear in the number of connections departing after the requested time.
+ */
+public class ConnectionScanRouter implements Router {
+
+	/**
+	 * Constructor.
+	 */
+	public ConnectionScanRouter() {
+		// nothing to do
+	}
+
+	/**
+	 * Finds the itinerary that arrives earliest at the end station.
+	 *
+	 * @see mmt.core.Router#search(Timetable, String, String, Date, LocalTime)
+	 */
+	public ArrayList<Itinerary> search(Timetable timetable, String startStation, String endStation,
+			Date departureDate, LocalTime departureTime) {
+
+		ArrayList<Itinerary> result = new ArrayList<Itinerary>();
+		ConnectionTable connections = timetable.getConnections();
+
+		int start = connections.getStationId(startStation);
+		int end = connections.getStationId(endStation);
+
+		if (start < 0 || end < 0 || start == end) return result;
+
+		/* Earliest known arrival at each station */
+		int[] earliest = new int[connections.getNumberOfStations()];
+		Arrays.fill(earliest, Integer.MAX_VALUE);
+		earliest[start] = departureTime.toSecondOfDay();
+
+		/* Connection where each trip was boarded */
+		int[] boardedAt = new int[connections.getNumberOfTrips()];
+		Arrays.fill(boardedAt, -1);
+
+		/* Last leg (boarding and alighting connections) used to reach each station */
+		int[] legStart = new int[connections.getNumberOfStations()];
+		int[] legEnd = new int[connections.getNumberOfStations()];
+		Arrays.fill(legStart, -1);
+
+		for (int c = connections.firstDepartingAt(earliest[start]); c < connections.size(); c++) {
+
+			int departure = connections.getDeparture(c);
+			int arrival = connections.getArrival(c);
+
+			/* No later connection can improve the arrival at the end station */
+			if (departure >= earliest[end]) break;
+
+			/* Segments running over midnight cannot be ordered within a single day */
+			if (arrival < departure) continue;
+
+			int trip = connections.getTrip(c);
+
+			if (boardedAt[trip] < 0 && earliest[connections.getFrom(c)] <= departure) {
+				boardedAt[trip] = c;
+			}
+
+			if (boardedAt[trip] >= 0 && arrival < earliest[connections.getTo(c)]) {
+				earliest[connections.getTo(c)] = arrival;
+				legStart[connections.getTo(c)] = boardedAt[trip];
+				legEnd[connections.getTo(c)] = c;
+			}
+		}
+
+		if (legStart[end] < 0) return result;
+
+		/* Walks the legs back from the end station */
+		ArrayList<Service> services = new ArrayList<Service>();
+		ArrayList<String> stations = new ArrayList<String>();
+		stations.add(endStation);
+
+		int station = end;
+		while (station != start) {
+			int board = legStart[station];
+			services.add(connections.getService(connections.getTrip(board)));
+			station = connections.getFrom(board);
+			stations.add(connections.getStationName(station));
+		}
+
+		Collections.reverse(services);
+		Collections.reverse(stations);
+
+		ItineraryBuilder builder = new ItineraryBuilder(timetable);
+		result.add(builder.buildItinerary(departureDate, services, stations));
+		return result;
+	}
+
+}
@@ -0,0 +1,278 @@
+package mmt.core;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Timetable flattened into elementary connections (one per segment of every service),
+ * sorted by departure time. Built once when the services are imported and scanned by
+ * the ConnectionScanRouter.
+ *
+ * The stops of each service (trip) are also kept in order, together with the trips
+ * that stop at each station, for the round based RaptorRouter.
+ */
+class ConnectionTable {
+
+	/** Bits used by each time (seconds of the day) in the sort key. */
+	private static final int TIME_BITS = 17;
+
+	/** Bits used by the connection index in the sort key. */
+	private static final int INDEX_BITS = 29;
+
+	/** Departure time of each connection, in seconds of the day. */
+	private int[] _departures;
+
+	/** Arrival time of each connection, in seconds of the day. */
+	private int[] _arrivals;
+
+	/** Departure station identifier of each connection. */
+	private int[] _from;
+
+	/** Arrival station identifier of each connection. */
+	private int[] _to;
+
+	/** Index of the service (trip) of each connection. */
+	private int[] _trips;
+
+	/** First stop of each trip (the stops of trip t are in [_tripOffsets[t], _tripOffsets[t + 1])). */
+	private int[] _tripOffsets;
+
+	/** Station identifier of each stop, grouped by trip. */
+	private int[] _stopStations;
+
+	/** Time of each stop in seconds of the day, grouped by trip. */
+	private int[] _stopTimes;
+
+	/** First entry of each station (the entries of station s are in [_stationOffsets[s], _stationOffsets[s + 1])). */
+	private int[] _stationOffsets;
+
+	/** Trip of each entry, grouped by station. */
+	private int[] _stationTrips;
+
+	/** Stop position within the trip of each entry, grouped by station. */
+	private int[] _stationPositions;
+
+	/** The services, indexed by trip. */
+	private Service[] _services;
+
+	/** The stations, indexed by identifier. */
+	private StationRegistry _stations;
+
+	/** The number of stations when the table was built. */
+	private int _numberOfStations;
+
+	/**
+	 * Builds the connection table of a collection of services.
+	 *
+	 * @param services the services to flatten.
+	 * @param stations the stations used by the services.
+	 */
+	ConnectionTable(Collection<Service> services, StationRegistry stations) {
+
+		_stations = stations;
+		_numberOfStations = stations.size();
+
+		int total = 0;
+		for (Service service : services) {
+			total += service.getNumberOfSegments();
+		}
+
+		_services = new Service[services.size()];
+		_tripOffsets = new int[services.size() + 1];
+		_stopStations = new int[total + services.size()];
+		_stopTimes = new int[total + services.size()];
+
+		int[] departures = new int[total];
+		int[] arrivals = new int[total];
+		int[] from = new int[total];
+		int[] to = new int[total];
+		int[] trips = new int[total];
+
+		/* Sort keys: departure, arrival and the unsorted index packed in a long */
+		long[] keys = new long[total];
+
+		int trip = 0;
+		int n = 0;
+		int stop = 0;
+		for (Service service : services) {
+			ServiceTimetable timetable = service.getTimetable();
+			_services[trip] = service;
+			_tripOffsets[trip] = stop;
+
+			for (int position = 0; position < timetable.getNumberOfStops(); position++) {
+				_stopStations[stop] = timetable.getStationId(position);
+				_stopTimes[stop++] = timetable.getTime(position);
+			}
+
+			for (int position = 0; position < service.getNumberOfSegments(); position++) {
+				departures[n] = timetable.getTime(position);
+				arrivals[n] = timetable.getTime(position + 1);
+				from[n] = timetable.getStationId(position);
+				to[n] = timetable.getStationId(position + 1);
+				trips[n] = trip;
+
+				keys[n] = ((long) departures[n] << (TIME_BITS + INDEX_BITS)) | ((long) arrivals[n] << INDEX_BITS) | n;
+				n++;
+			}
+
+			trip++;
+		}
+		_tripOffsets[trip] = stop;
+
+		Arrays.sort(keys);
+
+		_departures = new int[total];
+		_arrivals = new int[total];
+		_from = new int[total];
+		_to = new int[total];
+		_trips = new int[total];
+
+		for (int i = 0; i < total; i++) {
+			int j = (int) (keys[i] & ((1L << INDEX_BITS) - 1));
+			_departures[i] = departures[j];
+			_arrivals[i] = arrivals[j];
+			_from[i] = from[j];
+			_to[i] = to[j];
+			_trips[i] = trips[j];
+		}
+
+		/* Groups the stops of every trip by station */
+		_stationOffsets = new int[_numberOfStations + 1];
+		for (int i = 0; i < stop; i++) {
+			_stationOffsets[_stopStations[i] + 1]++;
+		}
+		for (int i = 0; i < _numberOfStations; i++) {
+			_stationOffsets[i + 1] += _stationOffsets[i];
+		}
+
+		int[] fill = Arrays.copyOf(_stationOffsets, _numberOfStations);
+		_stationTrips = new int[stop];
+		_stationPositions = new int[stop];
+		for (int t = 0; t < _services.length; t++) {
+			for (int i = _tripOffsets[t]; i < _tripOffsets[t + 1]; i++) {
+				int entry = fill[_stopStations[i]]++;
+				_stationTrips[entry] = t;
+				_stationPositions[entry] = i - _tripOffsets[t];
+			}
+		}
+	}
+
+	/**
+	 * Returns the identifier of a station name.
+	 *
+	 * @param name the station name.
+	 * @return the station identifier, or -1 if no connection uses the station.
+	 */
+	int getStationId(String name) {
+		int id = _stations.getId(name);
+		return id < _numberOfStations ? id : -1;
+	}
+
+	/**
+	 * Returns the first connection departing at or after a given time.
+	 *
+	 * @param time the time, in seconds of the day.
+	 * @return the index of the first connection departing at or after the time.
+	 */
+	int firstDepartingAt(int time) {
+		int low = 0;
+		int high = _departures.length;
+
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (_departures[middle] < time) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+
+		return low;
+	}
+
+	/** @return the number of connections. */
+	int size() {
+		return _departures.length;
+	}
+
+	/** @return the number of stations. */
+	int getNumberOfStations() {
+		return _numberOfStations;
+	}
+
+	/** @return the number of services (trips). */
+	int getNumberOfTrips() {
+		return _services.length;
+	}
+
+	/** @return the departure time of a connection. */
+	int getDeparture(int connection) {
+		return _departures[connection];
+	}
+
+	/** @return the arrival time of a connection. */
+	int getArrival(int connection) {
+		return _arrivals[connection];
+	}
+
+	/** @return the departure station of a connection. */
+	int getFrom(int connection) {
+		return _from[connection];
+	}
+
+	/** @return the arrival station of a connection. */
+	int getTo(int connection) {
+		return _to[connection];
+	}
+
+	/** @return the trip of a connection. */
+	int getTrip(int connection) {
+		return _trips[connection];
+	}
+
+	/** @return the number of stops of a trip. */
+	int getNumberOfStops(int trip) {
+		return _tripOffsets[trip + 1] - _tripOffsets[trip];
+	}
+
+	/** @return the station of the stop at a given position of a trip. */
+	int getStopStation(int trip, int position) {
+		return _stopStations[_tripOffsets[trip] + position];
+	}
+
+	/** @return the time of the stop at a given position of a trip. */
+	int getStopTime(int trip, int position) {
+		return _stopTimes[_tripOffsets[trip] + position];
+	}
+
+	/** @return the first entry of the trips stopping at a station. */
+	int getFirstTripEntry(int station) {
+		return _stationOffsets[station];
+	}
+
+	/** @return the entry following the last entry of the trips stopping at a station. */
+	int getLastTripEntry(int station) {
+		return _stationOffsets[station + 1];
+	}
+
+	/** @return the trip of an entry of the trips stopping at a station. */
+	int getEntryTrip(int entry) {
+		return _stationTrips[entry];
+	}
+
+	/** @return the stop position of an entry of the trips stopping at a station. */
+	int getEntryPosition(int entry) {
+		return _stationPositions[entry];
+	}
+
+	/** @return the service of a trip. */
+	Service getService(int trip) {
+		return _services[trip];
+	}
+
+	/** @return the name of a station. */
+	String getStationName(int station) {
+		return _stations.get(station).getName();
+	}
+
+}
@@ -0,0 +1,24 @@
+package mmt.core;
+
+import java.util.ArrayList;
+import java.util.Date;
+
+import java.time.LocalTime;
+
+/**
+ * Router which explores every composed itinerary with the depth first search of
+ * the ItineraryBuilder and keeps the best option for each starting service.
+ */
+public class DepthFirstRouter implements Router {
+
+	/**
+	 * @see mmt.core.Router#search(Timetable, String, String, Date, LocalTime)
+	 */
+	public ArrayList<Itinerary> search(Timetable timetable, String startStation, String endStation,
+			Date departureDate, LocalTime departureTime) {
+
+		ItineraryBuilder builder = new ItineraryBuilder(startStation, endStation, departureDate, departureTime, timetable);
+		return builder.getItineraryOptions();
+	}
+
+}
@@ -0,0 +1,422 @@
+package mmt.core;
+
+import java.io.IOException;
+
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import mmt.core.exceptions.ImportFileException;
+
+/**
+ * The records of a range of an import file, parsed without the train company so the
+ * ranges of a file can be parsed in parallel. The NewParser merges them into the train
+ * company in file order.
+ *
+ * The records are kept in the order of their lines: the name of each passenger, a
+ * ServiceRecord for each service and an ItineraryRecord for each itinerary. Station
+ * names are decoded once per range, and services refer to them by their index in the
+ * range. Parsing stops at the first line that cannot be parsed, and its exception is
+ * kept as the last record, so merging stops there as a sequential import would.
+ */
+final class ImportChunk {
+
+	/**
+	 * A service line, with its timetable columns.
+	 */
+	static final class ServiceRecord {
+
+		/** The service id. */
+		private final int _id;
+
+		/** The service cost. */
+		private final double _cost;
+
+		/** The index in the range of the station of each stop. */
+		private final int[] _stations;
+
+		/** The time of each stop, in seconds of the day. */
+		private final int[] _times;
+
+		/** The cost of the segments up to each stop. */
+		private final double[] _cumulativeCosts;
+
+		/** The duration of the segments up to each stop, in minutes. */
+		private final int[] _cumulativeMinutes;
+
+		/**
+		 * Constructor.
+		 */
+		ServiceRecord(int id, double cost, int[] stations, int[] times, double[] cumulativeCosts, int[] cumulativeMinutes) {
+			_id = id;
+			_cost = cost;
+			_stations = stations;
+			_times = times;
+			_cumulativeCosts = cumulativeCosts;
+			_cumulativeMinutes = cumulativeMinutes;
+		}
+
+		/** @return the service id. */
+		int getId() {
+			return _id;
+		}
+
+		/** @return the service cost. */
+		double getCost() {
+			return _cost;
+		}
+
+		/** @return the index in the range of the station of each stop (replaced by the station ids when merged). */
+		int[] getStations() {
+			return _stations;
+		}
+
+		/** @return the time of each stop, in seconds of the day. */
+		int[] getTimes() {
+			return _times;
+		}
+
+		/** @return the cost of the segments up to each stop. */
+		double[] getCumulativeCosts() {
+			return _cumulativeCosts;
+		}
+
+		/** @return the duration of the segments up to each stop, in minutes. */
+		int[] getCumulativeMinutes() {
+			return _cumulativeMinutes;
+		}
+	}
+
+	/**
+	 * An itinerary line. Its services are looked up when it is merged, so it uses the
+	 * services imported before it in the file.
+	 */
+	static final class ItineraryRecord {
+
+		/** The id of the passenger. */
+		private final int _passengerId;
+
+		/** The departure date, or null if it could not be parsed. */
+		private final Date _departureDate;
+
+		/** Why the departure date could not be parsed, or null. */
+		private final ParseException _dateFailure;
+
+		/** The service id of each segment, up to the first one that could not be parsed. */
+		private final int[] _services;
+
+		/** The names of the stations where the passenger enters or leaves each service. */
+		private final ArrayList<String> _stations;
+
+		/** Why a segment could not be parsed, after its service is looked up, or null. */
+		private final Exception _failure;
+
+		/** The services of the segments, as they were when the itinerary was merged. */
+		private ArrayList<Service> _resolvedServices;
+
+		/**
+		 * Constructor.
+		 */
+		ItineraryRecord(int passengerId, Date departureDate, ParseException dateFailure, int[] services,
+				ArrayList<String> stations, Exception failure) {
+			_passengerId = passengerId;
+			_departureDate = departureDate;
+			_dateFailure = dateFailure;
+			_services = services;
+			_stations = stations;
+			_failure = failure;
+		}
+
+		/** @return the id of the passenger. */
+		int getPassengerId() {
+			return _passengerId;
+		}
+
+		/** @return the departure date, or null if it could not be parsed. */
+		Date getDepartureDate() {
+			return _departureDate;
+		}
+
+		/** @return why the departure date could not be parsed, or null. */
+		ParseException getDateFailure() {
+			return _dateFailure;
+		}
+
+		/** @return the service id of each segment, up to the first one that could not be parsed. */
+		int[] getServices() {
+			return _services;
+		}
+
+		/** @return the names of the stations where the passenger enters or leaves each service. */
+		ArrayList<String> getStations() {
+			return _stations;
+		}
+
+		/** @return why a segment could not be parsed, or null. */
+		Exception getFailure() {
+			return _failure;
+		}
+
+		/** @return the services of the segments, as they were when the itinerary was merged. */
+		ArrayList<Service> getResolvedServices() {
+			return _resolvedServices;
+		}
+
+		/** @param services the services of the segments, as they are when the itinerary is merged. */
+		void setResolvedServices(ArrayList<Service> services) {
+			_resolvedServices = services;
+		}
+	}
+
+	/** The records, in the order of their lines. */
+	private ArrayList<Object> _records = new ArrayList<Object>();
+
+	/** The format of the departure dates of itineraries. */
+	private SimpleDateFormat _dateFormat = new SimpleDateFormat("yyyy-MM-dd");
+
+	/** The names of the stations of the range, by index. */
+	private ArrayList<String> _stationNames = new ArrayList<String>();
+
+	/** The bytes of the station names, in an open addressing table. */
+	private byte[][] _stationBytes = new byte[64][];
+
+	/** The index of each station name, in the same slots as its bytes. */
+	private int[] _stationSlots = new int[64];
+
+	/**
+	 * Parses the lines of a range.
+	 *
+	 * @param line the scanner of the range.
+	 * @param parseServices false to skip the services.
+	 * @throws IOException if errors occur in file reading.
+	 */
+	void parse(ImportScanner line, boolean parseServices) throws IOException {
+		try {
+			while (line.nextLine()) {
+				parseLine(line, parseServices);
+			}
+		} catch (ImportFileException | RuntimeException e) {
+			_records.add(e);
+		}
+	}
+
+	/**
+	 * Returns the records of the range.
+	 *
+	 * @return the records, in the order of their lines.
+	 */
+	List<Object> getRecords() {
+		return _records;
+	}
+
+	/**
+	 * Returns the number of stations named in the range.
+	 *
+	 * @return the number of stations.
+	 */
+	int getNumberOfStations() {
+		return _stationNames.size();
+	}
+
+	/**
+	 * Returns the name of a station of the range.
+	 *
+	 * @param index the index of the station in the range.
+	 * @return the name of the station.
+	 */
+	String getStationName(int index) {
+		return _stationNames.get(index);
+	}
+
+	/**
+	 * Parses a given line of a data file.
+	 *
+	 * @param line the scanner, at the line to parse.
+	 * @param parseServices false to skip the services.
+	 * @throws ImportFileException if errors occur in file reading.
+	 */
+	private void parseLine(ImportScanner line, boolean parseServices) throws ImportFileException {
+		if (line.getNumberOfFields() == 0) {
+			throw new ImportFileException("invalid type of line: ");
+		}
+
+		if (line.matches(0, "PASSENGER")) {
+			parsePassenger(line);
+
+		} else if (line.matches(0, "SERVICE")) {
+			if (parseServices) parseService(line);
+
+		} else if (line.matches(0, "ITINERARY")) {
+			parseItinerary(line);
+
+		} else {
+			throw new ImportFileException("invalid type of line: " + line.getString(0));
+		}
+	}
+
+	/**
+	 * Parses a passenger: its name.
+	 *
+	 * @param line the scanner, at the passenger line.
+	 * @throws ImportFileException if errors occur in file reading.
+	 */
+	private void parsePassenger(ImportScanner line) throws ImportFileException {
+		if (line.getNumberOfFields() != 2) {
+			throw new ImportFileException("invalid number of arguments in passenger line: " + line.getNumberOfFields());
+		}
+
+		_records.add(line.getString(1));
+	}
+
+	/**
+	 * Parses a service and its timetable columns.
+	 *
+	 * @param line the scanner, at the service line.
+	 * @throws ImportFileException if errors occur in file reading.
+	 */
+	private void parseService(ImportScanner line) throws ImportFileException {
+		if (line.getNumberOfFields() < 3) {
+			throw new ImportFileException("invalid number of arguments in service line: " + line.getNumberOfFields());
+		}
+
+		/* Service properties */
+		double cost = line.getDouble(2);
+		int serviceId = line.getInt(1);
+
+		/* Calculate cost of each segment */
+		int totalSegments = ( line.getNumberOfFields() - 3 ) / 2;
+		double segmentCost = cost / totalSegments;
+
+		/* Number of stops (a service needs at least one segment) */
+		int stops = totalSegments > 1 ? totalSegments : 0;
+
+		/* Timetable columns */
+		int[] stations = new int[stops];
+		int[] times = new int[stops];
+		double[] cumulativeCosts = new double[stops];
+		int[] cumulativeMinutes = new int[stops];
+
+		for (int position = 0; position < stops; position++) {
+			int i = 3 + 2 * position;
+
+			/* Stop time and station */
+			times[position] = line.getSecondOfDay(i);
+			stations[position] = getStation(line, i + 1);
+
+			/* Cost and duration of the segments up to this stop */
+			if (position > 0) {
+				cumulativeCosts[position] = cumulativeCosts[position - 1] + segmentCost;
+				cumulativeMinutes[position] = cumulativeMinutes[position - 1] + (times[position] - times[position - 1]) / 60;
+			}
+		}
+
+		_records.add(new ServiceRecord(serviceId, cost, stations, times, cumulativeCosts, cumulativeMinutes));
+	}
+
+	/**
+	 * Parses an itinerary: its passenger, date, and the service and stations of each segment.
+	 *
+	 * @param line the scanner, at the itinerary line.
+	 * @throws ImportFileException if errors occur in file reading.
+	 */
+	private void parseItinerary(ImportScanner line) throws ImportFileException {
+		if (line.getNumberOfFields() < 4)
+			throw new ImportFileException("Invalid number of elements in itinerary line: " + line.getNumberOfFields());
+
+		int passengerId = line.getInt(1);
+
+		Date departureDate;
+		try {
+			departureDate = _dateFormat.parse(line.getString(2));
+		} catch (ParseException e) {
+			_records.add(new ItineraryRecord(passengerId, null, e, null, null, null));
+			return;
+		}
+
+		int[] services = new int[line.getNumberOfFields() - 3];
+		ArrayList<String> stations = new ArrayList<String>();
+		Exception failure = null;
+
+		/* Each segment is service/departure station/arrival station */
+		int segment = line.getNumberOfFields();
+		int numberOfServices = 0;
+		for (int i = 3; i < line.getNumberOfFields(); i++) {
+			int parts = line.splitField(i, '/');
+
+			try {
+				services[numberOfServices] = line.getInt(segment);
+			} catch (NumberFormatException e) {
+				failure = e;
+				break;
+			}
+			numberOfServices++;
+
+			if (parts < 3) {
+				failure = new ImportFileException("Invalid segment in itinerary line: " + line.getString(i));
+				break;
+			}
+
+			if (i == 3) {
+				stations.add(_stationNames.get(getStation(line, segment + 1)));
+			}
+			stations.add(_stationNames.get(getStation(line, segment + 2)));
+		}
+
+		_records.add(new ItineraryRecord(passengerId, departureDate, null, Arrays.copyOf(services, numberOfServices),
+				stations, failure));
+	}
+
+	/**
+	 * Returns the index in the range of the station named in a field. Station names
+	 * repeat throughout the file, so the name is only decoded the first time it is found.
+	 *
+	 * @param line the scanner, at the line of the field.
+	 * @param field the index of the field.
+	 * @return the index of the station in the range.
+	 */
+	private int getStation(ImportScanner line, int field) {
+		int mask = _stationBytes.length - 1;
+
+		int slot = slot(line.hash(field), mask);
+		for (; _stationBytes[slot] != null; slot = (slot + 1) & mask) {
+			if (line.matches(field, _stationBytes[slot])) return _stationSlots[slot];
+		}
+
+		int index = _stationNames.size();
+		_stationNames.add(line.getString(field));
+		_stationBytes[slot] = line.getBytes(field);
+		_stationSlots[slot] = index;
+
+		/* Keeps the table at most half full */
+		if (_stationNames.size() > _stationBytes.length / 2) {
+			byte[][] names = _stationBytes;
+			int[] indexes = _stationSlots;
+			_stationBytes = new byte[2 * names.length][];
+			_stationSlots = new int[2 * indexes.length];
+
+			mask = _stationBytes.length - 1;
+			for (int k = 0; k < names.length; k++) {
+				if (names[k] == null) continue;
+
+				int s = slot(Arrays.hashCode(names[k]), mask);
+				while (_stationBytes[s] != null) s = (s + 1) & mask;
+				_stationBytes[s] = names[k];
+				_stationSlots[s] = indexes[k];
+			}
+		}
+
+		return index;
+	}
+
+	/**
+	 * Returns the first slot of a hash in the station name table.
+	 */
+	private static int slot(int hash, int mask) {
+		return (hash ^ (hash >>> 16)) & mask;
+	}
+
+}
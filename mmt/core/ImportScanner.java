@@ -0,0 +1,455 @@
+package mmt.core;
+
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+import java.time.LocalTime;
+
+import java.util.Arrays;
+
+/**
+ * Reads an import file line by line through a byte buffer, and splits each line into its
+ * '|' separated fields without creating a String per field. Fields are ranges of the
+ * buffer, given by their start and end positions, and are parsed from the bytes; only
+ * the fields kept as names are decoded.
+ *
+ * Lines end in "\n", "\r" or "\r\n", and fields are split as by String.split: empty
+ * fields at the end of a line are dropped. Numbers and times in the usual forms are
+ * parsed directly; any other form is parsed as a String, with the same result.
+ *
+ * A scanner reads a range of the file, so several ranges are read in parallel: it
+ * reads the lines that start in the range, including the last one even if it ends
+ * after the range.
+ */
+final class ImportScanner {
+
+	/** Bytes read from the file at a time. */
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	/** Powers of ten that are exact doubles. */
+	private static final double[] POWERS_OF_TEN = {
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+		1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+	};
+
+	/** Maximum number of digits of an exact double mantissa (below 2^53). */
+	private static final int MAX_DIGITS = 15;
+
+	/** The import file. */
+	private final FileChannel _channel;
+
+	/** The position in the file of the first byte of the buffer. */
+	private long _base;
+
+	/** The position in the file of the next bytes to read. */
+	private long _position;
+
+	/** The position in the file where the range ends. */
+	private final long _end;
+
+	/** Whether the line being read started before the range, and belongs to the previous one. */
+	private boolean _partial;
+
+	/** The charset of the import file. */
+	private final Charset _charset = Charset.defaultCharset();
+
+	/** The bytes read and not yet split into lines. */
+	private ByteBuffer _buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+	/** The start of the next line in the buffer. */
+	private int _next;
+
+	/** Whether the file was read to the end. */
+	private boolean _eof;
+
+	/** Whether the last line ended in '\r', so a '\n' that follows belongs to it. */
+	private boolean _skipLineFeed;
+
+	/** The start and end of each field of the current line. */
+	private int[] _fields = new int[32];
+
+	/** The number of fields of the current line. */
+	private int _numberOfFields;
+
+	/**
+	 * Reads the lines that start in a range of an import file. The file is not closed
+	 * by the scanner.
+	 *
+	 * @param channel the import file.
+	 * @param start the position of the start of the range.
+	 * @param end the position of the end of the range.
+	 */
+	ImportScanner(FileChannel channel, long start, long end) {
+		_channel = channel;
+		_end = end;
+
+		/* Starts at the previous byte, to tell whether a line starts at the range */
+		_partial = start > 0;
+		_base = _position = _partial ? start - 1 : start;
+		_buffer.limit(0);
+	}
+
+	/**
+	 * Advances to the next line of the file.
+	 *
+	 * @return false if there are no more lines.
+	 * @throws IOException if errors occur in file reading.
+	 */
+	boolean nextLine() throws IOException {
+		byte[] bytes = _buffer.array();
+
+		while (true) {
+			int limit = _buffer.limit();
+
+			if (_skipLineFeed && _next < limit) {
+				_skipLineFeed = false;
+				if (bytes[_next] == '\n') _next++;
+			}
+
+			/* Lines that start after the range belong to the next one */
+			if (_base + _next >= _end) return false;
+
+			/* A complete line in the buffer (the last line need not end in a line terminator) */
+			int start = _next;
+			int end = indexOfLineEnd(start, limit);
+			if (end >= 0) {
+				_next = end + 1;
+				_skipLineFeed = bytes[end] == '\r';
+			} else if (_eof && start < limit) {
+				end = _next = limit;
+			} else if (_eof) {
+				return false;
+			} else {
+				bytes = fill();
+				continue;
+			}
+
+			if (_partial) {
+				_partial = false;
+				continue;
+			}
+			split(start, end);
+			return true;
+		}
+	}
+
+	/**
+	 * Reads more of the file, keeping the incomplete line at the start of the buffer.
+	 *
+	 * @return the bytes of the buffer.
+	 */
+	private byte[] fill() throws IOException {
+		_buffer.position(_next);
+		_buffer.compact();
+		_base += _next;
+		_next = 0;
+
+		/* A line longer than the buffer */
+		if (!_buffer.hasRemaining()) {
+			ByteBuffer larger = ByteBuffer.allocate(2 * _buffer.capacity());
+			_buffer.flip();
+			larger.put(_buffer);
+			_buffer = larger;
+		}
+
+		int read = _channel.read(_buffer, _position);
+		if (read < 0) {
+			_eof = true;
+		} else {
+			_position += read;
+		}
+		_buffer.flip();
+		return _buffer.array();
+	}
+
+	/**
+	 * Returns the position of the first line terminator in a range of the buffer.
+	 */
+	private int indexOfLineEnd(int start, int end) {
+		byte[] bytes = _buffer.array();
+		for (int i = start; i < end; i++) {
+			if (bytes[i] == '\n' || bytes[i] == '\r') return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Splits a line into its '|' separated fields, dropping empty fields at the end.
+	 *
+	 * @param start the start of the line.
+	 * @param end the end of the line.
+	 */
+	private void split(int start, int end) {
+		_numberOfFields = split(start, end, (byte) '|', 0);
+
+		/* As String.split, a line without separators is a single field, even if empty */
+		if (_numberOfFields == 0 && indexOf(start, end, (byte) '|') < 0) {
+			_fields[0] = start;
+			_fields[1] = end;
+			_numberOfFields = 1;
+		}
+	}
+
+	/**
+	 * Splits a range of the buffer into its separated parts, dropping empty parts at the
+	 * end, and stores their start and end after the fields of the line.
+	 *
+	 * @param start the start of the range.
+	 * @param end the end of the range.
+	 * @param separator the separator.
+	 * @param offset the number of bounds stored before the parts.
+	 * @return the number of parts.
+	 */
+	private int split(int start, int end, byte separator, int offset) {
+		int count = 0;
+		int nonEmpty = 0;
+
+		for (int from = start; from <= end; ) {
+			int to = indexOf(from, end, separator);
+			if (to < 0) to = end;
+
+			if (offset + 2 * count + 2 > _fields.length) {
+				_fields = Arrays.copyOf(_fields, 2 * _fields.length);
+			}
+			_fields[offset + 2 * count] = from;
+			_fields[offset + 2 * count + 1] = to;
+			count++;
+			if (to > from) nonEmpty = count;
+
+			from = to + 1;
+		}
+
+		return nonEmpty;
+	}
+
+	/**
+	 * Returns the position of a byte in a range of the buffer.
+	 */
+	private int indexOf(int start, int end, byte value) {
+		byte[] bytes = _buffer.array();
+		for (int i = start; i < end; i++) {
+			if (bytes[i] == value) return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the number of fields of the current line.
+	 *
+	 * @return the number of fields.
+	 */
+	int getNumberOfFields() {
+		return _numberOfFields;
+	}
+
+	/**
+	 * Returns the start of a field of the current line.
+	 *
+	 * @param field the index of the field.
+	 * @return the position of its first byte.
+	 */
+	int getStart(int field) {
+		return _fields[2 * field];
+	}
+
+	/**
+	 * Returns the end of a field of the current line.
+	 *
+	 * @param field the index of the field.
+	 * @return the position after its last byte.
+	 */
+	int getEnd(int field) {
+		return _fields[2 * field + 1];
+	}
+
+	/**
+	 * Splits a field of the current line into its separated parts, as String.split. The
+	 * parts are numbered after the fields of the line, until the next line is read.
+	 *
+	 * @param field the index of the field.
+	 * @param separator the separator.
+	 * @return the number of parts, which are the fields from getNumberOfFields() on.
+	 */
+	int splitField(int field, char separator) {
+		int start = getStart(field);
+		int end = getEnd(field);
+		int count = split(start, end, (byte) separator, 2 * _numberOfFields);
+
+		if (count == 0 && indexOf(start, end, (byte) separator) < 0) {
+			_fields[2 * _numberOfFields] = start;
+			_fields[2 * _numberOfFields + 1] = end;
+			count = 1;
+		}
+		return count;
+	}
+
+	/**
+	 * Checks whether a field has the given ASCII contents.
+	 *
+	 * @param field the index of the field.
+	 * @param value the contents.
+	 * @return true if the field has those contents.
+	 */
+	boolean matches(int field, String value) {
+		int start = getStart(field);
+		int end = getEnd(field);
+		if (end - start != value.length()) return false;
+
+		byte[] bytes = _buffer.array();
+		for (int i = 0; i < value.length(); i++) {
+			if (bytes[start + i] != value.charAt(i)) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Checks whether a field has the given bytes.
+	 *
+	 * @param field the index of the field.
+	 * @param value the bytes.
+	 * @return true if the field has those bytes.
+	 */
+	boolean matches(int field, byte[] value) {
+		return Arrays.equals(_buffer.array(), getStart(field), getEnd(field), value, 0, value.length);
+	}
+
+	/**
+	 * Returns the bytes of a field.
+	 *
+	 * @param field the index of the field.
+	 * @return a copy of its bytes.
+	 */
+	byte[] getBytes(int field) {
+		return Arrays.copyOfRange(_buffer.array(), getStart(field), getEnd(field));
+	}
+
+	/**
+	 * Returns a hash of the bytes of a field.
+	 *
+	 * @param field the index of the field.
+	 * @return the hash, as Arrays.hashCode of the bytes.
+	 */
+	int hash(int field) {
+		byte[] bytes = _buffer.array();
+		int hash = 1;
+		for (int i = getStart(field); i < getEnd(field); i++) {
+			hash = 31 * hash + bytes[i];
+		}
+		return hash;
+	}
+
+	/**
+	 * Decodes a field.
+	 *
+	 * @param field the index of the field.
+	 * @return the field as a String.
+	 */
+	String getString(int field) {
+		int start = getStart(field);
+		return new String(_buffer.array(), start, getEnd(field) - start, _charset);
+	}
+
+	/**
+	 * Parses a field as Integer.parseInt.
+	 *
+	 * @param field the index of the field.
+	 * @return the value of the field.
+	 * @throws NumberFormatException if the field is not an int.
+	 */
+	int getInt(int field) {
+		byte[] bytes = _buffer.array();
+		int start = getStart(field);
+		int end = getEnd(field);
+
+		boolean negative = start < end && bytes[start] == '-';
+		int i = negative || (start < end && bytes[start] == '+') ? start + 1 : start;
+
+		/* Up to 9 digits cannot overflow */
+		if (i < end && end - i <= 9) {
+			int value = 0;
+			for (; i < end; i++) {
+				int digit = bytes[i] - '0';
+				if (digit < 0 || digit > 9) break;
+				value = 10 * value + digit;
+			}
+			if (i == end) return negative ? -value : value;
+		}
+
+		return Integer.parseInt(getString(field));
+	}
+
+	/**
+	 * Parses a field as Double.parseDouble.
+	 *
+	 * @param field the index of the field.
+	 * @return the value of the field.
+	 * @throws NumberFormatException if the field is not a double.
+	 */
+	double getDouble(int field) {
+		byte[] bytes = _buffer.array();
+		int start = getStart(field);
+		int end = getEnd(field);
+
+		boolean negative = start < end && bytes[start] == '-';
+		int i = negative || (start < end && bytes[start] == '+') ? start + 1 : start;
+
+		long mantissa = 0;
+		int digits = 0;
+		int decimals = -1;
+		for (; i < end; i++) {
+			byte b = bytes[i];
+			if (b >= '0' && b <= '9') {
+				mantissa = 10 * mantissa + (b - '0');
+				digits++;
+				if (decimals >= 0) decimals++;
+			} else if (b == '.' && decimals < 0) {
+				decimals = 0;
+			} else {
+				break;
+			}
+		}
+
+		/* Both the mantissa and the power of ten are exact, so the quotient is correctly rounded */
+		if (i == end && digits > 0 && digits <= MAX_DIGITS) {
+			double value = mantissa / POWERS_OF_TEN[Math.max(decimals, 0)];
+			return negative ? -value : value;
+		}
+
+		return Double.parseDouble(getString(field));
+	}
+
+	/**
+	 * Parses a field as a time of the day, as LocalTime.parse.
+	 *
+	 * @param field the index of the field.
+	 * @return the time, in seconds of the day.
+	 * @throws java.time.format.DateTimeParseException if the field is not a time.
+	 */
+	int getSecondOfDay(int field) {
+		byte[] bytes = _buffer.array();
+		int start = getStart(field);
+
+		/* HH:MM */
+		if (getEnd(field) - start == 5 && bytes[start + 2] == ':') {
+			int hours = digits(bytes[start], bytes[start + 1]);
+			int minutes = digits(bytes[start + 3], bytes[start + 4]);
+			if (hours >= 0 && hours < 24 && minutes >= 0 && minutes < 60) {
+				return 3600 * hours + 60 * minutes;
+			}
+		}
+
+		return LocalTime.parse(getString(field)).toSecondOfDay();
+	}
+
+	/**
+	 * Returns the value of two decimal digits, or -1 if they are not digits.
+	 */
+	private static int digits(byte tens, byte units) {
+		if (tens < '0' || tens > '9' || units < '0' || units > '9') return -1;
+		return 10 * (tens - '0') + (units - '0');
+	}
+
+}
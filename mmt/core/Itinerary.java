@@ -1,9 +1,17 @@
 package mmt.core;
 
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.time.Duration;
 import java.util.Locale;
 import java.time.LocalTime;
+import java.time.ZoneId;
 import java.util.Date;
 
 import java.text.SimpleDateFormat;
@@ -30,8 +38,29 @@ public class Itinerary implements java.io.Serializable, Comparable<Itinerary> {
 	/** The itinerary's Departure Date. */
 	private Date _departureDate;
 
-	/** the trainstops that compose the itinerary */
-	private ArrayList<TrainStop> _trainStops = new ArrayList<TrainStop>();
+	/** the trainstops that compose the itinerary (serialized as flat arrays, see writeObject) */
+	private transient ArrayList<TrainStop> _trainStops = new ArrayList<TrainStop>();
+
+	/** Bits used by each time (seconds of the day) in the sort key. */
+	private static final int TIME_BITS = 17;
+
+	/** Whether the cost and services below were computed (they are not saved, and computed again on load). */
+	private transient boolean _computed;
+
+	/** The services of the itinerary, in the order they are taken. */
+	private transient Service[] _services;
+
+	/** The partial cost of each service of the itinerary. */
+	private transient double[] _partialCosts;
+
+	/** The itinerary's cost. */
+	private transient double _cost;
+
+	/** The itinerary's duration (null until computed, with the sort key). */
+	private transient Duration _duration;
+
+	/** Departure date, departure time and arrival time packed for comparisons. */
+	private transient long _sortKey;
 
 	/**
 	 * Creates an itinerary that is associated with an id and cost.
@@ -46,6 +75,62 @@ public class Itinerary implements java.io.Serializable, Comparable<Itinerary> {
 		_trainStops = trainStops;
 	}
 
+	/**
+	 * Returns a copy of this itinerary, with the same train stops, to be given as an
+	 * option of a search: it is numbered and bought on its own.
+	 *
+	 * @return the copy.
+	 */
+	Itinerary copy() {
+		return new Itinerary(_departureDate, new ArrayList<TrainStop>(_trainStops));
+	}
+
+	/**
+	 * Writes this itinerary, with its train stops as flat arrays of their services,
+	 * positions and arrival flags.
+	 */
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		out.defaultWriteObject();
+
+		Service[] services = new Service[_trainStops.size()];
+		int[] positions = new int[_trainStops.size()];
+		boolean[] arrivals = new boolean[_trainStops.size()];
+
+		for (int i = 0; i < _trainStops.size(); i++) {
+			TrainStop trainstop = _trainStops.get(i);
+			services[i] = trainstop.getService();
+			positions[i] = trainstop.getPosition();
+			arrivals[i] = trainstop.isArrival();
+		}
+
+		out.writeObject(services);
+		out.writeObject(positions);
+		out.writeObject(arrivals);
+	}
+
+	/**
+	 * Reads this itinerary, and rebuilds its train stops from the arrays.
+	 */
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+
+		Service[] services = (Service[]) in.readObject();
+		int[] positions = (int[]) in.readObject();
+		boolean[] arrivals = (boolean[]) in.readObject();
+
+		if (positions.length != services.length || arrivals.length != services.length) {
+			throw new InvalidObjectException("Invalid train stops of itinerary " + _id);
+		}
+
+		_trainStops = new ArrayList<TrainStop>(services.length);
+		for (int i = 0; i < services.length; i++) {
+			if (services[i] == null || positions[i] < 0 || positions[i] >= services[i].getTimetable().getNumberOfStops()) {
+				throw new InvalidObjectException("Invalid train stop position " + positions[i]);
+			}
+			_trainStops.add(new TrainStop(services[i], positions[i], arrivals[i]));
+		}
+	}
+
 	/** 
 	 * Returns the itinerary's unique identifier.
 	 *
@@ -91,6 +176,15 @@ public class Itinerary implements java.io.Serializable, Comparable<Itinerary> {
 		return _trainStops.get(0).getService();
 	}
 
+	/**
+	 * Returns the TrainStops of the itinerary.
+	 *
+	 * @return the TrainStops of the itinerary, in order.
+	 */
+	List<TrainStop> getTrainStops() {
+		return Collections.unmodifiableList(_trainStops);
+	}
+
 	/**
 	 * Returns the number of TrainStops in the itinerary.
 	 *
@@ -101,17 +195,21 @@ public class Itinerary implements java.io.Serializable, Comparable<Itinerary> {
 	}
 
 	/**
-	 * Returns the itinerary's cost.
-	 *
-	 * @return the itinerary's cost.
+	 * Computes the cost and services of the itinerary, once.
 	 */
-	double getCost() {
+	private void compute() {
 
-		/* Holds the Service ID */
-		int id = 0;
+		if (_computed) return;
 
-		/* The cost to be returned */
-		double cost = 0;
+		/* Services, in the order they are taken, with the positions where they are boarded and left */
+		ArrayList<Service> services = new ArrayList<Service>();
+		ArrayList<int[]> rides = new ArrayList<int[]>();
+
+		/* Whether a service id is shared by train stops of different services (replaced on import) */
+		boolean replaced = false;
+
+		/* Holds the Service ID */
+		int id = -1;
 
 		/* Iterate over all TrainStops */
 		for ( TrainStop trainstop : _trainStops ) {
@@ -119,59 +217,100 @@ public class Itinerary implements java.io.Serializable, Comparable<Itinerary> {
 			/* Get the Service of the TrainStop */
 			Service service = trainstop.getService();
 
-			/* Checks if we need to add an header */
+			/* Checks if we need to add a service */
 			if ( id != service.getId() ) {
-				cost = cost + getPartialCost(service);
+				services.add(service);
+				rides.add(new int[] { trainstop.getPosition(), trainstop.getPosition() });
 			}
 
-			/* Update the Service ID */
+			/* Update the Service ID and where it is left */
+			replaced = replaced || service != services.get(services.size() - 1);
 			id = service.getId();
+			rides.get(rides.size() - 1)[1] = trainstop.getPosition();
 
 		}
 
-		return cost;
+		_services = services.toArray(new Service[services.size()]);
+		_partialCosts = new double[_services.length];
+		_cost = 0;
+
+		for ( int i = 0; i < _services.length; i++ ) {
+
+			/* A service taken more than once is paid from its first boarding to its last stop */
+			int boarding = -1;
+			int alighting = -1;
+			for ( int j = 0; j < _services.length; j++ ) {
+				if ( _services[j].getId() == _services[i].getId() ) {
+					replaced = replaced || _services[j] != _services[i];
+					if ( boarding < 0 ) boarding = rides.get(j)[0];
+					alighting = rides.get(j)[1];
+				}
+			}
+
+			if ( replaced ) {
+				_partialCosts[i] = _services[i].getPartialCost(getMinutesOnBoard(_services[i].getId()));
+			} else {
+				_partialCosts[i] = _services[i].getPartialCost(boarding, alighting);
+			}
+			_cost = _cost + _partialCosts[i];
+		}
+
+		_computed = true;
 	}
 
-	/** 
-	 * Returns the partial cost of an itinerary's service.
+	/**
+	 * Computes the duration and sort key of the itinerary, once. An itinerary without
+	 * train stops has no departure and arrival times, as in getDepartureTime().
+	 */
+	private void computeTimes() {
+
+		if (_duration != null) return;
+
+		LocalTime departure = getDepartureTime();
+		LocalTime arrival = getArrivalTime();
+
+		long day = _departureDate.toInstant().atZone(ZoneId.systemDefault()).toLocalDate().toEpochDay();
+		_sortKey = (day << (2 * TIME_BITS)) | ((long) departure.toSecondOfDay() << TIME_BITS) | arrival.toSecondOfDay();
+		_duration = Duration.between(departure, arrival);
+	}
+
+	/**
+	 * Returns the itinerary's cost.
+	 *
+	 * @return the itinerary's cost.
+	 */
+	double getCost() {
+		compute();
+		return _cost;
+	}
+
+	/**
+	 * Returns the time spent on board of the train stops with a given service id, adding
+	 * up the time between them. Only needed when train stops of a service replaced on
+	 * import share the id with the service that replaced it, so their positions cannot
+	 * be compared.
 	 *
-	 * @return the partial cost of the service.
+	 * @param serviceId the id of the service.
+	 * @return the time spent on board, in minutes.
 	 */
-	double getPartialCost( Service service ) {
+	private long getMinutesOnBoard( int serviceId ) {
 
 		/* Time and Duration */
-		LocalTime previous = LocalTime.MIDNIGHT;
+		LocalTime previous = null;
 		Duration duration = Duration.ZERO;
 
-		/* Counts the number of TrainStops on this Service */
-		int count = 0;
-
 		/* Iterate over all TrainStops */
 		for ( TrainStop trainstop : _trainStops ) {
 
 			/* Count time between TrainStops of this service */
-			if ( (service.getId() == trainstop.getService().getId()) && (count != 0 )) {
-				duration = duration.plus(Duration.between(previous, trainstop.getTime()));
+			if ( serviceId == trainstop.getService().getId() ) {
+				if ( previous != null ) duration = duration.plus(Duration.between(previous, trainstop.getTime()));
 				previous = trainstop.getTime();
-				count++;
-			}
-
-			/* First one so we don't have any duration yet */
-			else if ( (service.getId() == trainstop.getService().getId()) && (count == 0) ) {
-				previous = trainstop.getTime();
-				count++;
 			}
 
 		}
 
-		/* Calculate the fraction of the service to be paid */
-		double fractionDuration = (double) duration.toMinutes() / (double) service.getTotalDuration().toMinutes();
-
-		/* Calculated cost */
-		double calculatedCost = service.getCost() * fractionDuration;
-
-		/* Return the calculated cost */
-		return calculatedCost;
+		return duration.toMinutes();
 	}
 
 	/** 
@@ -180,10 +319,8 @@ public class Itinerary implements java.io.Serializable, Comparable<Itinerary> {
 	 * @return the itinerary's duration.
 	 */
 	Duration getDuration() {
-
-		/* Duration */
-		Duration duration = Duration.between( _trainStops.get(0).getTime(), _trainStops.get( _trainStops.size()-1 ).getTime() );
-		return duration;
+		computeTimes();
+		return _duration;
 	}
 
 	/**
@@ -192,30 +329,19 @@ public class Itinerary implements java.io.Serializable, Comparable<Itinerary> {
 	 * @return the itinerary's number of services.
 	 */
 	int getNumberOfServices() {
+		compute();
+		return _services.length;
+	}
 
-		/* Holds the Service ID */
-		int id = -1;
-
-		/* The cost to be returned */
-		int numberOfServices = 0;
-
-		/* Iterate over all TrainStops */
-		for ( TrainStop trainstop : _trainStops ) {
-
-			/* Get the Service of the TrainStop */
-			Service service = trainstop.getService();
-
-			/* Checks if we need to add an header */
-			if ( id != service.getId() ) {
-				numberOfServices++;
-			}
-
-			/* Update the Service ID */
-			id = service.getId();
-
-		}
-
-		return numberOfServices;
+	/**
+	 * Returns the key used to compare itineraries: the departure date, departure time and
+	 * arrival time packed in a long. Itineraries with the same key are compared by cost.
+	 *
+	 * @return the itinerary's sort key.
+	 */
+	long getSortKey() {
+		computeTimes();
+		return _sortKey;
 	}
 
 	/** 
@@ -232,8 +358,9 @@ public class Itinerary implements java.io.Serializable, Comparable<Itinerary> {
 		StringBuffer resultBuf = new StringBuffer();
 		resultBuf.append("\nItinerário " + _id + " para " + date + " @ " + itineraryCost);
 
-		/* Holds the Service ID */
+		/* Holds the Service ID and its position */
 		int id = -1;
+		int leg = -1;
 
 		/* Iterate over all TrainStops */
 		for ( TrainStop trainstop : _trainStops ) {
@@ -243,7 +370,8 @@ public class Itinerary implements java.io.Serializable, Comparable<Itinerary> {
 
 			/* Checks if we need to add a header */
 			if ( id != service.getId() ) {
-				String serviceCost = String.format(Locale.US, "%.2f", getPartialCost(service));
+				leg++;
+				String serviceCost = String.format(Locale.US, "%.2f", _partialCosts[leg]);
 				resultBuf.append("\nServiço #" + service.getId() + " @ " + serviceCost);
 			}
 
@@ -289,45 +417,30 @@ public class Itinerary implements java.io.Serializable, Comparable<Itinerary> {
 
 	/**
 	 * Compares two itineraries based on: Departure Date, Departure Time, Arrival Time, Duration, Cost and the number
-	 * of services that compose the itineraries.
+	 * of services that compose the itineraries. The first three are packed in the sort key, and the duration
+	 * follows from the departure and arrival times. Itineraries without train stops come before the others on
+	 * their departure date, and are equal to each other.
 	 *
 	 * @param itinerary itinerary to compare this itinerary to.
 	 */
 	public int compareTo(Itinerary itinerary) {
 
-		/* Checks the departure date */
-		if (this.getDepartureDate().equals(itinerary.getDepartureDate())) {
-
-			/* Checks the departure time */
-			if (this.getDepartureTime().equals(itinerary.getDepartureTime())) {
-				
-				/* Checks the arrival time */
-				if (this.getArrivalTime().equals(itinerary.getArrivalTime())) {
-
-					/* Checks the duration */
-					if(this.getDuration().equals(itinerary.getDuration())) {
-
-						/* Checks the cost */
-						if (this.getCost() > itinerary.getCost()) return 1;
-						else if (this.getCost() < itinerary.getCost()) return -1;
-						else return 0;
-
-					} else {
-						return this.getDuration().compareTo(itinerary.getDuration());
-					}
-
-				} else {
-					return this.getArrivalTime().compareTo(itinerary.getArrivalTime());
-				}
+		/* Itineraries without train stops only have a departure date, and come first on it */
+		if (_trainStops.isEmpty() || itinerary._trainStops.isEmpty()) {
+			int date = this.getDepartureDate().compareTo(itinerary.getDepartureDate());
+			if (date != 0) return date;
+			return Boolean.compare(!_trainStops.isEmpty(), !itinerary._trainStops.isEmpty());
+		}
 
-			} else {
-				return this.getDepartureTime().compareTo(itinerary.getDepartureTime());
-			}
+		/* Checks the departure date and time and the arrival time */
+		int order = Long.compare(this.getSortKey(), itinerary.getSortKey());
+		if (order != 0) return order;
 
-		} else {
-			return this.getDepartureDate().compareTo(itinerary.getDepartureDate());
-		}
+		/* Checks the cost */
+		if (this.getCost() > itinerary.getCost()) return 1;
+		else if (this.getCost() < itinerary.getCost()) return -1;
+		else return 0;
 
 	}
 
-}
\ No newline at end of file
+}
@@ -4,6 +4,8 @@ import java.util.Map;
 import java.util.Stack;
 import java.util.TreeMap;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.Set;
 import java.util.Collection;
@@ -26,8 +28,8 @@ import mmt.core.exceptions.BadTimeSpecificationException;
  */
 public class ItineraryBuilder implements Visitor {
 
-	/** The TrainCompany associated to this ItineraryBuilder */
-	private TrainCompany _trainCompany;
+	/** The timetable the itineraries are built from */
+	private Timetable _timetable;
 
 	/** Name of the starting station of the itinerary */
 	private String _startStation;
@@ -35,6 +37,12 @@ public class ItineraryBuilder implements Visitor {
 	/** Name of the ending station of the itinerary */
 	private String _endStation;
 
+	/** Id of the starting station of the itinerary */
+	private int _startStationId;
+
+	/** Id of the ending station of the itinerary */
+	private int _endStationId;
+
 	/** Departure date for the itinerary */
 	private Date _departureDate;
 
@@ -47,8 +55,11 @@ public class ItineraryBuilder implements Visitor {
 	/** List of singular Services which can be itineraries by themselves */
 	private ArrayList<Service> _singleServices = new ArrayList<Service>();
 
-	/** Services that connect from a given station */
-	private ArrayList<ArrayList<TrainStop>> _intersections = new ArrayList<ArrayList<TrainStop>>();
+	/** Ids of the trainstops in the path being explored by the Depth First Search */
+	private int[] _path = new int[16];
+
+	/** Number of trainstops in the path being explored */
+	private int _pathSize;
 
 	/** Possible itineraries */
 	private ArrayList<ArrayList<TrainStop>> _result = new ArrayList<ArrayList<TrainStop>>();
@@ -59,10 +70,10 @@ public class ItineraryBuilder implements Visitor {
 	/**
 	 * Constructor. Used when parsing new itineraries.
 	 *
-	 * @param trainCompany the train company associated with these itineraries.
+	 * @param timetable the timetable the itineraries are built from.
 	 */
-	ItineraryBuilder(TrainCompany trainCompany) {
-		_trainCompany = trainCompany;
+	ItineraryBuilder(Timetable timetable) {
+		_timetable = timetable;
 	}
 
 	/**
@@ -72,51 +83,88 @@ public class ItineraryBuilder implements Visitor {
 	 * @param endStation the end station where the itinerary should start.
 	 * @param departureDate the minimum date when the itinerary should start.
 	 * @param departureTime the minimum time when the itinerary should start.
-	 * @param trainCompany the train company associated with these itineraries.
+	 * @param timetable the timetable the itineraries are built from.
 	 */
-	ItineraryBuilder( String startStation, String endStation, String departureDate, String departureTime, TrainCompany trainCompany ) 
+	ItineraryBuilder( String startStation, String endStation, String departureDate, String departureTime, Timetable timetable )
 	throws BadTimeSpecificationException, BadDateSpecificationException {
+		this(startStation, endStation, parseDepartureDate(departureDate), parseDepartureTime(departureTime), timetable);
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param startStation the start station where the itinerary should start.
+	 * @param endStation the end station where the itinerary should start.
+	 * @param departureDate the date when the itinerary should start.
+	 * @param departureTime the minimum time when the itinerary should start.
+	 * @param timetable the timetable the itineraries are built from.
+	 */
+	ItineraryBuilder( String startStation, String endStation, Date departureDate, LocalTime departureTime, Timetable timetable ) {
 
 		/* Itinerary requirements */
 		_startStation = startStation;
 		_endStation = endStation;
-		_trainCompany = trainCompany;
+		_startStationId = timetable.getStationId(startStation);
+		_endStationId = timetable.getStationId(endStation);
+		_departureDate = departureDate;
+		_departureTime = departureTime;
+		_timetable = timetable;
 
-		/* Parse the departure time */
+		/* Itinerary search will use services */
+		_timetable.getServices().forEach(( Service s )-> {
+			s.accept(this);
+		});
+
+		/* Searches for itineraries composed by an unique service */
+		_singleServices.forEach((Service single) -> {
+			_itineraries.add(buildItinerary(_departureDate, single, _startStation, _endStation));
+		});
+
+		/* Searches for itineraries composed by more than one service */
+		this.searchComposedItinerary();
+
+		/* Between all options chooses the best itineraries */
+		this.addBestComposedItineraries();
+	}
+
+	/**
+	 * Parses the departure time of an itinerary request.
+	 *
+	 * @param departureTime the time, formatted as HH:MM.
+	 * @return the parsed time.
+	 * @throws BadTimeSpecificationException if the time isn't well formatted.
+	 */
+	static LocalTime parseDepartureTime(String departureTime) throws BadTimeSpecificationException {
 		try {
-			_departureTime = LocalTime.parse(departureTime);
+			return LocalTime.parse(departureTime);
 		} catch (DateTimeParseException e) {
 			throw new BadTimeSpecificationException(departureTime);
 		}
+	}
 
-		/* Parse the departure date */
+	/**
+	 * Parses the departure date of an itinerary request.
+	 *
+	 * @param departureDate the date, formatted as YYYY-MM-DD.
+	 * @return the parsed date.
+	 * @throws BadDateSpecificationException if the date isn't well formatted.
+	 */
+	static Date parseDepartureDate(String departureDate) throws BadDateSpecificationException {
 		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd");
+		Date date;
+
 		try {
-			_departureDate = format.parse(departureDate);
+			date = format.parse(departureDate);
 		} catch (ParseException e) {
 			throw new BadDateSpecificationException(departureDate);
 		}
 
 		/* Double check parsing */
-		if (!format.format(_departureDate).equals(departureDate)) {
+		if (!format.format(date).equals(departureDate)) {
 			throw new BadDateSpecificationException(departureDate);
 		}
 
-		/* Itinerary search will use services */
-		_trainCompany.getServices().forEach(( Service s )-> {
-			s.accept(this);
-		});
-
-		/* Searches for itineraries composed by an unique service */
-		_singleServices.forEach((Service single) -> {
-			_itineraries.add(buildItinerary(_departureDate, single, _startStation, _endStation));
-		});
-
-		/* Searches for itineraries composed by more than one service */
-		this.searchComposedItinerary();
-
-		/* Between all options chooses the best itineraries */
-		this.addBestComposedItineraries();
+		return date;
 	}
 
 	/**
@@ -126,34 +174,30 @@ public class ItineraryBuilder implements Visitor {
 	 */
 	public void visit ( Service service ) {
 
-		boolean isValidStart = false;
-		LocalTime startTime = LocalTime.MIN;
-
-		Collection<TrainStop> startStops = service.getStartTrainStops();
-		for ( TrainStop stop : startStops ) {
-
-			/* Service is valid if it has the Start Station where we want the itinerary to start and starts after our required departure time. */
-			if ( stop.getStation().getName().equals( _startStation ) && !stop.getTime().isBefore( _departureTime ) ) {
-
-				_startingServices.add( service );
-				isValidStart = true;
-				startTime = stop.getTime();
-				break;
+		ServiceTimetable timetable = service.getTimetable();
+		int segments = service.getNumberOfSegments();
+		int departure = _departureTime.toSecondOfDay();
 
-			}
+		/* Service is valid if it has the Start Station where we want the itinerary to start and starts after our required departure time. */
+		int startPosition = timetable.getFirstPosition( _startStationId );
+		while ( startPosition >= 0 && ( startPosition >= segments || timetable.getTime(startPosition) < departure ) ) {
+			startPosition = timetable.getNextPosition( startPosition );
 		}
 
-		if (!isValidStart) return;
+		if ( startPosition < 0 ) return;
 
-		Collection<TrainStop> endStops = service.getEndTrainStops();
-		for ( TrainStop stop : endStops ) {
+		_startingServices.add( service );
+		int startTime = timetable.getTime( startPosition );
 
-			/* Service is valid if it has the End Station where we want the itinerary to end and ends after the start of the starting TrainStop. */
-			if ( stop.getStation().getName().equals( _endStation ) && startTime.isBefore(stop.getTime())) {
+		/* Service is valid if it has the End Station where we want the itinerary to end and ends after the start of the starting TrainStop. */
+		int endPosition = timetable.getFirstPosition( _endStationId );
+		while ( endPosition >= 0 ) {
+			if ( endPosition > 0 && startTime < timetable.getTime( endPosition ) ) {
 				_singleServices.add( service );
 				_startingServices.remove( service );
 				break;
 			}
+			endPosition = timetable.getNextPosition( endPosition );
 		}
 
 	}
@@ -165,46 +209,15 @@ public class ItineraryBuilder implements Visitor {
 	 * @param service the service to be checked.
 	 * @param startStation the station where the list starts.
 	 * @param endStation the station where the list ends.
-	 * @return the ArrayList containing the TrainStops between the start and end stations in this service.
+	 * @return a view of the TrainStops between the start and end stations in this service.
 	 */
-	ArrayList<TrainStop> stopsInService(Service service, String startStation, String endStation) {
-
-		Collection<TrainStop> startStops = service.getStartTrainStops();
-		Collection<TrainStop> endStops = service.getEndTrainStops();
-
-		ArrayList<TrainStop> itineraryStops = new ArrayList<TrainStop>();
-
-		boolean firstStation = false;
-		int j = 0;
-
-		for ( TrainStop stop : startStops ) {
-			if ( stop.getStation().getName().equals(startStation) ) {
-
-				if ( j == 0 ) firstStation = true;
-
-				itineraryStops.add(stop);
-				break;
-			}
-
-			j++;
-		}
-
-		boolean hasStarted = false;
+	List<TrainStop> stopsInService(Service service, String startStation, String endStation) {
 
-		for ( TrainStop stop : endStops ) {
+		int boarding = service.getBoardingPosition(_timetable.getStationId(startStation));
+		if (boarding < 0) return Collections.emptyList();
 
-			if (firstStation) hasStarted = true;
-
-			if (!hasStarted && stop.getStation().getName().equals(startStation)) {
-				 hasStarted = true;
-			} else if (hasStarted) {
-				itineraryStops.add(stop);
-
-				if (stop.getStation().getName().equals(endStation)) break;
-			}
-		}
-
-		return itineraryStops;
+		int alighting = service.getAlightingPosition(_timetable.getStationId(endStation), boarding);
+		return service.getTrainStops(boarding, alighting);
 	}
 
 	/** 
@@ -221,7 +234,7 @@ public class ItineraryBuilder implements Visitor {
 	Itinerary buildItinerary(Date departureDate, Service service, String startStation, String endStation) {
 
 		ArrayList<TrainStop> itineraryStops = new ArrayList<TrainStop>();
-		ArrayList<TrainStop> serviceStops = this.stopsInService(service, startStation, endStation);
+		List<TrainStop> serviceStops = this.stopsInService(service, startStation, endStation);
 		itineraryStops.addAll(serviceStops);
 
 		return new Itinerary (departureDate, itineraryStops);
@@ -249,7 +262,7 @@ public class ItineraryBuilder implements Visitor {
 			String startStation = switchStations.get(i);
 			String endStation = switchStations.get(i + 1);
 
-			ArrayList<TrainStop> serviceStops = this.stopsInService(service, startStation, endStation);
+			List<TrainStop> serviceStops = this.stopsInService(service, startStation, endStation);
 			itineraryStops.addAll(serviceStops);
 		}
 
@@ -276,97 +289,46 @@ public class ItineraryBuilder implements Visitor {
 	}
 
 	/**
-	 * Grabs the next trainstops.
-	 *
-	 * @return the next trainstops.
+	 * Searches possible composed itineraries, doing an Depth First Search.
 	 */
-	ArrayList<TrainStop> nextTrainStops(TrainStop trainstop) {
-
-		/* The childs of the inputted trainstop */
-		ArrayList<TrainStop> result = new ArrayList<TrainStop>();
+	void searchComposedItinerary() {
 
-		/* Goes through our intersections */
-		for ( ArrayList<TrainStop> list : _intersections ) {
+		TransferIndex transfers = _timetable.getTransfers();
 
-			/* Get the first element */
-			TrainStop parent = list.get(0);
+		/* Launches DFS on every TrainStop, from the first one at the departure time on */
+		int last = transfers.getLastStationStop(_startStationId);
+		for ( int k = transfers.findStationStop(_startStationId, _departureTime.toSecondOfDay()); k < last; k++ ) {
+			TrainStop trainStop = transfers.getTrainStop( transfers.getStop(k) );
 
-			/* When the trainstops match we can get our childs */
-			if ( trainstop.getStation().getName().equals(parent.getStation().getName()) &&
-				 trainstop.getTime().equals(parent.getTime()) &&
-				 trainstop.getService().getId() == parent.getService().getId()) {
+			/* Time should be after the departure we want */
+			if ( !_departureTime.isAfter( trainStop.getTime()) &&
+				_startingServices.contains(trainStop.getService()) ) {
 
-				for ( int i = 1; i < list.size(); i++ ) {
-					result.add(list.get(i));
-				}
+				/* Applies DFS starting there */
+				this.depthFirstSearch( trainStop );
 			}
-
 		}
 
-		return result;
+		/* Train stops are expanded in time order: the paths are put in train stop id order */
+		_result.sort(ItineraryBuilder::comparePaths);
 
 	}
 
 	/**
-	 * Searches possible composed itineraries, doing an Depth First Search.
+	 * Compares two paths by the ids of their train stops, in order: the order in which a
+	 * search expanding train stops in id order finds them, which decides between equally
+	 * good itineraries.
+	 *
+	 * @param a a path.
+	 * @param b another path.
+	 * @return a negative number, zero or a positive number if a comes before, with or after b.
 	 */
-	void searchComposedItinerary() {
-
-		/* Train Stops */
-		ArrayList<TrainStop> trainStops = _trainCompany.getTrainStops();
-
-		/* Possible Starting Train Stops */
-		ArrayList<TrainStop> startTrainStops = new ArrayList<TrainStop>();
-
-		/* Build a table with the trainstops that intersect */
-		for ( TrainStop trainstop_a : trainStops ) {
-
-			/* Will have all the trainstops that intersect in order */
-			ArrayList<TrainStop> intersects = new ArrayList<TrainStop>();
-
-			/* Add first one */
-			intersects.add(trainstop_a);
-
-			/* Check which intersect */
-			for ( TrainStop trainstop_b : trainStops ) {
-				/* Adds the first intersection in a service (first->second) */
-				if (trainstop_a.getStation().getName().equals(trainstop_a.getService().getStartStation().getName())) {
-					intersects.add(trainstop_a.nextTrainStop());
-					break;
-
-				/* Considers other cases where TrainStops intersect if they are sequenced in time and stop at the same station */
-				} else if (trainstop_a.getStation().getName().equals( trainstop_b.getStation().getName() ) && 
-					!trainstop_a.getTime().isAfter( trainstop_b.getTime())) {
-					
-					/* If we are switching services we must add the TrainStop twice */
-					if (trainstop_a.getService().getId() == trainstop_b.getService().getId()) {
-						if (trainstop_b.hasNextTrainStop()) { intersects.add(trainstop_b.nextTrainStop()); }
-					} else {
-						intersects.add(trainstop_b);
-					}
-				}
-
-			}
-
-			/* Stations must match and the time should be after the departure we want */
-			if (_startStation.equals( trainstop_a.getStation().getName()) && 
-				!_departureTime.isAfter( trainstop_a.getTime()) &&
-				_startingServices.contains(trainstop_a.getService()) ) {
-				startTrainStops.add(trainstop_a);
-			}
-
-			/* Finally add it to intersections */
-			if ( intersects.size() > 1 ) { _intersections.add(intersects); }
-
-		}
-
-		/* Launches DFS on every TrainStop */
-		for ( TrainStop trainStop : startTrainStops ) {
-
-			/* Applies DFS starting there */
-			this.depthFirstSearch( trainStop );
+	private static int comparePaths(ArrayList<TrainStop> a, ArrayList<TrainStop> b) {
+		for ( int i = 0; i < a.size() && i < b.size(); i++ ) {
+			int order = Integer.compare(a.get(i).getId(), b.get(i).getId());
+			if (order != 0) return order;
 		}
-
+		return Integer.compare(a.size(), b.size());
 	}
 
 	/**
@@ -377,65 +339,86 @@ public class ItineraryBuilder implements Visitor {
 	 */
 	void depthFirstSearch(TrainStop trainstop) {
 
-		/* Next node on the graph to visit */
-		ArrayList<TrainStop> newPath = new ArrayList<TrainStop>();
-		nextSegment(trainstop, newPath);
+		/* Starts with an empty path */
+		_pathSize = 0;
+		nextSegment(trainstop.getId());
 
 	}
 
 	/**
 	 * Depth First Search auxiliary function that visits all adjacents
 	 * of a given node in the graph. In this case TrainStops that are linked
-	 * from TrainStop. The path is built on path and added to _result when the
-	 * adjacents are all visited.
+	 * from TrainStop. The path is built on _path and added to _result when the
+	 * end station is reached.
 	 * 
-	 * @param trainstop the trainstop/node to explore.
-	 * @param path the path being formmed in this iteration of the DFS.
+	 * @param trainstop the id of the trainstop/node to explore.
 	 */
-	void nextSegment(TrainStop trainstop, ArrayList<TrainStop> path) {
-		ArrayList<TrainStop> nextStops =  this.nextTrainStops(trainstop);
+	void nextSegment(int trainstop) {
+		TransferIndex transfers = _timetable.getTransfers();
 
-		if ( trainstop.getStation().getName().equals(_endStation)) {
-			ArrayList<TrainStop> nextPath = new ArrayList<TrainStop>(path);
-			nextPath.add( trainstop );
+		if ( transfers.getTrainStop(trainstop).getStation().getId() == _endStationId) {
+			ArrayList<TrainStop> nextPath = new ArrayList<TrainStop>(_pathSize + 1);
+			for ( int i = 0; i < _pathSize; i++ ) {
+				nextPath.add( transfers.getTrainStop(_path[i]) );
+			}
+			nextPath.add( transfers.getTrainStop(trainstop) );
 			_result.add( nextPath );
 			return;
 		}
 
-		for ( TrainStop next : nextStops) {
-			boolean nextValid = true;
-			for ( int i = 0; i < path.size() - 1; i++ ) {
-				if ( path.get(i).getStation().getName().equals(next.getStation().getName())) {
-					nextValid = false;
-					break;
+		/* The childs of the trainstop are a slice of the train stops at its station */
+		int last = transfers.getLastSuccessor(trainstop);
+		for ( int s = transfers.getFirstSuccessor(trainstop); s < last; s++ ) {
+			int next = transfers.getSuccessor(trainstop, s);
+
+			if ( next >= 0 && validStation(next) && validService(next) ) {
+				if ( _pathSize == _path.length ) {
+					_path = Arrays.copyOf(_path, 2 * _pathSize);
 				}
+				_path[_pathSize++] = trainstop;
+				nextSegment(next);
+				_pathSize--;
 			}
-			if ( nextValid && validService(next, path)) {
-				ArrayList<TrainStop> nextPath = new ArrayList<TrainStop>(path);
-				nextPath.add( trainstop );
-				nextSegment(next, nextPath);
+		}
+	}
+
+	/**
+	 * Checks if a given TrainStop is at a station the path has not gone through yet.
+	 *
+	 * @param trainstop the id of the trainstop to check.
+	 * @return true if the trainstop can be added to the path.
+	 */
+	boolean validStation(int trainstop) {
+		TransferIndex transfers = _timetable.getTransfers();
+		int station = transfers.getTrainStop(trainstop).getStation().getId();
+
+		for ( int i = 0; i < _pathSize - 1; i++ ) {
+			if ( transfers.getTrainStop(_path[i]).getStation().getId() == station) {
+				return false;
 			}
-			
 		}
+		return true;
 	}
 
 	/**
-	 * Checks if a given TrainStop service can belong to a given path or if the passenger needs
+	 * Checks if a given TrainStop service can belong to the path or if the passenger needs
 	 * to switch services.
 	 * 
-	 * @param trainstop the trainstop to check.
-	 * @param path the path formmed.
+	 * @param trainstop the id of the trainstop to check.
+	 * @return true if the trainstop's service can be added to the path.
 	 */
-	boolean validService(TrainStop trainstop, ArrayList<TrainStop> path) {
-		if (path.size() == 0) {
+	boolean validService(int trainstop) {
+		if (_pathSize == 0) {
 			return true;
 		}
-		int lastId = path.get(path.size() -1).getService().getId();
-		if ( lastId == trainstop.getService().getId()) {
+		TransferIndex transfers = _timetable.getTransfers();
+		int serviceId = transfers.getTrainStop(trainstop).getService().getId();
+		int lastId = transfers.getTrainStop(_path[_pathSize - 1]).getService().getId();
+		if ( lastId == serviceId) {
 			return true;
 		} else {
-			for ( int i = 0; i < path.size() - 1; i++) {
-				if ( path.get(i).getService().getId() == trainstop.getService().getId()) {
+			for ( int i = 0; i < _pathSize - 1; i++) {
+				if ( transfers.getTrainStop(_path[i]).getService().getId() == serviceId) {
 					return false;
 				}
 			}
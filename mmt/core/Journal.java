@@ -0,0 +1,555 @@
+package mmt.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import mmt.core.exceptions.InvalidPassengerNameException;
+import mmt.core.exceptions.NoSuchPassengerIdException;
+
+/**
+ * Append-only journal of the changes made to the passengers of a train company since it
+ * was last saved, kept next to the saved file (with the ".log" extension). Loading the
+ * file replays the journal, so changes are not lost if the application stops before
+ * the company is saved again.
+ *
+ * Each record is written as its length, a checksum and the record itself: a sequence
+ * number, the kind of change and its arguments. The sequence number of the last record
+ * is saved with the company, so records already in the saved file are not replayed
+ * again, and a record left incomplete by a crash is discarded. So is a record that does
+ * not follow the saved file, left by a save that did not complete.
+ *
+ * While a file is saved in the background, changes keep being recorded in its journal;
+ * once the file is in place, the records it holds are removed from the journal.
+ *
+ * Records are forced to disk before the change is made. Concurrent writers share the
+ * cost: while one of them forces a batch of records, the others add theirs to the next
+ * batch, which is forced as a whole (group commit).
+ *
+ * If a batch cannot be written, the file is truncated back to the records already on
+ * disk, and the records not written are dropped, so their changes are not made. The
+ * journal then rejects every record until the file is saved again (see compact) or
+ * loaded, so no record is written after the ones that were lost.
+ */
+class Journal implements java.io.Closeable {
+
+	/** A passenger was added. */
+	private static final byte ADD_PASSENGER = 1;
+
+	/** A passenger's name was changed. */
+	private static final byte CHANGE_PASSENGER_NAME = 2;
+
+	/** An itinerary was bought. */
+	private static final byte COMMIT_ITINERARY = 3;
+
+	/** Bytes before each record: its length and checksum. */
+	private static final int RECORD_HEADER = 8;
+
+	/** The train company whose changes are recorded. */
+	private final TrainCompany _trainCompany;
+
+	/** The name of the saved file. */
+	private final String _fileName;
+
+	/** The journal file (replaced when the journal is compacted). */
+	private FileChannel _channel;
+
+	/** Records not yet written to the file. */
+	private ByteArrayOutputStream _pending = new ByteArrayOutputStream();
+
+	/** The sequence number of the last record added. */
+	private long _appended;
+
+	/** The sequence number of the last record forced to disk. */
+	private long _durable;
+
+	/** The length of the journal file up to the last record forced to disk. */
+	private long _size;
+
+	/** Why a batch of records could not be written (null if none failed since the file was saved or loaded). */
+	private IOException _failure;
+
+	/** Whether a writer is forcing a batch of records to disk. */
+	private boolean _flushing;
+
+	/**
+	 * Constructor.
+	 *
+	 * @param fileName the name of the saved file.
+	 * @param trainCompany the train company whose changes are recorded.
+	 * @param channel the journal file, positioned after its last record.
+	 * @param size the length of the journal file.
+	 */
+	private Journal(String fileName, TrainCompany trainCompany, FileChannel channel, long size) {
+		_fileName = fileName;
+		_trainCompany = trainCompany;
+		_channel = channel;
+		_appended = trainCompany.getJournalSequence();
+		_durable = _appended;
+		_size = size;
+	}
+
+	/**
+	 * Returns the name of the journal of a saved file.
+	 *
+	 * @param fileName the name of the saved file.
+	 * @return the name of its journal.
+	 */
+	static String getFileName(String fileName) {
+		return fileName + ".log";
+	}
+
+	/**
+	 * Starts an empty journal for a file being saved.
+	 *
+	 * @param fileName the name of the saved file.
+	 * @param trainCompany the train company being saved.
+	 * @return the journal.
+	 * @throws IOException if errors occur in file writing.
+	 */
+	static Journal create(String fileName, TrainCompany trainCompany) throws IOException {
+		FileChannel channel = FileChannel.open(Paths.get(getFileName(fileName)), StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		channel.force(true);
+		return new Journal(fileName, trainCompany, channel, 0);
+	}
+
+	/**
+	 * Opens the journal of a file that was just loaded, replaying the changes made after
+	 * the file was saved. An incomplete record at the end is discarded.
+	 *
+	 * @param fileName the name of the loaded file.
+	 * @param trainCompany the train company that was loaded.
+	 * @return the journal.
+	 * @throws IOException if errors occur in file reading, or a record cannot be replayed.
+	 */
+	static Journal open(String fileName, TrainCompany trainCompany) throws IOException {
+		FileChannel channel = FileChannel.open(Paths.get(getFileName(fileName)), StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		int end = 0;
+
+		try {
+			ByteBuffer contents = ByteBuffer.allocate((int) channel.size());
+			while (contents.hasRemaining() && channel.read(contents) >= 0);
+			contents.flip();
+
+			/* Replays the complete records */
+			while (contents.remaining() >= RECORD_HEADER) {
+				int length = contents.getInt();
+				int checksum = contents.getInt();
+				if (length <= 0 || length > contents.remaining()) break;
+
+				byte[] record = new byte[length];
+				contents.get(record);
+				if (checksum(record) != checksum) break;
+				if (sequence(record) > trainCompany.getJournalSequence() + 1) break;
+
+				replay(trainCompany, record);
+				end = contents.position();
+			}
+
+			channel.truncate(end);
+			channel.position(end);
+			channel.force(true);
+
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+
+		return new Journal(fileName, trainCompany, channel, end);
+	}
+
+	/**
+	 * Checks whether this is the journal of a saved file.
+	 *
+	 * @param fileName the name of the saved file.
+	 * @return true if the changes to that file are recorded in this journal.
+	 */
+	boolean isJournalOf(String fileName) {
+		return _fileName.equals(fileName);
+	}
+
+	/**
+	 * Applies a record to a train company, unless the company already has it.
+	 *
+	 * @param trainCompany the train company.
+	 * @param record the record.
+	 * @throws IOException if the record cannot be applied.
+	 */
+	private static void replay(TrainCompany trainCompany, byte[] record) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+
+		long sequence = in.readLong();
+		if (sequence <= trainCompany.getJournalSequence()) return;
+
+		try {
+			switch (in.readByte()) {
+			case ADD_PASSENGER:
+				int id = in.readInt();
+				trainCompany.addPassenger(new Passenger(id, in.readUTF(), trainCompany));
+				break;
+
+			case CHANGE_PASSENGER_NAME:
+				trainCompany.changePassengerName(in.readInt(), in.readUTF());
+				break;
+
+			case COMMIT_ITINERARY:
+				int passengerId = in.readInt();
+				Date departureDate = new Date(in.readLong());
+
+				int numberOfTrainStops = in.readInt();
+				ArrayList<TrainStop> trainstops = new ArrayList<TrainStop>(numberOfTrainStops);
+				for (int k = 0; k < numberOfTrainStops; k++) {
+					TrainStop trainstop = trainCompany.getTimetable().getTrainStop(in.readInt(), in.readBoolean());
+					if (trainstop == null) throw new IOException("Invalid train stop in journal record " + sequence);
+					trainstops.add(trainstop);
+				}
+
+				trainCompany.commitItinerary(passengerId, new Itinerary(departureDate, trainstops));
+				break;
+
+			default:
+				throw new IOException("Invalid journal record " + sequence);
+			}
+
+		} catch (NoSuchPassengerIdException | InvalidPassengerNameException e) {
+			throw new IOException("Invalid journal record " + sequence, e);
+		}
+
+		trainCompany.setJournalSequence(sequence);
+	}
+
+	/**
+	 * Records that a passenger was added.
+	 *
+	 * @param id the passenger's id.
+	 * @param name the passenger's name.
+	 */
+	void addPassenger(int id, String name) {
+		ByteArrayOutputStream record = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(record);
+
+		try {
+			out.writeByte(ADD_PASSENGER);
+			out.writeInt(id);
+			out.writeUTF(name);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+
+		append(record.toByteArray());
+	}
+
+	/**
+	 * Records that a passenger's name was changed.
+	 *
+	 * @param id the passenger's id.
+	 * @param name the passenger's new name.
+	 */
+	void changePassengerName(int id, String name) {
+		ByteArrayOutputStream record = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(record);
+
+		try {
+			out.writeByte(CHANGE_PASSENGER_NAME);
+			out.writeInt(id);
+			out.writeUTF(name);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+
+		append(record.toByteArray());
+	}
+
+	/**
+	 * Records that a passenger bought an itinerary.
+	 *
+	 * @param passengerId the passenger's id.
+	 * @param itinerary the itinerary.
+	 */
+	void commitItinerary(int passengerId, Itinerary itinerary) {
+		append(commitRecord(passengerId, itinerary));
+	}
+
+	/**
+	 * Records that passengers bought itineraries, forcing the records to disk at once.
+	 *
+	 * @param passengerIds the id of the passenger who bought each itinerary.
+	 * @param itineraries the itineraries, in the order they were bought.
+	 */
+	void commitItineraries(int[] passengerIds, List<Itinerary> itineraries) {
+		ArrayList<byte[]> changes = new ArrayList<byte[]>(itineraries.size());
+		for (int i = 0; i < itineraries.size(); i++) {
+			changes.add(commitRecord(passengerIds[i], itineraries.get(i)));
+		}
+
+		append(changes);
+	}
+
+	/**
+	 * Returns the kind of change and arguments of a bought itinerary.
+	 */
+	private static byte[] commitRecord(int passengerId, Itinerary itinerary) {
+		ByteArrayOutputStream record = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(record);
+
+		try {
+			out.writeByte(COMMIT_ITINERARY);
+			out.writeInt(passengerId);
+			out.writeLong(itinerary.getDepartureDate().getTime());
+			out.writeInt(itinerary.getNumberOfTrainStops());
+
+			for (TrainStop trainstop : itinerary.getTrainStops()) {
+				out.writeInt(trainstop.getId());
+				out.writeBoolean(trainstop.isArrival());
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+
+		return record.toByteArray();
+	}
+
+	/**
+	 * Adds a record to the journal and waits until it is on disk.
+	 *
+	 * @param change the kind of change and its arguments.
+	 */
+	private void append(byte[] change) {
+		append(Collections.singletonList(change));
+	}
+
+	/**
+	 * Adds consecutive records to the journal and waits until they are on disk.
+	 *
+	 * @param changes the kind of each change and its arguments.
+	 * @throws UncheckedIOException if the records could not be written, or a previous
+	 *         batch could not be written since the file was saved or loaded.
+	 */
+	private void append(List<byte[]> changes) {
+		long sequence;
+
+		synchronized (this) {
+			if (_failure != null) throw failed();
+
+			sequence = _trainCompany.getJournalSequence();
+
+			for (byte[] change : changes) {
+				sequence++;
+				byte[] record = ByteBuffer.allocate(8 + change.length).putLong(sequence).put(change).array();
+				ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER).putInt(record.length).putInt(checksum(record));
+				_pending.write(header.array(), 0, RECORD_HEADER);
+				_pending.write(record, 0, record.length);
+			}
+
+			_trainCompany.setJournalSequence(sequence);
+			_appended = sequence;
+		}
+
+		sync(sequence);
+	}
+
+	/**
+	 * Waits until a record is on disk. If no other writer is forcing records to disk, this
+	 * one writes and forces every pending record.
+	 *
+	 * @param sequence the sequence number of the record.
+	 */
+	private void sync(long sequence) {
+		while (true) {
+			ByteBuffer batch;
+			long last;
+
+			synchronized (this) {
+				while (_flushing && _durable < sequence) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new UncheckedIOException(new IOException("Interrupted while writing the journal"));
+					}
+				}
+				if (_durable >= sequence) return;
+				if (_failure != null) throw failed();
+
+				/* Takes the pending records, so other writers can add to the next batch */
+				batch = ByteBuffer.wrap(_pending.toByteArray());
+				last = _appended;
+				_pending = new ByteArrayOutputStream();
+				_flushing = true;
+			}
+
+			/* Writes and forces the batch without holding the lock */
+			int length = batch.remaining();
+			IOException failure = null;
+			try {
+				while (batch.hasRemaining()) {
+					_channel.write(batch);
+				}
+				_channel.force(false);
+			} catch (IOException e) {
+				failure = e;
+			}
+
+			synchronized (this) {
+				_flushing = false;
+				if (failure == null) {
+					_durable = last;
+					_size += length;
+				} else {
+					fail(failure);
+				}
+				notifyAll();
+			}
+
+			if (failure != null) throw new UncheckedIOException(failure);
+		}
+	}
+
+	/**
+	 * Drops the records that were not forced to disk, after a batch could not be written:
+	 * the bytes of the batch that were written are truncated, and the sequence numbers of
+	 * the records dropped are given again. The journal rejects records from now on.
+	 *
+	 * @param failure why the batch could not be written.
+	 */
+	private void fail(IOException failure) {
+		_failure = failure;
+		_pending = new ByteArrayOutputStream();
+		_appended = _durable;
+		_trainCompany.setJournalSequence(_durable);
+
+		try {
+			_channel.truncate(_size);
+			_channel.position(_size);
+		} catch (IOException e) {
+			/* The file is copied up to the records on disk when it is compacted */
+			failure.addSuppressed(e);
+		}
+	}
+
+	/**
+	 * @return the exception of the records rejected, as a batch could not be written.
+	 */
+	private UncheckedIOException failed() {
+		return new UncheckedIOException(new IOException("The journal could not be written", _failure));
+	}
+
+	/**
+	 * Discards the recorded changes, which will not be replayed when the file is loaded.
+	 *
+	 * @throws IOException if errors occur in file writing.
+	 */
+	synchronized void discard() throws IOException {
+		_pending = new ByteArrayOutputStream();
+		_channel.truncate(0);
+		_channel.force(true);
+		_size = 0;
+	}
+
+	/**
+	 * Removes the records up to a given one, once the saved file holds them. The other
+	 * records on disk are copied to a new journal file, which replaces this one
+	 * atomically. If a batch of records could not be written, the journal accepts records
+	 * again, after the ones copied.
+	 *
+	 * @param sequence the sequence number of the last record in the saved file.
+	 * @throws IOException if errors occur in file writing.
+	 */
+	synchronized void compact(long sequence) throws IOException {
+
+		/* Waits for the batch being written, so every record not pending is in the file */
+		while (_flushing) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while compacting the journal");
+			}
+		}
+
+		ByteBuffer contents = ByteBuffer.allocate((int) _size);
+		while (contents.hasRemaining() && _channel.read(contents, contents.position()) >= 0);
+		contents.flip();
+
+		/* Records are in the file in sequence order */
+		int start = 0;
+		while (start + RECORD_HEADER + 8 <= contents.limit() && contents.getLong(start + RECORD_HEADER) <= sequence) {
+			start += RECORD_HEADER + contents.getInt(start);
+		}
+		if (start == 0 && _failure == null) return;
+
+		Path path = Paths.get(getFileName(_fileName));
+		Path temporary = Paths.get(getFileName(_fileName) + ".tmp");
+
+		FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		try {
+			contents.position(Math.min(start, contents.limit()));
+			while (contents.hasRemaining()) {
+				channel.write(contents);
+			}
+			channel.force(true);
+		} finally {
+			channel.close();
+		}
+		Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+		_channel.close();
+		_channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		_size = _channel.size();
+		_channel.position(_size);
+		_failure = null;
+	}
+
+	/**
+	 * Closes the journal file.
+	 *
+	 * @throws IOException if errors occur in file writing.
+	 */
+	public void close() throws IOException {
+		_channel.close();
+	}
+
+	/**
+	 * Returns the sequence number of a record.
+	 *
+	 * @param record the record.
+	 * @return the sequence number.
+	 */
+	private static long sequence(byte[] record) {
+		return ByteBuffer.wrap(record).getLong();
+	}
+
+	/**
+	 * Returns the checksum of a record.
+	 *
+	 * @param record the record.
+	 * @return the checksum.
+	 */
+	private static int checksum(byte[] record) {
+		CRC32 crc = new CRC32();
+		crc.update(record, 0, record.length);
+		return (int) crc.getValue();
+	}
+
+}
@@ -0,0 +1,198 @@
+package mmt.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import mmt.core.exceptions.InvalidPassengerNameException;
+
+/**
+ * Reads the files saved by the first versions of the application, before snapshots, with
+ * Java serialization. Their services, train stops, itineraries and passengers no longer
+ * have the fields of the current classes, so they are read as the classes of the legacy
+ * package, which keep the fields they were saved with. Once the whole file is read, the
+ * train company converts them into its timetable and passengers (see restore).
+ *
+ * The services get train stop ids in the order of their train stops in the file, which
+ * is the order they were imported in, so itinerary searches find their options in the
+ * same order as before the file was saved.
+ */
+class LegacyInputStream extends ObjectInputStream {
+
+	/**
+	 * Constructor.
+	 *
+	 * @param in the file contents.
+	 * @throws IOException if the stream header cannot be read.
+	 */
+	LegacyInputStream(InputStream in) throws IOException {
+		super(in);
+	}
+
+	/** @see java.io.ObjectInputStream#resolveClass(ObjectStreamClass) */
+	@Override
+	protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+		/* The classes whose fields changed are read as the ones of the legacy package */
+		switch (desc.getName()) {
+		case "mmt.core.Passenger":
+			return mmt.core.legacy.Passenger.class;
+		case "mmt.core.Service":
+			return mmt.core.legacy.Service.class;
+		case "mmt.core.TrainStop":
+			return mmt.core.legacy.TrainStop.class;
+		case "mmt.core.Itinerary":
+			return mmt.core.legacy.Itinerary.class;
+		default:
+			return super.resolveClass(desc);
+		}
+	}
+
+	/**
+	 * Restores the timetable and passengers of a train company read from a legacy file.
+	 *
+	 * @param company the train company read.
+	 * @param passengers the passengers, by id.
+	 * @param services the current services, by id.
+	 * @param stations the names of the stations, in the order they were registered.
+	 * @param trainStops the train stops of all services, in the order they were imported.
+	 * @throws InvalidObjectException if the file was not saved in the legacy format.
+	 */
+	static void restore(TrainCompany company, Object passengers, Object services, Object stations, Object trainStops)
+			throws InvalidObjectException {
+		try {
+			Map<mmt.core.legacy.TrainStop, TrainStop> converted = restoreTimetable(company, ((Map<?, ?>) services).values(),
+					(List<?>) stations, (List<?>) trainStops);
+
+			for (Object p : ((Map<?, ?>) passengers).values()) {
+				Passenger passenger = restorePassenger(company, (mmt.core.legacy.Passenger) p, converted);
+				company.restorePassenger(passenger.getId(), passenger);
+			}
+
+		} catch (ClassCastException | NullPointerException | IndexOutOfBoundsException e) {
+			InvalidObjectException invalid = new InvalidObjectException("Unsupported legacy format");
+			invalid.initCause(e);
+			throw invalid;
+		}
+	}
+
+	/**
+	 * Rebuilds the timetable of a train company from the legacy services and train stops.
+	 *
+	 * @return the train stop each legacy train stop is converted into.
+	 */
+	private static Map<mmt.core.legacy.TrainStop, TrainStop> restoreTimetable(TrainCompany company, Collection<?> current,
+			List<?> stations, List<?> trainStops) {
+		Timetable timetable = new Timetable();
+		for (Object station : stations) {
+			timetable.addStation((String) station);
+		}
+
+		/* Services replaced on import still have train stops, which itineraries may use */
+		Set<mmt.core.legacy.Service> services = new LinkedHashSet<mmt.core.legacy.Service>();
+		for (Object trainstop : trainStops) {
+			services.add(((mmt.core.legacy.TrainStop) trainstop).getService());
+		}
+		Set<mmt.core.legacy.Service> currentServices = new LinkedHashSet<mmt.core.legacy.Service>();
+		for (Object service : current) {
+			currentServices.add((mmt.core.legacy.Service) service);
+		}
+		services.addAll(currentServices);
+
+		Map<mmt.core.legacy.TrainStop, TrainStop> converted = new IdentityHashMap<mmt.core.legacy.TrainStop, TrainStop>();
+		for (mmt.core.legacy.Service legacy : services) {
+			Service service = restoreService(timetable, legacy, converted);
+			timetable.addTrainStops(service);
+			if (currentServices.contains(legacy)) timetable.addService(service.getId(), service);
+		}
+
+		timetable.linkTrainStops();
+		timetable.index();
+		company.setTimetable(timetable);
+
+		return converted;
+	}
+
+	/**
+	 * Rebuilds a service: segment i departs from stop i and arrives at stop i + 1.
+	 */
+	private static Service restoreService(Timetable timetable, mmt.core.legacy.Service legacy,
+			Map<mmt.core.legacy.TrainStop, TrainStop> converted) {
+		List<mmt.core.legacy.TrainStop> starts = legacy.getStartTrainStops();
+		List<mmt.core.legacy.TrainStop> ends = legacy.getEndTrainStops();
+		int stops = starts.isEmpty() ? 0 : starts.size() + 1;
+
+		int[] stationIds = new int[stops];
+		int[] times = new int[stops];
+		double[] cumulativeCosts = new double[stops];
+		int[] cumulativeMinutes = new int[stops];
+
+		for (int position = 0; position < stops; position++) {
+			mmt.core.legacy.TrainStop trainstop = position < starts.size() ? starts.get(position) : ends.get(position - 1);
+			stationIds[position] = timetable.addStation(trainstop.getStation().getName()).getId();
+			times[position] = trainstop.getTime().toSecondOfDay();
+
+			if (position > 0) {
+				Segment segment = starts.get(position - 1).getSegment();
+				cumulativeCosts[position] = cumulativeCosts[position - 1] + segment.getCost();
+				cumulativeMinutes[position] = cumulativeMinutes[position - 1] + (int) segment.getDuration().toMinutes();
+			}
+		}
+
+		ServiceTimetable serviceTimetable = new ServiceTimetable(timetable.getStations(), stationIds, times,
+				cumulativeCosts, cumulativeMinutes);
+		serviceTimetable.indexPositions();
+		Service service = new Service(legacy.getId(), legacy.getCost(), serviceTimetable, timetable.getNumberOfTrainStops());
+
+		for (int i = 0; i < starts.size(); i++) {
+			converted.put(starts.get(i), new TrainStop(service, i, false));
+			converted.put(ends.get(i), new TrainStop(service, i + 1, true));
+		}
+
+		return service;
+	}
+
+	/**
+	 * Rebuilds a passenger and its itineraries, without charging them again.
+	 */
+	private static Passenger restorePassenger(TrainCompany company, mmt.core.legacy.Passenger legacy,
+			Map<mmt.core.legacy.TrainStop, TrainStop> converted) throws InvalidObjectException {
+		Passenger passenger;
+		try {
+			passenger = new Passenger(legacy.getId(), legacy.getName(), company);
+		} catch (InvalidPassengerNameException e) {
+			InvalidObjectException invalid = new InvalidObjectException("Invalid passenger name");
+			invalid.initCause(e);
+			throw invalid;
+		}
+		passenger.restore(legacy.getCategory(), legacy.getTotalSpent(), legacy.getLastValues());
+
+		for (Map.Entry<Integer, mmt.core.legacy.Itinerary> entry : legacy.getItineraries().entrySet()) {
+			mmt.core.legacy.Itinerary itinerary = entry.getValue();
+
+			ArrayList<TrainStop> trainstops = new ArrayList<TrainStop>(itinerary.getTrainStops().size());
+			for (mmt.core.legacy.TrainStop trainstop : itinerary.getTrainStops()) {
+				TrainStop restored = converted.get(trainstop);
+				if (restored == null) throw new InvalidObjectException("Invalid train stop of itinerary " + itinerary.getId());
+				trainstops.add(restored);
+			}
+
+			Itinerary restored = new Itinerary(itinerary.getDepartureDate(), trainstops);
+			restored.updateId(itinerary.getId());
+			restored.setPassengerId(itinerary.getPassengerId());
+			passenger.restoreItinerary(entry.getKey(), restored);
+		}
+
+		return passenger;
+	}
+
+}
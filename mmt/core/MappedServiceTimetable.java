@@ -0,0 +1,82 @@
+package mmt.core;
+
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * Timetable of a service read in place from a compiled timetable file (see TimetableFile).
+ * The columns of all services are stored one after the other in the mapped file, so a
+ * service only keeps where its stops start and how many there are. The mapped columns are
+ * never serialized: a service writes the columns of its timetable itself.
+ */
+public class MappedServiceTimetable extends ServiceTimetable {
+
+	/** Serial number for serialization. */
+	private static final long serialVersionUID = 201708301025L;
+
+	/** Station id of each stop of all services. */
+	private final transient IntBuffer _stations;
+
+	/** Time of each stop of all services, in seconds of the day. */
+	private final transient IntBuffer _times;
+
+	/** Cost of the segments up to each stop of all services. */
+	private final transient DoubleBuffer _cumulativeCosts;
+
+	/** Duration of the segments up to each stop of all services, in minutes. */
+	private final transient IntBuffer _cumulativeMinutes;
+
+	/** Position of the first stop of this service in the columns. */
+	private final int _first;
+
+	/** The number of stops of this service. */
+	private final int _numberOfStops;
+
+	/**
+	 * Creates the timetable of a service.
+	 *
+	 * @param registry the stations of the train company.
+	 * @param stations the station id of each stop of all services.
+	 * @param times the time of each stop of all services.
+	 * @param cumulativeCosts the cost of the segments up to each stop of all services.
+	 * @param cumulativeMinutes the duration of the segments up to each stop of all services.
+	 * @param first the position of the first stop of the service in the columns.
+	 * @param numberOfStops the number of stops of the service.
+	 */
+	MappedServiceTimetable(StationRegistry registry, IntBuffer stations, IntBuffer times, DoubleBuffer cumulativeCosts,
+			IntBuffer cumulativeMinutes, int first, int numberOfStops) {
+		super(registry);
+		_stations = stations;
+		_times = times;
+		_cumulativeCosts = cumulativeCosts;
+		_cumulativeMinutes = cumulativeMinutes;
+		_first = first;
+		_numberOfStops = numberOfStops;
+	}
+
+	@Override
+	int getNumberOfStops() {
+		return _numberOfStops;
+	}
+
+	@Override
+	int getStationId(int position) {
+		return _stations.get(_first + position);
+	}
+
+	@Override
+	int getTime(int position) {
+		return _times.get(_first + position);
+	}
+
+	@Override
+	double getCumulativeCost(int position) {
+		return _cumulativeCosts.get(_first + position);
+	}
+
+	@Override
+	int getCumulativeMinutes(int position) {
+		return _cumulativeMinutes.get(_first + position);
+	}
+
+}
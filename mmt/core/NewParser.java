@@ -1,34 +1,61 @@
 package mmt.core;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
-import java.util.Comparator;
-
-import java.time.LocalTime;
-import java.time.LocalDate;
-import java.time.Duration;
-import java.util.Date;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
 import java.util.ArrayList;
-import java.util.Locale;
 import java.util.Arrays;
-import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
-import java.text.SimpleDateFormat;
-
-import java.io.IOException;
-import java.text.ParseException;
 import mmt.core.exceptions.ImportFileException;
 import mmt.core.exceptions.InvalidPassengerNameException;
 import mmt.core.exceptions.NoSuchServiceIdException;
 import mmt.core.exceptions.NoSuchPassengerIdException;
 
+/**
+ * Imports the passengers, services and itineraries of a file in stages:
+ *
+ * <ol>
+ * <li>the file is split into ranges of lines, which are parsed in parallel (ImportChunk);</li>
+ * <li>the records of the ranges are merged into the train company in file order, so
+ *     passengers and stations get the same ids as in a sequential import, and the
+ *     services of each itinerary are the ones imported before it;</li>
+ * <li>the train stops of the new services are linked with each other in parallel;</li>
+ * <li>the itineraries are built in parallel, one passenger at a time, and each
+ *     passenger gets them in file order.</li>
+ * </ol>
+ *
+ * As in a sequential import, a line that cannot be parsed stops the import, with the
+ * lines before it already imported and no itinerary added.
+ *
+ * The services are added to a copy of the timetable of the train company, which
+ * replaces it once they are merged and linked, so itineraries can be searched in the
+ * current timetable throughout the import.
+ */
 public class NewParser {
 
+	/** Bytes of the import file parsed by each task. */
+	private static final long CHUNK_SIZE = 1 << 22;
+
 	/** The train company associated with the parser. */
 	private TrainCompany _trainCompany;
 
-	/** The built itineraries to be sorted. */
-	private ArrayList<Itinerary> _built = new ArrayList<Itinerary>();
+	/** Whether services are imported, or the train company already has its timetable. */
+	private boolean _parseServices;
+
+	/** The timetable the services are added to, and the itineraries built from. */
+	private Timetable _timetable;
+
+	/** The itineraries merged, to be built once all services are imported. */
+	private ArrayList<ImportChunk.ItineraryRecord> _built = new ArrayList<ImportChunk.ItineraryRecord>();
 
 	/**
 	 * Creates a parser which has associated a train company.
@@ -36,7 +63,19 @@ public class NewParser {
 	 * @param trainCompany associated with the parser.
 	 */
 	public NewParser(TrainCompany trainCompany) {
+		this(trainCompany, true);
+	}
+
+	/**
+	 * Creates a parser which has associated a train company.
+	 *
+	 * @param trainCompany associated with the parser.
+	 * @param parseServices false to skip the services of the file, when the train company
+	 *        already has the same timetable (opened from a compiled timetable file).
+	 */
+	public NewParser(TrainCompany trainCompany, boolean parseServices) {
 		_trainCompany = trainCompany;
+		_parseServices = parseServices;
 	}
 
 	/**
@@ -47,76 +86,116 @@ public class NewParser {
 	 */
 	public void parseFile(String fileName) throws ImportFileException {
 
-		try (BufferedReader reader = new BufferedReader(new FileReader(fileName))) {
-			String line;
-
-			while ((line = reader.readLine()) != null) {
-				parseLine(line);
-			}
+		List<ImportChunk> chunks;
+		try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+			chunks = parseChunks(channel);
 		} catch (IOException ioe) {
 			throw new ImportFileException(ioe);
 		}
+
+		/* Services are added to a new version of the timetable */
+		_timetable = _trainCompany.getTimetable();
+		if (_parseServices) _timetable = _timetable.copy();
+
+		/* Merges the ranges in file order, stopping at a line that could not be parsed */
 		try {
+			for (ImportChunk chunk : chunks) {
+				merge(chunk);
+			}
+		} finally {
 
-			/* Adds the parsed itineraries to their respective passengers, if there are any */
-			for (Itinerary itinerary : _built) {
-				_trainCompany.getPassenger(itinerary.getPassengerId()).addItinerary(itinerary);
+			/* Publishes the timetable, with the services merged, once it is complete */
+			if (_parseServices) {
+				_timetable.linkTrainStops();
+				_timetable.index();
+				_trainCompany.setTimetable(_timetable);
 			}
-			
-		} catch (NoSuchPassengerIdException e) {
-			e.printStackTrace();
 		}
 
+		/* Adds the parsed itineraries to their respective passengers, if there are any */
+		addItineraries();
+
 	}
 
+	/**
+	 * Splits an import file into ranges and parses them in parallel.
+	 *
+	 * @param channel the import file.
+	 * @return the parsed ranges, in file order.
+	 * @throws IOException if errors occur in file reading.
+	 */
+	private List<ImportChunk> parseChunks(FileChannel channel) throws IOException {
+		long size = channel.size();
+		int count = (int) Math.max(1, (size + CHUNK_SIZE - 1) / CHUNK_SIZE);
+
+		try {
+			return IntStream.range(0, count).parallel().mapToObj(k -> {
+				long start = k * CHUNK_SIZE;
+				long end = k == count - 1 ? Long.MAX_VALUE : start + CHUNK_SIZE;
+
+				ImportChunk chunk = new ImportChunk();
+				try {
+					chunk.parse(new ImportScanner(channel, start, end), _parseServices);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+				return chunk;
+			}).collect(Collectors.toList());
+
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+	}
 
 	/**
-	 * Parses a given line of a data file.
+	 * Adds the records of a range to the train company, in the order of their lines.
 	 *
-	 * @param line the line to parse.
-	 * @throws ImportFileException if errors occur in file reading.
+	 * @param chunk the parsed range.
+	 * @throws ImportFileException if a line of the range could not be parsed.
 	 */
-	private void parseLine(String line) throws ImportFileException {
-		String[] components = line.split("\\|");
+	private void merge(ImportChunk chunk) throws ImportFileException {
+
+		/* The station id of each station of the range, once registered */
+		int[] stations = new int[chunk.getNumberOfStations()];
+		Arrays.fill(stations, -1);
 
-		switch (components[0]) {
-			case "PASSENGER":
-				parsePassenger(components);
-				break;
+		for (Object record : chunk.getRecords()) {
+			if (record instanceof String) {
+				mergePassenger((String) record);
 
-			case "SERVICE":
-				parseService(components);
-				break;
+			} else if (record instanceof ImportChunk.ServiceRecord) {
+				mergeService(chunk, (ImportChunk.ServiceRecord) record, stations);
 
-			case "ITINERARY":
-				parseItinerary(components);
-				break;
+			} else if (record instanceof ImportChunk.ItineraryRecord) {
+				mergeItinerary((ImportChunk.ItineraryRecord) record);
 
-		 default:
-			throw new ImportFileException("invalid type of line: " + components[0]);
+			} else {
+				fail((Exception) record);
+			}
 		}
 	}
 
 	/**
-	 * Parses a passenger, i.e. grabs its properties and adds it to the train company.
+	 * Rethrows the exception of a line that could not be parsed.
 	 *
-	 * @param components the properties required for the passenger.
-	 * @throws ImportFileException if errors occur in file reading.
+	 * @param e the exception.
+	 * @throws ImportFileException if the line could not be parsed.
 	 */
-	private void parsePassenger(String[] components) throws ImportFileException {
-		if (components.length != 2) {
-			throw new ImportFileException("invalid number of arguments in passenger line: " + components.length);
-		}
+	private void fail(Exception e) throws ImportFileException {
+		if (e instanceof ImportFileException) throw (ImportFileException) e;
+		throw (RuntimeException) e;
+	}
+
+	/**
+	 * Adds a passenger to the train company.
+	 *
+	 * @param name the passenger's name.
+	 */
+	private void mergePassenger(String name) {
 
 		/* Registers the passenger */
 		try {
 
-			/* Grabs the full name of the passenger */
-			String name = "";
-			for (int i = 1; i < components.length; i++) {
-				name = name + components[i];
-			}
-
 			/* Creates a new passenger for the Train Company */
 			int id = _trainCompany.getNextPassengerId();
 			Passenger p = new Passenger(id, name, _trainCompany);
@@ -127,127 +206,102 @@ public class NewParser {
 		}
 	}
 
-
 	/**
-	 * Parses a service, i.e. grabs its properties and adds it to the app.
+	 * Adds a service to the timetable, registering its stations if new.
 	 *
-	 * @param components the properties required for the service.
+	 * @param chunk the range of the service.
+	 * @param record the service.
+	 * @param stations the station id of each station of the range, or -1 if not registered yet.
 	 */
-	private void parseService(String[] components) {
-
-		/* Service properties */
-		double cost = Double.parseDouble(components[2]);
-		int serviceId = Integer.parseInt(components[1]);
-
-		/* Creates the Service and adds it to Train Company */
-		Service service = new Service(serviceId, cost);
-
-		/* Calculate cost of each segment */
-		int totalSegments = ( components.length - 3 ) / 2;
-		double segmentCost = cost / totalSegments;
-
-		/* Adds the segments of this Service */
-		for (int i = 3; i+2 < components.length; i += 2) {
-
-			/* Segment Duration */
-			String startTime = components[i];
-			LocalTime stime = LocalTime.parse(startTime);
-
-			String endTime = components[i + 2];
-			LocalTime etime = LocalTime.parse(endTime);
-
-			Duration duration = Duration.between(stime, etime);
-
-			/* Segment Station Names */
-			String startStationName = components[i + 1];
-			String endStationName = components[i + 3];
-
-			/* Segment Train Stations */
-			Station startStation = new Station(startStationName);
-			Station endStation = new Station(endStationName);
-
-			/* Builds Segment */
-			Segment segment = new Segment(segmentCost, duration);
-
-			/* Builds Train Stops */
-			TrainStop start = new TrainStop(startStation, stime, segment, service);
-			TrainStop end = new TrainStop(endStation, etime, segment, service);
-
-			/* Adds Next Train Stop */
-			start.addNextTrainStop(end);
-
-			/* Adds train stops to the service */
-			service.addStart( start );
-			service.addEnd( end );
-
-			/* Adds Train Stops to the TrainCompany */
-			_trainCompany.addTrainStop( start );
-			if ( i+4 >= components.length ) { 
-				_trainCompany.addTrainStop( end );
+	private void mergeService(ImportChunk chunk, ImportChunk.ServiceRecord record, int[] stations) {
+
+		/* Stop train stations, registered if new */
+		int[] stationIds = record.getStations();
+		for (int position = 0; position < stationIds.length; position++) {
+			int station = stationIds[position];
+			if (stations[station] < 0) {
+				stations[station] = _timetable.addStation(chunk.getStationName(station)).getId();
 			}
+			stationIds[position] = stations[station];
+		}
 
-			/* Adds start train station */
-			if ( !_trainCompany.checkStation(startStationName) ) {
-				_trainCompany.addStation(startStationName);
-			}
+		/* Creates the Service, its train stops get consecutive ids */
+		ServiceTimetable timetable = new ServiceTimetable(_timetable.getStations(), stationIds, record.getTimes(),
+				record.getCumulativeCosts(), record.getCumulativeMinutes());
+		timetable.indexPositions();
+		Service service = new Service(record.getId(), record.getCost(), timetable, _timetable.getNumberOfTrainStops());
 
-			/* Adds end train station */
-			if ( !_trainCompany.checkStation(endStationName) ) {
-				_trainCompany.addStation(endStationName);
-			}
-	
-		}
+		/* Adds Train Stops to the timetable, linked once all services are added */
+		_timetable.addTrainStops(service);
 
-		/* Adds the service to the train company */
-		_trainCompany.addService(serviceId, service);
+		/* Adds the service to the timetable */
+		_timetable.addService(record.getId(), service);
 	}
 
 	/**
-	 * Parses an itinerary, i.e. grabs its properties and adds it to the app.
+	 * Looks up the services of an itinerary, as they are at its line.
 	 *
-	 * @param components the properties required for the itinerary.
-	 * @throws ImportFileException if errors occur in file reading.
+	 * @param record the itinerary.
+	 * @throws ImportFileException if a segment of the itinerary could not be parsed.
 	 */
-	private void parseItinerary(String[] components) throws ImportFileException {
-		try {
-			if (components.length < 4)
-				throw new ImportFileException("Invalid number of elements in itinerary line: " + components.length);
-
-			ItineraryBuilder builder = new ItineraryBuilder(_trainCompany);
-			int passengerId = Integer.parseInt(components[1]);
-			String date = components[2];
-
-			SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd");
-	
-			Date departureDate = format.parse(date);
-
-			ArrayList<Service> services = new ArrayList<Service>();
-			ArrayList<String> stations = new ArrayList<String>();
-			ArrayList<Itinerary> build = new ArrayList<Itinerary>();
+	private void mergeItinerary(ImportChunk.ItineraryRecord record) throws ImportFileException {
+		if (record.getDateFailure() != null) {
+			record.getDateFailure().printStackTrace();
+			return;
+		}
 
-			for (int i = 3; i < components.length; i++) {
+		ArrayList<Service> services = new ArrayList<Service>();
+		try {
+			for (int serviceId : record.getServices()) {
+				Service service = _timetable.getService(serviceId);
+				service.getTimetable().indexPositions();
+				services.add(service);
+			}
+		} catch (NoSuchServiceIdException e) {
+			e.printStackTrace();
+			return;
+		}
 
-				String segmentDescription[] = components[i].split("/");
+		if (record.getFailure() != null) fail(record.getFailure());
 
-				int serviceId = Integer.parseInt(segmentDescription[0]);
-				Service service = _trainCompany.getService(serviceId);
-				services.add(service);
-				if (i == 3) {
-					String departureTrainStop = segmentDescription[1];
-					stations.add(departureTrainStop);
-				}
+		record.setResolvedServices(services);
+		_built.add(record);
+	}
 
-				String arrivalTrainStop = segmentDescription[2];
-				stations.add(arrivalTrainStop);
+	/**
+	 * Builds the merged itineraries and adds them to their passengers. Each passenger's
+	 * itineraries are built and added in file order, and different passengers in parallel.
+	 */
+	private void addItineraries() {
 
+		/* As in a sequential import, the itineraries from the first one of a missing passenger on are not added */
+		Map<Passenger, List<ImportChunk.ItineraryRecord>> byPassenger =
+				new LinkedHashMap<Passenger, List<ImportChunk.ItineraryRecord>>();
+		try {
+			for (ImportChunk.ItineraryRecord record : _built) {
+				Passenger passenger = _trainCompany.getPassenger(record.getPassengerId());
+				byPassenger.computeIfAbsent(passenger, p -> new ArrayList<ImportChunk.ItineraryRecord>()).add(record);
 			}
+		} catch (NoSuchPassengerIdException e) {
+			e.printStackTrace();
+		}
 
-			_built.add(builder.buildItinerary(departureDate, services, stations, passengerId));
+		try {
+			byPassenger.entrySet().parallelStream().forEach(entry -> {
+				ItineraryBuilder builder = new ItineraryBuilder(_timetable);
+				ArrayList<Itinerary> itineraries = new ArrayList<Itinerary>();
 
-		} catch (NoSuchServiceIdException e) {
-			e.printStackTrace();
-		} catch (ParseException e) {
-			e.printStackTrace();
+				for (ImportChunk.ItineraryRecord record : entry.getValue()) {
+					itineraries.add(builder.buildItinerary(record.getDepartureDate(), record.getResolvedServices(), record.getStations(),
+							record.getPassengerId()));
+				}
+				entry.getKey().addItineraries(itineraries);
+				_trainCompany.passengerChanged(entry.getKey().getId());
+			});
+		} catch (RuntimeException e) {
+			/* A failure in another thread is rethrown wrapped in a copy of itself */
+			if (e.getCause() != null && e.getCause().getClass() == e.getClass()) throw (RuntimeException) e.getCause();
+			throw e;
 		}
 	}
-}
\ No newline at end of file
+}
@@ -3,6 +3,7 @@ package mmt.core;
 import java.util.Locale;
 import java.util.TreeMap;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.Collections;
@@ -21,6 +22,10 @@ import mmt.core.exceptions.InvalidPassengerNameException;
  * and depending on their cost, be part of different categories. A Passenger's name may be changed,
  * but other attributes cannot be changed manually.
  *
+ * A passenger may be read and changed by several threads: its methods hold its lock, and
+ * the ticket office holds it while a change is applied and recorded in the journal, so
+ * the changes of each passenger are recorded in the order they were made.
+ *
  * @author Grupo 22
  * @version 2.0
  */
@@ -67,7 +72,7 @@ public class Passenger implements java.io.Serializable {
 	 *
 	 * @return if a name is valid (non-null and not an empty string), returns true; else returns false.
 	 */
-	boolean validName(String name) {
+	static boolean validName(String name) {
 		return name != null && !name.isEmpty();
 	}
 
@@ -85,7 +90,7 @@ public class Passenger implements java.io.Serializable {
 	 *
 	 * @return the passenger's name.
 	 */
-	final String getName() {
+	final synchronized String getName() {
 		return _name;
 	}
 
@@ -94,7 +99,7 @@ public class Passenger implements java.io.Serializable {
 	 *
 	 * @return the passenger's associated number of itineraries.
 	 */
-	int getNumberOfItineraries() {
+	synchronized int getNumberOfItineraries() {
 		return _itineraries.size();
 	}
 
@@ -103,7 +108,7 @@ public class Passenger implements java.io.Serializable {
 	 *
 	 * @return the last 10 itinerary values.
 	 */
-	double getLastValues() {
+	synchronized double getLastValues() {
 		double result = 0;
 
 		for ( double value : _lastValues ) {
@@ -118,7 +123,7 @@ public class Passenger implements java.io.Serializable {
 	 *
 	 * @param newname the new name of the passenger (non-null, must not be an empty string).
 	 */
-	void setName(String newname) throws InvalidPassengerNameException {
+	synchronized void setName(String newname) throws InvalidPassengerNameException {
 		if (validName(newname)) {
 			_name = newname;
 		} else {
@@ -131,16 +136,87 @@ public class Passenger implements java.io.Serializable {
 	 *
 	 * @param category the passenger's new category.
 	 */
-	void setCategory(Category category) {
+	synchronized void setCategory(Category category) {
 		_category = category;
 	}
 
+	/**
+	 * Returns the passenger's category.
+	 *
+	 * @return the passenger's category.
+	 */
+	synchronized Category getCategory() {
+		return _category;
+	}
+
+	/**
+	 * Returns the money spent by the passenger.
+	 *
+	 * @return the passenger's total spent money.
+	 */
+	synchronized double getTotalSpent() {
+		return _totalSpent;
+	}
+
+	/**
+	 * Returns the values of the passenger's last 10 itineraries, oldest first.
+	 *
+	 * @return the last 10 itinerary values.
+	 */
+	synchronized double[] getRecentValues() {
+		double[] values = new double[_lastValues.size()];
+		int i = 0;
+
+		for ( double value : _lastValues ) {
+			values[i++] = value;
+		}
+
+		return values;
+	}
+
+	/**
+	 * Returns the passenger's itineraries, by the number they were bought in. The map is a
+	 * view, so it is read while holding the passenger's lock or while no clerk can change it.
+	 *
+	 * @return the passenger's itineraries.
+	 */
+	Map<Integer, Itinerary> getItineraries() {
+		return Collections.unmodifiableMap(_itineraries);
+	}
+
+	/**
+	 * Restores the spending history of a passenger read from a snapshot.
+	 *
+	 * @param category the passenger's category.
+	 * @param totalSpent the passenger's total spent money.
+	 * @param recentValues the values of the passenger's last 10 itineraries, oldest first.
+	 */
+	synchronized void restore(Category category, double totalSpent, double[] recentValues) {
+		_category = category;
+		_totalSpent = totalSpent;
+		_lastValues.clear();
+
+		for ( double value : recentValues ) {
+			_lastValues.add(value);
+		}
+	}
+
+	/**
+	 * Restores an itinerary read from a snapshot, without charging it again.
+	 *
+	 * @param number the number the itinerary was bought in.
+	 * @param itinerary the itinerary.
+	 */
+	synchronized void restoreItinerary(int number, Itinerary itinerary) {
+		_itineraries.put(number, itinerary);
+	}
+
 	/**
 	 * Returns a String description of a passenger.
 	 * 
 	 * @return String description of a passenger.
 	 */
-	public String toString() {
+	public synchronized String toString() {
 
 		/* Basic attributes */
 		int id = getId();
@@ -165,7 +241,7 @@ public class Passenger implements java.io.Serializable {
 	 * 
 	 * @param itinerary bought itinerary.
 	 */
-	void addItinerary(Itinerary itinerary) {
+	synchronized void addItinerary(Itinerary itinerary) {
 
 		/* Update Number of Itineraries */
 		int n = getNumberOfItineraries();
@@ -193,12 +269,48 @@ public class Passenger implements java.io.Serializable {
 
 	}
 
+	/**
+	 * Adds itineraries bought by this passenger, in the order they were bought. Each
+	 * itinerary is charged with the discount of the category the passenger had when it
+	 * was bought, as by addItinerary, but the passenger's spending and category are only
+	 * updated once.
+	 *
+	 * @param itineraries the bought itineraries.
+	 */
+	synchronized void addItineraries(List<Itinerary> itineraries) {
+		CategoryManager categories = _trainCompany.getCategories();
+		Category category = _category;
+		double totalSpent = _totalSpent;
+
+		for (Itinerary itinerary : itineraries) {
+
+			/* Update Number of Itineraries */
+			int n = getNumberOfItineraries() + 1;
+			itinerary.updateId(n);
+			_itineraries.put(n, itinerary);
+
+			/* Calculates the value paid for the itinerary and saves it */
+			double value = itinerary.getCost();
+			if (_lastValues.size() == 10) {
+				_lastValues.poll();
+			}
+			_lastValues.add(value);
+
+			/* Spent money, with the category's discount at the time */
+			totalSpent = totalSpent + value * ((100 - category.getDiscountPercentage()) / 100);
+			category = categories.getCategory(getLastValues());
+		}
+
+		_totalSpent = totalSpent;
+		_category = category;
+	}
+
 	/**
 	 * Displays all the itineraries bought by this passenger.
 	 * 
 	 * @return a string with all the itineraries description.
 	 */
-	String showItineraries() {
+	synchronized String showItineraries() {
 
 		/* Holds Results */
 		StringBuffer buf = new StringBuffer();
@@ -232,7 +344,7 @@ public class Passenger implements java.io.Serializable {
 	 * 
 	 * @return a string with all the itineraries description.
 	 */
-	Duration getItineraryDuration() {
+	synchronized Duration getItineraryDuration() {
 		Duration duration = Duration.ZERO;
 		for ( Map.Entry<Integer, Itinerary> entry : _itineraries.entrySet() ) {
 			Itinerary it = entry.getValue();
@@ -0,0 +1,158 @@
+package mmt.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * The passengers of a train company, indexed by identifier. Identifiers are assigned in
+ * sequence, so the passengers are kept in shards of consecutive identifiers, each a dense
+ * array: finding a passenger is indexing its shard, without locking or searching.
+ *
+ * Scans of all the passengers are split by shard and run in parallel, and their results
+ * are merged in shard order, which is identifier order.
+ *
+ * Passengers may be added and looked up by several threads at once. Shards are added
+ * under the lock of the store, and published with the array of shards; each slot of a
+ * shard is read and written atomically.
+ */
+class PassengerStore {
+
+	/** Bits of the position of a passenger in its shard. */
+	private static final int SHARD_BITS = 10;
+
+	/** The number of identifiers in each shard. */
+	static final int SHARD_SIZE = 1 << SHARD_BITS;
+
+	/** The number of shards above which scans run in parallel. */
+	private static final int PARALLEL_SHARDS = 4;
+
+	/** The shards, indexed by identifier divided by the shard size (null if none was added to it). */
+	private volatile AtomicReferenceArray<Passenger>[] _shards = newShards(0);
+
+	/**
+	 * Creates an array of shards.
+	 */
+	@SuppressWarnings("unchecked")
+	private static AtomicReferenceArray<Passenger>[] newShards(int length) {
+		return (AtomicReferenceArray<Passenger>[]) new AtomicReferenceArray<?>[length];
+	}
+
+	/**
+	 * Returns a passenger.
+	 *
+	 * @param id the passenger's identifier.
+	 * @return the passenger, or null if it does not exist.
+	 */
+	Passenger get(int id) {
+		AtomicReferenceArray<Passenger>[] shards = _shards;
+		int shard = id >>> SHARD_BITS;
+		if (shard >= shards.length || shards[shard] == null) return null;
+		return shards[shard].get(id & (SHARD_SIZE - 1));
+	}
+
+	/**
+	 * Adds a passenger, replacing the one with the same identifier.
+	 *
+	 * @param id the passenger's identifier (not negative).
+	 * @param p the passenger.
+	 */
+	void put(int id, Passenger p) {
+		shard(id >>> SHARD_BITS).set(id & (SHARD_SIZE - 1), p);
+	}
+
+	/**
+	 * Returns a shard, adding it if it does not exist.
+	 */
+	private AtomicReferenceArray<Passenger> shard(int shard) {
+		AtomicReferenceArray<Passenger>[] shards = _shards;
+		if (shard < shards.length && shards[shard] != null) return shards[shard];
+
+		synchronized (this) {
+			shards = _shards;
+			if (shard >= shards.length) {
+				shards = Arrays.copyOf(shards, Math.max(shard + 1, 2 * shards.length));
+			} else if (shards[shard] != null) {
+				return shards[shard];
+			} else {
+				shards = shards.clone();
+			}
+			shards[shard] = new AtomicReferenceArray<Passenger>(SHARD_SIZE);
+			_shards = shards;
+			return shards[shard];
+		}
+	}
+
+	/**
+	 * Removes every passenger.
+	 */
+	synchronized void clear() {
+		_shards = newShards(0);
+	}
+
+	/**
+	 * Returns the passengers whose identifiers are in a range.
+	 *
+	 * @param first the first identifier of the range.
+	 * @param end the identifier after the last one of the range.
+	 * @return the passengers in the range, ordered by identifier.
+	 */
+	List<Passenger> get(int first, int end) {
+		AtomicReferenceArray<Passenger>[] shards = _shards;
+		ArrayList<Passenger> passengers = new ArrayList<Passenger>();
+
+		long last = Math.min(end, (long) shards.length << SHARD_BITS);
+		for (int id = Math.max(first, 0); id < last; id++) {
+			AtomicReferenceArray<Passenger> shard = shards[id >>> SHARD_BITS];
+			if (shard == null) {
+				id |= SHARD_SIZE - 1;
+				continue;
+			}
+
+			Passenger p = shard.get(id & (SHARD_SIZE - 1));
+			if (p != null) passengers.add(p);
+		}
+
+		return passengers;
+	}
+
+	/**
+	 * Applies a function to every passenger, shard by shard in parallel.
+	 *
+	 * @param function the function, which may be applied by several threads at once.
+	 * @return the results which are not null, ordered by the identifier of their passenger.
+	 */
+	<R> List<R> map(Function<Passenger, R> function) {
+		AtomicReferenceArray<Passenger>[] shards = _shards;
+
+		IntStream indexes = IntStream.range(0, shards.length);
+		if (shards.length > PARALLEL_SHARDS) indexes = indexes.parallel();
+
+		return indexes.mapToObj((int shard) -> map(shards[shard], function))
+				.flatMap(List::stream)
+				.collect(Collectors.toList());
+	}
+
+	/**
+	 * Applies a function to the passengers of a shard.
+	 */
+	private static <R> List<R> map(AtomicReferenceArray<Passenger> shard, Function<Passenger, R> function) {
+		if (shard == null) return Collections.emptyList();
+
+		ArrayList<R> results = new ArrayList<R>();
+		for (int i = 0; i < shard.length(); i++) {
+			Passenger p = shard.get(i);
+			if (p == null) continue;
+
+			R result = function.apply(p);
+			if (result != null) results.add(result);
+		}
+		return results;
+	}
+
+}
@@ -0,0 +1,172 @@
+package mmt.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+
+import java.time.LocalTime;
+
+/**
+ * Round based router (RAPTOR). Round k finds the earliest arrival at every station using
+ * at most k services, so the itineraries found at the end station form the Pareto set of
+ * (arrival time, number of services) options.
+ *
+ * The number of rounds, and therefore the work done per query, is capped by the maximum
+ * number of transfers.
+ */
+public class RaptorRouter implements Router {
+
+	/** Maximum number of transfers used when none is given. */
+	public static final int DEFAULT_MAX_TRANSFERS = 3;
+
+	/** Maximum number of transfers of an itinerary. */
+	private int _maxTransfers;
+
+	/**
+	 * Constructor.
+	 */
+	public RaptorRouter() {
+		this(DEFAULT_MAX_TRANSFERS);
+	}
+
+	/**
+	 * Constructor.
+	 *
+	 * @param maxTransfers the maximum number of transfers of an itinerary.
+	 */
+	public RaptorRouter(int maxTransfers) {
+		_maxTransfers = maxTransfers;
+	}
+
+	/**
+	 * Finds the itineraries which are not beaten both in arrival time and in number of services.
+	 *
+	 * @see mmt.core.Router#search(Timetable, String, String, Date, LocalTime)
+	 */
+	public ArrayList<Itinerary> search(Timetable timetable, String startStation, String endStation,
+			Date departureDate, LocalTime departureTime) {
+
+		ArrayList<Itinerary> result = new ArrayList<Itinerary>();
+		ConnectionTable table = timetable.getConnections();
+
+		int start = table.getStationId(startStation);
+		int end = table.getStationId(endStation);
+
+		if (start < 0 || end < 0 || start == end) return result;
+
+		int stations = table.getNumberOfStations();
+		int rounds = _maxTransfers + 1;
+
+		/* Arrival at each station using at most k services, for every round k */
+		int[][] arrivals = new int[rounds + 1][stations];
+
+		/* Trip and boarding position used to reach each station in each round (-1 if carried over) */
+		int[][] trips = new int[rounds + 1][stations];
+		int[][] boardings = new int[rounds + 1][stations];
+
+		/* Best arrival at each station over all rounds */
+		int[] best = new int[stations];
+
+		Arrays.fill(arrivals[0], Integer.MAX_VALUE);
+		Arrays.fill(trips[0], -1);
+		Arrays.fill(best, Integer.MAX_VALUE);
+		arrivals[0][start] = departureTime.toSecondOfDay();
+		best[start] = arrivals[0][start];
+
+		boolean[] marked = new boolean[stations];
+		marked[start] = true;
+
+		/* Earliest marked position of each trip in the current round */
+		int[] queue = new int[table.getNumberOfTrips()];
+		Arrays.fill(queue, Integer.MAX_VALUE);
+
+		for (int k = 1; k <= rounds; k++) {
+
+			arrivals[k] = Arrays.copyOf(arrivals[k - 1], stations);
+			Arrays.fill(trips[k], -1);
+
+			/* Collects the trips serving the stations marked in the previous round */
+			ArrayList<Integer> queued = new ArrayList<Integer>();
+			for (int station = 0; station < stations; station++) {
+				if (!marked[station]) continue;
+				marked[station] = false;
+
+				for (int e = table.getFirstTripEntry(station); e < table.getLastTripEntry(station); e++) {
+					int trip = table.getEntryTrip(e);
+					int position = table.getEntryPosition(e);
+					if (queue[trip] == Integer.MAX_VALUE) queued.add(trip);
+					if (position < queue[trip]) queue[trip] = position;
+				}
+			}
+
+			if (queued.isEmpty()) break;
+
+			/* Rides each queued trip from its first reachable stop */
+			for (int trip : queued) {
+				int boarding = -1;
+				int previous = Integer.MIN_VALUE;
+
+				for (int position = queue[trip]; position < table.getNumberOfStops(trip); position++) {
+					int station = table.getStopStation(trip, position);
+					int time = table.getStopTime(trip, position);
+
+					/* Stops running over midnight cannot be ordered within a single day */
+					if (time < previous) break;
+					previous = time;
+
+					if (boarding >= 0 && time < Math.min(best[station], best[end])) {
+						arrivals[k][station] = time;
+						best[station] = time;
+						trips[k][station] = trip;
+						boardings[k][station] = boarding;
+						marked[station] = true;
+					}
+
+					if (boarding < 0 && arrivals[k - 1][station] <= time) {
+						boarding = position;
+					}
+				}
+
+				queue[trip] = Integer.MAX_VALUE;
+			}
+
+			/* A better arrival at the end station is a new Pareto option */
+			if (trips[k][end] >= 0) {
+				result.add(buildItinerary(timetable, table, trips, boardings, k, start, end, departureDate));
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Walks back the rounds to rebuild the itinerary reaching the end station in a given round.
+	 *
+	 * @return the itinerary.
+	 */
+	private Itinerary buildItinerary(Timetable timetable, ConnectionTable table, int[][] trips, int[][] boardings,
+			int round, int start, int end, Date departureDate) {
+
+		ArrayList<Service> services = new ArrayList<Service>();
+		ArrayList<String> stations = new ArrayList<String>();
+		stations.add(table.getStationName(end));
+
+		int station = end;
+		for (int k = round; k > 0 && station != start; k--) {
+			int trip = trips[k][station];
+			if (trip < 0) continue;
+
+			services.add(table.getService(trip));
+			station = table.getStopStation(trip, boardings[k][station]);
+			stations.add(table.getStationName(station));
+		}
+
+		Collections.reverse(services);
+		Collections.reverse(stations);
+
+		ItineraryBuilder builder = new ItineraryBuilder(timetable);
+		return builder.buildItinerary(departureDate, services, stations);
+	}
+
+}
@@ -0,0 +1,25 @@
+package mmt.core;
+
+import java.util.ArrayList;
+import java.util.Date;
+
+import java.time.LocalTime;
+
+/**
+ * Strategy used by a train company to look up the itineraries between two stations.
+ */
+public interface Router {
+
+	/**
+	 * Looks up the itineraries between two stations.
+	 *
+	 * @param timetable the timetable whose services are searched.
+	 * @param startStation the name of the station where the itinerary starts.
+	 * @param endStation the name of the station where the itinerary ends.
+	 * @param departureDate the date of the itinerary.
+	 * @param departureTime the minimum time when the itinerary should start.
+	 * @return the itinerary options found.
+	 */
+	ArrayList<Itinerary> search(Timetable timetable, String startStation, String endStation,
+			Date departureDate, LocalTime departureTime);
+}
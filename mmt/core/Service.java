@@ -1,9 +1,16 @@
 package mmt.core;
 
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import java.util.AbstractList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Iterator;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
 
 import java.time.LocalTime;
@@ -29,21 +36,77 @@ public class Service implements java.io.Serializable, Visitable {
 	/** The cost of this service. */
 	private double _cost;
 
-	/** The departure train stops that compose this service. */
-	private ArrayList<TrainStop> _startTrainStops = new ArrayList<TrainStop>();
+	/** The stops of this service (serialized as flat columns, see writeObject). */
+	private transient ServiceTimetable _timetable;
 
-	/** The arrival train stops that compose this service. */
-	private ArrayList<TrainStop> _endTrainStops = new ArrayList<TrainStop>();
+	/** The identifier of the first train stop of this service (the others follow in order). */
+	private int _firstTrainStopId;
 
 	/**
 	 * Creates a service that is associated with an id and cost.
 	 *
 	 * @param id the new service's unique identifier.
 	 * @param cost the new service's cost.
+	 * @param timetable the stops of the new service.
+	 * @param firstTrainStopId the identifier of the new service's first train stop.
 	 */
-	Service(int id, double cost) {
+	Service(int id, double cost, ServiceTimetable timetable, int firstTrainStopId) {
 		_id = id;
 		_cost = cost;
+		_timetable = timetable;
+		_firstTrainStopId = firstTrainStopId;
+	}
+
+	/**
+	 * Writes this service, with the columns of its timetable as flat arrays. The index of
+	 * the stops at each station is not written; it is built again when it is needed.
+	 */
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		out.defaultWriteObject();
+
+		int stops = _timetable.getNumberOfStops();
+		int[] stations = new int[stops];
+		int[] times = new int[stops];
+		double[] cumulativeCosts = new double[stops];
+		int[] cumulativeMinutes = new int[stops];
+
+		for (int position = 0; position < stops; position++) {
+			stations[position] = _timetable.getStationId(position);
+			times[position] = _timetable.getTime(position);
+			cumulativeCosts[position] = _timetable.getCumulativeCost(position);
+			cumulativeMinutes[position] = _timetable.getCumulativeMinutes(position);
+		}
+
+		out.writeObject(_timetable.getRegistry());
+		out.writeObject(stations);
+		out.writeObject(times);
+		out.writeObject(cumulativeCosts);
+		out.writeObject(cumulativeMinutes);
+	}
+
+	/**
+	 * Reads this service, and rebuilds its timetable from the columns.
+	 */
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+
+		StationRegistry registry = (StationRegistry) in.readObject();
+		int[] stations = (int[]) in.readObject();
+		int[] times = (int[]) in.readObject();
+		double[] cumulativeCosts = (double[]) in.readObject();
+		int[] cumulativeMinutes = (int[]) in.readObject();
+
+		if (times.length != stations.length || cumulativeCosts.length != stations.length
+				|| cumulativeMinutes.length != stations.length) {
+			throw new InvalidObjectException("Invalid timetable of service " + _id);
+		}
+		for (int station : stations) {
+			if (station < 0 || station >= registry.size()) {
+				throw new InvalidObjectException("Invalid station id " + station);
+			}
+		}
+
+		_timetable = new ServiceTimetable(registry, stations, times, cumulativeCosts, cumulativeMinutes);
 	}
 
 	/** 
@@ -65,21 +128,41 @@ public class Service implements java.io.Serializable, Visitable {
 	}
 
 	/**
-	 * Adds a start train stop to the service.
+	 * Returns the stops of this service.
+	 *
+	 * @return the timetable of this service.
+	 */
+	ServiceTimetable getTimetable() {
+		return _timetable;
+	}
+
+	/**
+	 * Returns the identifier of the first train stop of this service.
 	 *
-	 * @param TrainStop to add to the service.
+	 * @return the identifier of the first train stop.
 	 */
-	void addStart(TrainStop trainstop) {
-		_startTrainStops.add(trainstop);
+	int getFirstTrainStopId() {
+		return _firstTrainStopId;
 	}
 
 	/**
-	 * Adds an end train stop to the service.
+	 * Returns the number of segments of this service.
 	 *
-	 * @param TrainStop to add to the service.
+	 * @return the number of segments.
 	 */
-	void addEnd(TrainStop trainstop) {
-		_endTrainStops.add(trainstop);
+	int getNumberOfSegments() {
+		return Math.max(_timetable.getNumberOfStops() - 1, 0);
+	}
+
+	/**
+	 * Returns the train stop at a given position: the departure from that stop, or the
+	 * arrival at it if it is the last one.
+	 *
+	 * @param position the position of the stop.
+	 * @return the train stop at that position.
+	 */
+	TrainStop getTrainStop(int position) {
+		return new TrainStop(this, position, position == getNumberOfSegments());
 	}
 
 	/**
@@ -89,10 +172,7 @@ public class Service implements java.io.Serializable, Visitable {
 	 */
 	LocalTime getStartTime() {
 
-		TrainStop startStop = _startTrainStops.get(0);
-		LocalTime time = startStop.getTime();
-
-		return time;
+		return LocalTime.ofSecondOfDay(_timetable.getTime(0));
 	}
 
 	/**
@@ -102,10 +182,7 @@ public class Service implements java.io.Serializable, Visitable {
 	 */
 	LocalTime getEndTime() {
 
-		TrainStop endStop = _endTrainStops.get(_endTrainStops.size()-1);
-		LocalTime time = endStop.getTime();
-
-		return time;
+		return LocalTime.ofSecondOfDay(_timetable.getTime(getNumberOfSegments()));
 	}
 
 	/**
@@ -115,10 +192,7 @@ public class Service implements java.io.Serializable, Visitable {
 	 */
 	Station getStartStation() {
 
-		TrainStop startStop = _startTrainStops.get(0);
-		Station station = startStop.getStation();
-
-		return station;
+		return _timetable.getStation(0);
 	}
 
 	/**
@@ -128,10 +202,7 @@ public class Service implements java.io.Serializable, Visitable {
 	 */
 	Station getEndStation() {
 
-		TrainStop endStop = _endTrainStops.get(_endTrainStops.size()-1);
-		Station station = endStop.getStation();
-
-		return station;
+		return _timetable.getStation(getNumberOfSegments());
 	}
 
 	/**
@@ -140,13 +211,35 @@ public class Service implements java.io.Serializable, Visitable {
 	 */
 	Duration getTotalDuration() {
 
-		Duration totalDuration = Duration.ofSeconds(0);
+		if (getNumberOfSegments() == 0) return Duration.ZERO;
 
-		for (TrainStop trainstop : this._startTrainStops ) {
-			totalDuration = totalDuration.plus( trainstop.getSegment().getDuration() );
-		}
+		return Duration.ofMinutes(_timetable.getCumulativeMinutes(getNumberOfSegments()));
+	}
 
-		return totalDuration;
+	/**
+	 * Returns the cost of riding this service between two stops. The fare is the part of
+	 * the service's cost proportional to the time spent on board.
+	 *
+	 * @param boarding the position of the stop where the passenger boards.
+	 * @param alighting the position of the stop where the passenger leaves.
+	 * @return the cost of the ride.
+	 */
+	double getPartialCost(int boarding, int alighting) {
+		return getPartialCost(_timetable.getCumulativeMinutes(alighting) - _timetable.getCumulativeMinutes(boarding));
+	}
+
+	/**
+	 * Returns the cost of riding this service for a given time.
+	 *
+	 * @param minutes the time spent on board, in minutes.
+	 * @return the cost of the ride.
+	 */
+	double getPartialCost(long minutes) {
+
+		/* Calculate the fraction of the service to be paid */
+		double fractionDuration = (double) minutes / (double) getTotalDuration().toMinutes();
+
+		return _cost * fractionDuration;
 	}
 
 	/**
@@ -167,21 +260,14 @@ public class Service implements java.io.Serializable, Visitable {
 		StringBuffer buf = new StringBuffer();
 		buf.append(serviceDescription);
 
-		/* Adds last train stop temporarly */
-		_startTrainStops.add( _endTrainStops.get(_endTrainStops.size()-1) );
+		/* Adds stop information */
+		for (int position = 0; position < _timetable.getNumberOfStops(); position++) {
 
-		/* Adds segment information */
-		_startTrainStops.forEach ((TrainStop start)-> {
-
-			LocalTime time = start.getTime();
-			Station station = start.getStation();
-			String name = station.getName();
+			LocalTime time = LocalTime.ofSecondOfDay(_timetable.getTime(position));
+			String name = _timetable.getStation(position).getName();
 
 			buf.append("\n" + time.toString() + " " + name);
-		});
-
-		/* Removes last train stop added temporarly */
-		_startTrainStops.remove( _startTrainStops.size()-1 );
+		}
 
 		/* Converts buffer into a String */
 		String result = buf.toString();
@@ -189,22 +275,91 @@ public class Service implements java.io.Serializable, Visitable {
 		return result;
 	}
 
+	/**
+	 * Returns the position of the first stop where a passenger can board at a station.
+	 *
+	 * @param station the station id.
+	 * @return the position of the first segment starting at the station, or -1 if there is none.
+	 */
+	int getBoardingPosition(int station) {
+		int position = _timetable.getFirstPosition(station);
+		return position < getNumberOfSegments() ? position : -1;
+	}
+
+	/**
+	 * Returns the position of the stop where a passenger leaves at a station, after boarding.
+	 *
+	 * @param station the station id.
+	 * @param boarding the position of the stop where the passenger boarded.
+	 * @return the position of the first stop at the station after boarding, or the last
+	 *         position of the service if the station is not reached.
+	 */
+	int getAlightingPosition(int station, int boarding) {
+		int position = _timetable.getFirstPosition(station);
+		while (position >= 0 && position <= boarding) {
+			position = _timetable.getNextPosition(position);
+		}
+		return position >= 0 ? position : getNumberOfSegments();
+	}
+
+	/**
+	 * Returns the train stops of a ride in this service: the departure from the boarding
+	 * stop followed by the arrivals at the next stops, up to the alighting stop.
+	 *
+	 * @param boarding the position of the stop where the passenger boards.
+	 * @param alighting the position of the stop where the passenger leaves.
+	 * @return a list of the trainstops of the ride.
+	 */
+	List<TrainStop> getTrainStops(final int boarding, final int alighting) {
+		return new AbstractList<TrainStop>() {
+			@Override
+			public TrainStop get(int index) {
+				return new TrainStop(Service.this, boarding + index, index > 0);
+			}
+
+			@Override
+			public int size() {
+				return alighting - boarding + 1;
+			}
+		};
+	}
+
 	/**
 	 * Returns the Starting TrainStops of this service.
 	 *
-	 * @return a collection of the trainstops that start in this service.
+	 * @return a list of the trainstops that start a segment of this service.
 	 */
-	Collection<TrainStop> getStartTrainStops() {
-		return Collections.unmodifiableCollection(_startTrainStops);
+	List<TrainStop> getStartTrainStops() {
+		return new AbstractList<TrainStop>() {
+			@Override
+			public TrainStop get(int index) {
+				return new TrainStop(Service.this, index, false);
+			}
+
+			@Override
+			public int size() {
+				return getNumberOfSegments();
+			}
+		};
 	}
 
 	/**
 	 * Returns the Ending TrainStops of this service.
 	 *
-	 * @return a collection of the trainstops that end in this service.
+	 * @return a list of the trainstops that end a segment of this service.
 	 */
-	Collection<TrainStop> getEndTrainStops() {
-		return Collections.unmodifiableCollection(_endTrainStops);
+	List<TrainStop> getEndTrainStops() {
+		return new AbstractList<TrainStop>() {
+			@Override
+			public TrainStop get(int index) {
+				return new TrainStop(Service.this, index + 1, true);
+			}
+
+			@Override
+			public int size() {
+				return getNumberOfSegments();
+			}
+		};
 	}
 
 	public void accept(Visitor visitor) {
@@ -0,0 +1,185 @@
+package mmt.core;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compact, read-only timetable of a service, stored in columns indexed by stop position:
+ * the station id, the time (in seconds of the day), the cumulative segment cost and the
+ * cumulative duration of every stop. Train stops and segments of the service are views
+ * over these columns, and the part of the service between two stops is a difference of
+ * two cumulative values.
+ *
+ * The positions of the stops at each station are indexed, so the stop where a passenger
+ * boards or leaves at a given station is found without scanning the timetable. The index
+ * is built the first time it is needed.
+ *
+ * Subclasses may keep the columns elsewhere (see MappedServiceTimetable) by overriding
+ * the methods that read them.
+ */
+public class ServiceTimetable implements java.io.Serializable {
+
+	/** Serial number for serialization. */
+	private static final long serialVersionUID = 201708301024L;
+
+	/** The stations of the train company, to resolve station ids. */
+	private StationRegistry _registry;
+
+	/** Station id of each stop. */
+	private int[] _stations;
+
+	/** Time of each stop, in seconds of the day. */
+	private int[] _times;
+
+	/** Cost of the segments up to each stop. */
+	private double[] _cumulativeCosts;
+
+	/** Duration of the segments up to each stop, in minutes. */
+	private int[] _cumulativeMinutes;
+
+	/** Position of the first stop at each station, by station id (null until needed). */
+	private volatile Map<Integer, Integer> _firstPositions;
+
+	/** Position of the next stop at the same station as each stop (-1 if there is none). */
+	private int[] _nextPositions;
+
+	/**
+	 * Creates the timetable of a service.
+	 *
+	 * @param registry the stations of the train company.
+	 * @param stations the station id of each stop.
+	 * @param times the time of each stop, in seconds of the day.
+	 * @param cumulativeCosts the cost of the segments up to each stop.
+	 * @param cumulativeMinutes the duration of the segments up to each stop, in minutes.
+	 */
+	ServiceTimetable(StationRegistry registry, int[] stations, int[] times, double[] cumulativeCosts,
+			int[] cumulativeMinutes) {
+		_registry = registry;
+		_stations = stations;
+		_times = times;
+		_cumulativeCosts = cumulativeCosts;
+		_cumulativeMinutes = cumulativeMinutes;
+	}
+
+	/**
+	 * Creates the timetable of a service whose columns are read by a subclass.
+	 *
+	 * @param registry the stations of the train company.
+	 */
+	protected ServiceTimetable(StationRegistry registry) {
+		_registry = registry;
+	}
+
+	/**
+	 * Chains the stops at each station, if not done yet. The import does it before the
+	 * timetable is read by several threads; threads reading a mapped timetable may chain
+	 * a service at once, and the chains are published with the volatile first positions.
+	 */
+	void indexPositions() {
+		if (_firstPositions != null) return;
+
+		Map<Integer, Integer> firstPositions = new HashMap<Integer, Integer>();
+		int[] nextPositions = new int[getNumberOfStops()];
+
+		/* From the last stop, so each station ends up with its first one */
+		for (int position = nextPositions.length - 1; position >= 0; position--) {
+			Integer next = firstPositions.put(getStationId(position), position);
+			nextPositions[position] = next == null ? -1 : next;
+		}
+
+		_nextPositions = nextPositions;
+		_firstPositions = firstPositions;
+	}
+
+	/**
+	 * Returns the stations of the train company.
+	 *
+	 * @return the station registry.
+	 */
+	StationRegistry getRegistry() {
+		return _registry;
+	}
+
+	/**
+	 * Returns the number of stops.
+	 *
+	 * @return the number of stops.
+	 */
+	int getNumberOfStops() {
+		return _stations.length;
+	}
+
+	/**
+	 * Returns the station id of a stop.
+	 *
+	 * @param position the position of the stop.
+	 * @return the station id of the stop.
+	 */
+	int getStationId(int position) {
+		return _stations[position];
+	}
+
+	/**
+	 * Returns the station of a stop.
+	 *
+	 * @param position the position of the stop.
+	 * @return the station of the stop.
+	 */
+	Station getStation(int position) {
+		return _registry.get(getStationId(position));
+	}
+
+	/**
+	 * Returns the time of a stop.
+	 *
+	 * @param position the position of the stop.
+	 * @return the time of the stop, in seconds of the day.
+	 */
+	int getTime(int position) {
+		return _times[position];
+	}
+
+	/**
+	 * Returns the cost of the segments up to a stop.
+	 *
+	 * @param position the position of the stop.
+	 * @return the cumulative cost at the stop.
+	 */
+	double getCumulativeCost(int position) {
+		return _cumulativeCosts[position];
+	}
+
+	/**
+	 * Returns the duration of the segments up to a stop.
+	 *
+	 * @param position the position of the stop.
+	 * @return the cumulative duration at the stop, in minutes.
+	 */
+	int getCumulativeMinutes(int position) {
+		return _cumulativeMinutes[position];
+	}
+
+	/**
+	 * Returns the position of the first stop at a station.
+	 *
+	 * @param station the station id.
+	 * @return the position of the first stop at the station, or -1 if it has none.
+	 */
+	int getFirstPosition(int station) {
+		indexPositions();
+		Integer position = _firstPositions.get(station);
+		return position == null ? -1 : position;
+	}
+
+	/**
+	 * Returns the position of the next stop at the same station as a given stop.
+	 *
+	 * @param position the position of the stop.
+	 * @return the position of the next stop at the same station, or -1 if there is none.
+	 */
+	int getNextPosition(int position) {
+		indexPositions();
+		return _nextPositions[position];
+	}
+
+}
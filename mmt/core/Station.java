@@ -8,18 +8,32 @@ public class Station implements java.io.Serializable {
 	/** Serial number for serialization. */
 	private static final long serialVersionUID = 201708301013L;
 
+	/** Identifies the station within its train company. */
+	private int _id;
+
 	/** Stores the name of the station. */
 	private String _name;
 
 	/**
-	 * Creates a station with a name.
+	 * Creates a station with a name. Stations are created by the StationRegistry.
 	 *
+	 * @param id identifies the station within its train company.
 	 * @param name identifies the station.
 	 */
-	Station(String name) {
+	Station(int id, String name) {
+		_id = id;
 		_name = name;
 	}
 
+	/** 
+	 * Returns the identifier of the station.
+	 *
+	 * @return the identifier of the station.
+	 */
+	final int getId() {
+		return _id;
+	}
+
 	/** 
 	 * Returns the name of the station.
 	 *
@@ -29,4 +43,4 @@ public class Station implements java.io.Serializable {
 		return _name;
 	}
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,114 @@
+package mmt.core;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Registry of the stations of a train company. It hands out a single Station per name,
+ * each with a compact identifier, so stations can be looked up by name in constant time
+ * and compared by identifier.
+ */
+public class StationRegistry implements java.io.Serializable {
+
+	/** Serial number for serialization. */
+	private static final long serialVersionUID = 201708301022L;
+
+	/** The stations, indexed by name. */
+	private Map<String, Station> _stationsByName = new HashMap<String, Station>();
+
+	/** The stations, indexed by identifier. */
+	private ArrayList<Station> _stations = new ArrayList<Station>();
+
+	/**
+	 * Returns a copy of the registry, with the same stations, to register more stations in.
+	 *
+	 * @return the copy.
+	 */
+	StationRegistry copy() {
+		StationRegistry copy = new StationRegistry();
+		copy._stationsByName.putAll(_stationsByName);
+		copy._stations.addAll(_stations);
+		return copy;
+	}
+
+	/**
+	 * Returns the station with a given name, registering it if it does not exist yet.
+	 *
+	 * @param name the name of the station.
+	 * @return the station with the given name.
+	 */
+	Station register(String name) {
+		Station station = _stationsByName.get(name);
+
+		if (station == null) {
+			station = new Station(_stations.size(), name);
+			_stations.add(station);
+			_stationsByName.put(name, station);
+		}
+
+		return station;
+	}
+
+	/**
+	 * Returns the station with a given name.
+	 *
+	 * @param name the name of the station.
+	 * @return the station with the given name, or null if it does not exist.
+	 */
+	Station get(String name) {
+		return _stationsByName.get(name);
+	}
+
+	/**
+	 * Returns the station with a given identifier.
+	 *
+	 * @param id the identifier of the station.
+	 * @return the station with the given identifier.
+	 */
+	Station get(int id) {
+		return _stations.get(id);
+	}
+
+	/**
+	 * Returns the identifier of the station with a given name.
+	 *
+	 * @param name the name of the station.
+	 * @return the identifier of the station, or -1 if it does not exist.
+	 */
+	int getId(String name) {
+		Station station = _stationsByName.get(name);
+		return station == null ? -1 : station.getId();
+	}
+
+	/**
+	 * Checks whether a station exists.
+	 *
+	 * @param name the name of the station.
+	 * @return true if the station exists.
+	 */
+	boolean contains(String name) {
+		return _stationsByName.containsKey(name);
+	}
+
+	/**
+	 * Returns the number of stations.
+	 *
+	 * @return the number of stations.
+	 */
+	int size() {
+		return _stations.size();
+	}
+
+	/**
+	 * Returns the stations, ordered by identifier.
+	 *
+	 * @return the stations.
+	 */
+	Collection<Station> getStations() {
+		return Collections.unmodifiableCollection(_stations);
+	}
+
+}
@@ -0,0 +1,138 @@
+package mmt.core;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Index of the services that depart from and arrive at each station. The services of
+ * each station are kept sorted by start time (departures) or by end time (arrivals),
+ * and then by id, as services are added.
+ */
+public class StationServiceIndex implements java.io.Serializable {
+
+	/** Serial number for serialization. */
+	private static final long serialVersionUID = 201708301023L;
+
+	/** The services departing from each station (indexed by station id), sorted by start time. */
+	private ArrayList<ArrayList<Service>> _departing = new ArrayList<ArrayList<Service>>();
+
+	/** The services arriving at each station (indexed by station id), sorted by end time. */
+	private ArrayList<ArrayList<Service>> _arriving = new ArrayList<ArrayList<Service>>();
+
+	/**
+	 * Returns a copy of the index, to add and remove services in.
+	 *
+	 * @return the copy.
+	 */
+	StationServiceIndex copy() {
+		StationServiceIndex copy = new StationServiceIndex();
+		for (ArrayList<Service> services : _departing) {
+			copy._departing.add(new ArrayList<Service>(services));
+		}
+		for (ArrayList<Service> services : _arriving) {
+			copy._arriving.add(new ArrayList<Service>(services));
+		}
+		return copy;
+	}
+
+	/**
+	 * Adds a service to the index of its start and end stations.
+	 *
+	 * @param service the service to add.
+	 */
+	void add(Service service) {
+		if (service.getNumberOfSegments() == 0) return;
+
+		insert(stationServices(_departing, service.getStartStation()), service, true);
+		insert(stationServices(_arriving, service.getEndStation()), service, false);
+	}
+
+	/**
+	 * Removes a service from the index of its start and end stations.
+	 *
+	 * @param service the service to remove.
+	 */
+	void remove(Service service) {
+		if (service.getNumberOfSegments() == 0) return;
+
+		stationServices(_departing, service.getStartStation()).remove(service);
+		stationServices(_arriving, service.getEndStation()).remove(service);
+	}
+
+	/**
+	 * Returns the services of a station, creating the list if needed.
+	 *
+	 * @param index the departing or arriving index.
+	 * @param station the station.
+	 * @return the services of the station.
+	 */
+	private ArrayList<Service> stationServices(ArrayList<ArrayList<Service>> index, Station station) {
+		while (index.size() <= station.getId()) {
+			index.add(new ArrayList<Service>());
+		}
+		return index.get(station.getId());
+	}
+
+	/**
+	 * Inserts a service after the services with an earlier (or equal) time, or an equal
+	 * time and a lower id.
+	 *
+	 * @param services the sorted services.
+	 * @param service the service to insert.
+	 * @param byStart true to sort by start time, false to sort by end time.
+	 */
+	private void insert(ArrayList<Service> services, Service service, boolean byStart) {
+		int time = time(service, byStart);
+		int low = 0;
+		int high = services.size();
+
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			Service other = services.get(middle);
+			int otherTime = time(other, byStart);
+
+			if (otherTime < time || (otherTime == time && other.getId() <= service.getId())) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+
+		services.add(low, service);
+	}
+
+	/**
+	 * Returns the start or end time of a service, in seconds of the day.
+	 *
+	 * @param service the service.
+	 * @param start true for the start time, false for the end time.
+	 * @return the time of the service.
+	 */
+	private int time(Service service, boolean start) {
+		return start ? service.getStartTime().toSecondOfDay() : service.getEndTime().toSecondOfDay();
+	}
+
+	/**
+	 * Returns the services departing from a station, sorted by start time.
+	 *
+	 * @param station the id of the station.
+	 * @return the services departing from the station.
+	 */
+	List<Service> getDeparting(int station) {
+		if (station < 0 || station >= _departing.size()) return Collections.emptyList();
+		return Collections.unmodifiableList(_departing.get(station));
+	}
+
+	/**
+	 * Returns the services arriving at a station, sorted by end time.
+	 *
+	 * @param station the id of the station.
+	 * @return the services arriving at the station.
+	 */
+	List<Service> getArriving(int station) {
+		if (station < 0 || station >= _arriving.size()) return Collections.emptyList();
+		return Collections.unmodifiableList(_arriving.get(station));
+	}
+
+}
@@ -1,21 +1,40 @@
 package mmt.core;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataOutputStream;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import mmt.core.NewParser;
 
 import java.util.Collection;
+import java.util.Collections;
 import java.util.ArrayList;
+import java.util.List;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import mmt.core.exceptions.ImportFileException;
 import mmt.core.exceptions.InvalidPassengerNameException;
+import mmt.core.exceptions.NoSuchItineraryChoiceException;
 import mmt.core.exceptions.NoSuchPassengerIdException;
 import mmt.core.exceptions.NoSuchServiceIdException;
 import mmt.core.exceptions.NoSuchStationNameException;
@@ -24,21 +43,134 @@ import mmt.core.exceptions.BadDateSpecificationException;
 
 /**
  * Facade for handling persistence and other functions.
+ *
+ * Once the ticket office is associated with a saved file, changes to the passengers are
+ * recorded in the file's journal as they are made, and replayed when the file is loaded,
+ * so they survive the application stopping before they are saved. Opening a file while
+ * associated with another (or the same) file discards the unsaved changes, as before.
+ * A change is recorded before it is made, and is on disk when the method making it
+ * returns; an error writing the journal is thrown as an UncheckedIOException, and the
+ * change is not made.
+ *
+ * A file can be saved in the background while tickets keep being sold (see
+ * {@link #saveInBackground(String)}); loading, importing, resetting and saving again wait
+ * for it to be in place first.
+ *
+ * A ticket office may be used by several clerks at once, each in its own thread:
+ * <ul>
+ * <li>Registering passengers, changing their names, searching itineraries, buying them
+ * and reading the passengers, services and itineraries may all be done at once. Passenger
+ * ids are assigned atomically by {@link #registerPassenger(String)}.</li>
+ * <li>Searches and the queries on services read the timetable published when they
+ * start, without locking: importing services builds a new timetable and publishes it
+ * when complete (see Timetable), so searches running meanwhile are not held, and finish
+ * against the timetable they started with.</li>
+ * <li>The changes to each passenger are made one at a time. Itineraries bought are
+ * handed to a single writer thread, which makes them in the order they were submitted
+ * and records them in the journal in batches (see BookingPipeline); the passenger's lock
+ * is held while other changes are applied and recorded.</li>
+ * <li>Loading, importing, opening a timetable, resetting and freezing the company to save
+ * it wait for the other operations on passengers, and the itineraries submitted, to
+ * finish, and hold them until done.</li>
+ * </ul>
+ * Collections returned by the ticket office are views, which may or may not show the
+ * changes made while they are read.
  */
 public class TicketOffice {
 
 	/** The object doing most of the actual work. */
-	private TrainCompany _trainCompany;
+	private volatile TrainCompany _trainCompany;
+
+	/** Held to read or change the passengers, and exclusively to import, replace or freeze the TrainCompany. */
+	private ReentrantReadWriteLock _lock = new ReentrantReadWriteLock();
 
 	/** The name of the current file with data associated to this ticket office. */
 	private String _fileName;
 
+	/** The router used to look up itineraries, behind the cache of their options. */
+	private volatile CachingRouter _router;
+
+	/** The journal of the associated file (null if changes are not being recorded). */
+	private Journal _journal;
+
+	/** Writes saved files in the background, one at a time (its thread stops when idle). */
+	private ExecutorService _saver = new ThreadPoolExecutor(0, 1, 1, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+
+	/** Where the segments of the file saved last are, to reuse them if it is saved again (null if unknown). */
+	private volatile CompanySnapshot.Layout _layout;
+
+	/** The save being written in the background (completed if there is none). */
+	private volatile CompletableFuture<Void> _saving = CompletableFuture.completedFuture(null);
+
+	/** Whether the application saves files in the background. */
+	private boolean _backgroundSave;
+
+	/** Makes the itineraries bought, on a single writer thread. */
+	private BookingPipeline _bookings = new BookingPipeline(BookingPipeline.DEFAULT_CAPACITY);
+
 	/**
 	 * Constructor.
 	 */
 	public TicketOffice() {
 		_trainCompany = new TrainCompany();
 		_fileName = "";
+		_router = new CachingRouter(new DepthFirstRouter(), CachingRouter.DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Takes the lock of the ticket office exclusively, once the itineraries submitted to
+	 * the booking pipeline are bought.
+	 */
+	private void lockExclusively() {
+		_lock.writeLock().lock();
+		_bookings.drain();
+	}
+
+	/**
+	 * Sets the router used to look up itineraries. The options kept by the cache are
+	 * discarded.
+	 *
+	 * @param router the new router.
+	 */
+	public void setRouter(Router router) {
+		_router = new CachingRouter(router, _router.getCapacity());
+	}
+
+	/**
+	 * Sets the capacity of the cache of itinerary options. The options kept are discarded.
+	 *
+	 * @param capacity the maximum weight of the options kept, in train stops (0 keeps none).
+	 */
+	public void setSearchCacheCapacity(int capacity) {
+		_router = new CachingRouter(_router.getRouter(), capacity);
+	}
+
+	/**
+	 * Returns the cache of itinerary options, with the number of searches it answered
+	 * and of options it discarded.
+	 *
+	 * @return the cache of itinerary options.
+	 */
+	public CachingRouter getSearchCache() {
+		return _router;
+	}
+
+	/**
+	 * Sets whether the application saves files in the background.
+	 *
+	 * @param backgroundSave true to save files with {@link #saveInBackground(String)}.
+	 */
+	public void setBackgroundSave(boolean backgroundSave) {
+		_backgroundSave = backgroundSave;
+	}
+
+	/**
+	 * Returns whether the application saves files in the background.
+	 *
+	 * @return true if files are saved with {@link #saveInBackground(String)}.
+	 */
+	public boolean isBackgroundSave() {
+		return _backgroundSave;
 	}
 
 	/**
@@ -46,9 +178,39 @@ public class TicketOffice {
 	 * but not its associated Services.
 	 */
 	public void reset() {
-		_trainCompany.deletePassengers();
-		//_trainCompany.deleteItineraries();
-		setFileName("");
+		lockExclusively();
+		try {
+			awaitSave();
+
+			_trainCompany.deletePassengers();
+			//_trainCompany.deleteItineraries();
+
+			/* The saved file is left as it was: its unsaved changes are discarded, not reset */
+			try {
+				if (_journal != null) _journal.discard();
+				closeJournal();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+
+			_layout = null;
+			setFileName("");
+		} finally {
+			_lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Stops recording changes in the journal of the associated file.
+	 *
+	 * @throws IOException if errors occur closing the journal.
+	 */
+	private void closeJournal() throws IOException {
+		if (_journal != null) {
+			Journal journal = _journal;
+			_journal = null;
+			journal.close();
+		}
 	}
 
 	/**
@@ -79,46 +241,180 @@ public class TicketOffice {
 	}
 
 	/**
-	 * Saves the associated TrainCompany's data to a file.
+	 * Saves the associated TrainCompany's data to a file, as a binary snapshot, and waits
+	 * until it is in place.
 	 *
 	 * @param fileName the name of the file to be saved.
 	 * @throws IOException if errors occur in file writing.
 	 */
 	public void save(String fileName) throws IOException {
-	
-		/* Opens the given file */
-		FileOutputStream fileOut = new FileOutputStream(fileName);
-		ObjectOutputStream out = new ObjectOutputStream(fileOut);
+		try {
+			saveInBackground(fileName).join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof UncheckedIOException) throw ((UncheckedIOException) e.getCause()).getCause();
+			throw e;
+		}
+	}
 
-		/* Writes new content */
-		out.writeObject(_trainCompany);
+	/**
+	 * Saves the associated TrainCompany's data to a file in the background. The company is
+	 * frozen before this method returns (see CompanySnapshot.Frozen): changes made after it
+	 * are not in the file, but are recorded in its journal.
+	 *
+	 * If the company was saved to or loaded from the same file, only the passengers that
+	 * changed since are appended to it (see CompanySnapshot). Otherwise the snapshot is
+	 * written to a temporary file, forced to disk and renamed over the file. Either way,
+	 * the previous file is intact until the new one is complete.
+	 *
+	 * @param fileName the name of the file to be saved.
+	 * @return completes when the file is in place, or exceptionally (with an
+	 *         UncheckedIOException) if it could not be written.
+	 * @throws IOException if the temporary file or the journal cannot be created.
+	 */
+	public CompletableFuture<Void> saveInBackground(String fileName) throws IOException {
+		lockExclusively();
+		try {
+			awaitSave();
+
+			TrainCompany trainCompany = _trainCompany;
+			CompanySnapshot.Layout base = _layout != null && _layout.canAppend(fileName, trainCompany) ? _layout : null;
+			CompanySnapshot.Frozen frozen = CompanySnapshot.freeze(trainCompany, base, trainCompany.takeChangedPages());
+
+			Path temporary = Paths.get(fileName + ".tmp");
+			FileOutputStream file = null;
+
+			/* Changes made from now on are recorded in the journal of the file */
+			try {
+				if (!frozen.isIncremental()) file = new FileOutputStream(temporary.toFile());
+
+				if (_journal == null || !_journal.isJournalOf(fileName)) {
+					closeJournal();
+					_journal = Journal.create(fileName, trainCompany);
+				}
+			} catch (IOException e) {
+				trainCompany.restoreChangedPages(frozen.getChangedPages());
+				if (file != null) {
+					file.close();
+					Files.deleteIfExists(temporary);
+				}
+				throw e;
+			}
+			Journal journal = _journal;
+			FileOutputStream out = file;
+
+			_saving = CompletableFuture.runAsync(() -> {
+				try {
+					_layout = frozen.isIncremental() ? CompanySnapshot.append(frozen) : write(frozen, fileName, out, temporary);
+
+					/* The file holds the changes recorded up to the freeze */
+					journal.compact(frozen.getSequence());
+
+				} catch (IOException e) {
+					/* The next save writes the whole file */
+					_layout = null;
+					trainCompany.restoreChangedPages(frozen.getChangedPages());
+					throw new UncheckedIOException(e);
+				}
+			}, _saver);
+
+			return _saving;
+		} finally {
+			_lock.writeLock().unlock();
+		}
+	}
 
-		/* Closes the pipe */
-		out.close();
-		fileOut.close();
+	/**
+	 * Writes a frozen TrainCompany to a temporary file, and renames it over the saved file.
+	 *
+	 * @param frozen the frozen train company.
+	 * @param fileName the name of the saved file.
+	 * @param file the temporary file.
+	 * @param temporary the name of the temporary file.
+	 * @return the layout of the saved file.
+	 * @throws IOException if errors occur in file writing.
+	 */
+	private static CompanySnapshot.Layout write(CompanySnapshot.Frozen frozen, String fileName, FileOutputStream file,
+			Path temporary) throws IOException {
+		try {
+			CompanySnapshot.Layout layout;
+
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file));
+			try {
+				layout = CompanySnapshot.write(frozen, fileName, out);
+				out.flush();
+				file.getChannel().force(true);
+			} finally {
+				out.close();
+			}
+
+			Files.move(temporary, Paths.get(fileName), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			return layout;
+
+		} catch (IOException e) {
+			Files.deleteIfExists(temporary);
+			throw e;
+		}
+	}
 
+	/**
+	 * Waits until the file being saved in the background, if any, is in place. An error
+	 * writing it is reported to whoever started the save.
+	 */
+	public void awaitSave() {
+		try {
+			_saving.join();
+		} catch (CompletionException | CancellationException e) {
+			/* Reported by the future returned by saveInBackground */
+		}
 	}
 
 	/**
-	 * Loads the new TrainCompany data from a file.
+	 * Loads the new TrainCompany data from a file, and replays the changes recorded in its
+	 * journal. Files saved by earlier versions, with Java serialization, are still read.
 	 *
 	 * @param fileName the name of the file from which the data will be loaded.
 	 * @throws IOException if errors occur in file reading.
 	 * @throws ClassNotFoundException if the file cannot be found.
 	 */
 	public void load(String fileName) throws IOException, ClassNotFoundException {
-
-		/* Opens the given file */
-		FileInputStream fileIn = new FileInputStream(fileName);
-		ObjectInputStream in = new ObjectInputStream(fileIn);
-
-		/* Replaces the TrainCompany */
-		_trainCompany = (TrainCompany) in.readObject();
-
-		/* Closes the pipe */
-		in.close();
-		fileIn.close();
-		
+		lockExclusively();
+		try {
+			awaitSave();
+
+			/* Reads the given file */
+			FileInputStream fileIn = new FileInputStream(fileName);
+			byte[] contents;
+			try {
+				contents = fileIn.readAllBytes();
+			} finally {
+				fileIn.close();
+			}
+			ByteBuffer buffer = ByteBuffer.wrap(contents);
+
+			/* Reads the TrainCompany */
+			TrainCompany trainCompany;
+			CompanySnapshot.Layout layout = null;
+			if (contents.length >= 4 && CompanySnapshot.isSnapshot(buffer.getInt(0))) {
+				trainCompany = CompanySnapshot.read(buffer);
+				layout = CompanySnapshot.readLayout(buffer, fileName, trainCompany);
+
+			} else {
+				ObjectInputStream in = new LegacyInputStream(new ByteArrayInputStream(contents));
+				trainCompany = (TrainCompany) in.readObject();
+				in.close();
+			}
+
+			/* Discards the unsaved changes, then replays the journal and replaces the TrainCompany */
+			if (_journal != null) _journal.discard();
+			closeJournal();
+
+			Journal journal = Journal.open(fileName, trainCompany);
+			_trainCompany = trainCompany;
+			_journal = journal;
+			_layout = layout;
+		} finally {
+			_lock.writeLock().unlock();
+		}
 	}
 
 	/**
@@ -128,12 +424,78 @@ public class TicketOffice {
 	 * @throws ImportFileException if the file cannot be properly read.
 	 */
 	public void importFile(String fileName) throws ImportFileException {
+		lockExclusively();
+		try {
+			awaitSave();
+
+			/* Creates Parser */
+			NewParser parser = new NewParser(_trainCompany);
+
+			/* Parses the File */
+			parser.parseFile(fileName);
+		} finally {
+			_lock.writeLock().unlock();
+		}
+	}
 
-		/* Creates Parser */
-		NewParser parser = new NewParser(_trainCompany);
+	/**
+	 * Imports the Passengers and Itineraries from a file, skipping its Services: the
+	 * timetable must have been opened from a file compiled from the same import file.
+	 *
+	 * @param fileName the name of the import file.
+	 * @throws ImportFileException if the file cannot be properly read.
+	 */
+	public void importPassengers(String fileName) throws ImportFileException {
+		lockExclusively();
+		try {
+			awaitSave();
+
+			NewParser parser = new NewParser(_trainCompany, false);
+			parser.parseFile(fileName);
+		} finally {
+			_lock.writeLock().unlock();
+		}
+	}
 
-		/* Parses the File */
-		parser.parseFile(fileName);
+	/**
+	 * Compiles the timetable of the TrainCompany, imported from a file, into a file that
+	 * can be opened without parsing it (see {@link #openTimetable(String, String)}). The
+	 * length and modification time of the import file are recorded with it.
+	 *
+	 * @param fileName the name of the compiled timetable file.
+	 * @param importFile the name of the import file the timetable was imported from.
+	 * @throws IOException if errors occur in file writing.
+	 */
+	public void compileTimetable(String fileName, String importFile) throws IOException {
+		TimetableFile.write(_trainCompany.getTimetable(), fileName, importFile);
+	}
+
+	/**
+	 * Replaces the TrainCompany with one whose timetable is mapped from a compiled
+	 * timetable file, and which has no Passengers. The services are not parsed: opening
+	 * the file creates the stations and services and checks the train stops of each
+	 * station in a single pass over the mapped columns, which takes about a third of the
+	 * time of importing the services.
+	 *
+	 * @param fileName the name of the compiled timetable file.
+	 * @param importFile the name of the import file the timetable must have been compiled from.
+	 * @throws IOException if errors occur in file reading, the file is not a compiled
+	 *         timetable, or the import file changed since it was compiled.
+	 */
+	public void openTimetable(String fileName, String importFile) throws IOException {
+		lockExclusively();
+		try {
+			awaitSave();
+
+			TrainCompany trainCompany = TimetableFile.read(fileName, importFile);
+
+			closeJournal();
+			_trainCompany = trainCompany;
+			_layout = null;
+			setFileName("");
+		} finally {
+			_lock.writeLock().unlock();
+		}
 	}
 	
 	/**
@@ -145,7 +507,16 @@ public class TicketOffice {
 	 * @throws InvalidPassengerNameException if passenger name is null or an empty String.
 	 */
 	public void changePassengerName(int id, String newname) throws NoSuchPassengerIdException, InvalidPassengerNameException {
-		_trainCompany.changePassengerName(id, newname);
+		_lock.readLock().lock();
+		try {
+			synchronized (_trainCompany.getPassenger(id)) {
+				if (!Passenger.validName(newname)) throw new InvalidPassengerNameException(newname);
+				if (_journal != null) _journal.changePassengerName(id, newname);
+				_trainCompany.changePassengerName(id, newname);
+			}
+		} finally {
+			_lock.readLock().unlock();
+		}
 	}
 
 	/**
@@ -154,7 +525,31 @@ public class TicketOffice {
 	 * @return the next passenger's assigned id.
 	 */
 	public int getNextPassengerId() {
-		return _trainCompany.getNextPassengerId();
+		_lock.readLock().lock();
+		try {
+			return _trainCompany.getNextPassengerId();
+		} finally {
+			_lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Registers a passenger under the next id. Clerks registering passengers at once each
+	 * get a different id.
+	 * 
+	 * @param name the new passenger's name.
+	 * @return the new passenger's id.
+	 * @throws InvalidPassengerNameException if passenger name is null or an empty String.
+	 */
+	public int registerPassenger(String name) throws InvalidPassengerNameException {
+		_lock.readLock().lock();
+		try {
+			Passenger p = _trainCompany.createPassenger(name);
+			addPassenger(p);
+			return p.getId();
+		} finally {
+			_lock.readLock().unlock();
+		}
 	}
 
 	/**
@@ -165,8 +560,25 @@ public class TicketOffice {
 	 * @throws InvalidPassengerNameException if passenger name is null or an empty String.
 	 */
 	public void addPassenger(int id, String name) throws InvalidPassengerNameException {
-		Passenger p = new Passenger(id, name, _trainCompany);
-		_trainCompany.addPassenger(p);
+		_lock.readLock().lock();
+		try {
+			addPassenger(new Passenger(id, name, _trainCompany));
+		} finally {
+			_lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Records a passenger in the journal and adds it. It is only found once it is
+	 * recorded, so its changes are not recorded before it.
+	 *
+	 * @param p the new passenger.
+	 */
+	private void addPassenger(Passenger p) {
+		synchronized (p) {
+			if (_journal != null) _journal.addPassenger(p.getId(), p.getName());
+			_trainCompany.addPassenger(p);
+		}
 	}
 
 	/**
@@ -175,7 +587,27 @@ public class TicketOffice {
 	 * @return the collection of passengers of this TrainCompany ordered by id.
 	 */
 	public Collection<Passenger> getPassengers() {
-		return _trainCompany.getPassengers();
+		_lock.readLock().lock();
+		try {
+			return _trainCompany.getPassengers();
+		} finally {
+			_lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Returns the String descriptions of the passengers of the TrainCompany, built in
+	 * parallel.
+	 *
+	 * @return the descriptions of the passengers, ordered by id.
+	 */
+	public List<String> getPassengerDescriptions() {
+		_lock.readLock().lock();
+		try {
+			return _trainCompany.getPassengerDescriptions();
+		} finally {
+			_lock.readLock().unlock();
+		}
 	}
 
 	/**
@@ -186,7 +618,12 @@ public class TicketOffice {
 	 * @throws NoSuchPassengerIdException if passenger id does not exist.
 	 */
 	public String getPassengerDescription(int id) throws NoSuchPassengerIdException {
-		return _trainCompany.getPassengerDescription(id);
+		_lock.readLock().lock();
+		try {
+			return _trainCompany.getPassengerDescription(id);
+		} finally {
+			_lock.readLock().unlock();
+		}
 	}
 
 	/**
@@ -233,11 +670,11 @@ public class TicketOffice {
 
 		/* Service we are looking for */
 		return _trainCompany.searchServiceWithEndStation(search);
-
 	}
 	
 	/**
-	 * Looks up all possible itineraries for a given passenger.
+	 * Looks up all possible itineraries for a given passenger, sorted and numbered from 1
+	 * as the itinerary menu shows them (§3.4.3).
 	 *
 	 * @param passengerId id of the passenger that is looking for the itinerary.
 	 * @param departureStation the station where the passenger wants to start his trip.
@@ -251,18 +688,74 @@ public class TicketOffice {
 	 */
 	public ArrayList<Itinerary> searchItineraries(int passengerId, String departureStation, String arrivalStation, String departureDate,
 		String departureTime) throws NoSuchPassengerIdException, BadTimeSpecificationException, NoSuchStationNameException, BadDateSpecificationException {
-		return _trainCompany.searchItineraries(passengerId, departureStation, arrivalStation, departureDate, departureTime);
+		ArrayList<Itinerary> itineraryOptions;
+		itineraryOptions = _trainCompany.searchItineraries(passengerId, departureStation, arrivalStation, departureDate, departureTime, _router);
+
+		Collections.sort(itineraryOptions);
+		_trainCompany.updateListId(itineraryOptions);
+
+		return itineraryOptions;
 	}
 
 	/**
-	 * Adds an itinerary to a passenger.
+	 * Buys one of the itineraries found for a passenger, and waits until it is recorded.
+	 *
+	 * @param passengerId the id of the passenger who buys the itinerary.
+	 * @param itineraryOptions the itineraries found for the passenger (see searchItineraries).
+	 * @param choice the number of the chosen itinerary, or 0 to buy none.
+	 * @return the chosen itinerary, or null if none was chosen.
+	 * @throws NoSuchPassengerIdException if the passenger id does not exist.
+	 * @throws NoSuchItineraryChoiceException if there is no itinerary with that number.
+	 */
+	public Itinerary commitItinerary(int passengerId, List<Itinerary> itineraryOptions, int choice)
+			throws NoSuchPassengerIdException, NoSuchItineraryChoiceException {
+		if (choice == 0) return null;
+		if (choice > itineraryOptions.size() || choice < 0) {
+			throw new NoSuchItineraryChoiceException(passengerId, choice);
+		}
+
+		Itinerary itinerary = itineraryOptions.get(choice - 1);
+		commitItinerary(passengerId, itinerary);
+		return itinerary;
+	}
+
+	/**
+	 * Adds an itinerary to a passenger, and waits until it is recorded.
 	 *
 	 * @param id the id of the passenger who bought the itinerary. 
 	 * @param itinerary the chosen itinerary.
 	 * @throws NoSuchPassengerIdException if the passenger id does not exist.
 	 */
 	public void commitItinerary(int passengerId, Itinerary itinerary) throws NoSuchPassengerIdException {
-		_trainCompany.commitItinerary(passengerId, itinerary);
+		try {
+			submitItinerary(passengerId, itinerary).join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof NoSuchPassengerIdException) throw (NoSuchPassengerIdException) e.getCause();
+			if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+			if (e.getCause() instanceof Error) throw (Error) e.getCause();
+			throw e;
+		}
+	}
+
+	/**
+	 * Submits an itinerary bought by a passenger to the booking pipeline, without waiting
+	 * for it to be added. Itineraries are added in the order they are submitted.
+	 *
+	 * @param id the id of the passenger who bought the itinerary. 
+	 * @param itinerary the chosen itinerary.
+	 * @return completes when the itinerary is added and recorded, or exceptionally (with
+	 *         an UncheckedIOException if it could not be recorded).
+	 * @throws NoSuchPassengerIdException if the passenger id does not exist.
+	 * @throws IllegalStateException if the bookings can no longer be made.
+	 */
+	public CompletableFuture<Void> submitItinerary(int passengerId, Itinerary itinerary) throws NoSuchPassengerIdException {
+		_lock.readLock().lock();
+		try {
+			_trainCompany.getPassenger(passengerId);
+			return _bookings.submit(_trainCompany, _journal, passengerId, itinerary);
+		} finally {
+			_lock.readLock().unlock();
+		}
 	}
 
 	/**
@@ -273,7 +766,12 @@ public class TicketOffice {
 	 * @throws NoSuchPassengerIdException if the passenger id does not exist.
 	 */
 	public String showPassengerItineraries(int id) throws NoSuchPassengerIdException {
-		return _trainCompany.showPassengerItineraries(id);
+		_lock.readLock().lock();
+		try {
+			return _trainCompany.showPassengerItineraries(id);
+		} finally {
+			_lock.readLock().unlock();
+		}
 	}
 
 	/**
@@ -284,7 +782,12 @@ public class TicketOffice {
 	 * @throws NoSuchPassengerIdException if the passenger id does not exist.
 	 */
 	public boolean passengerHasItineraries(int id) throws NoSuchPassengerIdException {
-		return _trainCompany.passengerHasItineraries(id);
+		_lock.readLock().lock();
+		try {
+			return _trainCompany.passengerHasItineraries(id);
+		} finally {
+			_lock.readLock().unlock();
+		}
 	}
 
 	/**
@@ -293,13 +796,11 @@ public class TicketOffice {
 	 * @return all itineraries in the TrainCompany.
 	 */
 	public String showAllItineraries() {
-		return _trainCompany.showAllItineraries();
-	}
-
-	/**
-	 * Updates all itinerary id's by one.
-	 */
-	public void updateListId(ArrayList<Itinerary> itineraryOptions) {
-		_trainCompany.updateListId(itineraryOptions);
+		_lock.readLock().lock();
+		try {
+			return _trainCompany.showAllItineraries();
+		} finally {
+			_lock.readLock().unlock();
+		}
 	}
 }
@@ -0,0 +1,338 @@
+package mmt.core;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import mmt.core.exceptions.NoSuchServiceIdException;
+import mmt.core.exceptions.NoSuchStationNameException;
+
+/**
+ * The timetable of a train company: its stations, its services and their train stops,
+ * and the indexes searched to look up itineraries.
+ *
+ * A timetable is built by the import, or read from a file, and then published by the
+ * train company (see TrainCompany#setTimetable). Once published it is not changed:
+ * importing services again builds a copy of it with the new services, which replaces it
+ * when complete. A search reads the timetable published when it starts, so searches
+ * running while services are imported finish against the version they started with.
+ * Each version of the timetable is numbered, and the number changes whenever a service
+ * is added. Numbers increase across all timetables, so a timetable built later has a
+ * greater number than the ones published before it.
+ */
+public class Timetable implements java.io.Serializable {
+
+	/** Serial number for serialization. */
+	private static final long serialVersionUID = 201708301027L;
+
+	/** The last version number given to a timetable. */
+	private static final AtomicInteger VERSIONS = new AtomicInteger();
+
+	/** The services indexed by unique identifier. */
+	private Map<Integer, Service> _servicesMap = new TreeMap<Integer, Service>();
+
+	/** The stations of the timetable. */
+	private StationRegistry _stations = new StationRegistry();
+
+	/** The services departing from and arriving at each station. */
+	private StationServiceIndex _stationServices = new StationServiceIndex();
+
+	/** The number of train stops of the timetable. */
+	private int _numberOfTrainStops;
+
+	/** The train stops that can follow each train stop, kept up to date as train stops are added. */
+	private TransferIndex _transfers = new TransferIndex();
+
+	/** The connections of the services, sorted by departure time (rebuilt when services change). */
+	private transient volatile ConnectionTable _connections;
+
+	/** The version of the timetable. */
+	private int _version = VERSIONS.incrementAndGet();
+
+	/**
+	 * Constructor.
+	 */
+	Timetable() {
+	}
+
+	/**
+	 * Returns a copy of this timetable, to add services to while this one is searched.
+	 * The services and stations are shared, and the indexes are copied.
+	 *
+	 * @return a copy of the timetable, with the same version.
+	 */
+	Timetable copy() {
+		Timetable copy = new Timetable();
+		copy._servicesMap.putAll(_servicesMap);
+		copy._stations = _stations.copy();
+		copy._stationServices = _stationServices.copy();
+		copy._numberOfTrainStops = _numberOfTrainStops;
+		copy._transfers = _transfers.copy();
+		copy._connections = _connections;
+		copy._version = _version;
+		return copy;
+	}
+
+	/**
+	 * Returns the version of the timetable, which changes whenever a service is added, and
+	 * is greater than the version of the timetables built before.
+	 *
+	 * @return the version of the timetable.
+	 */
+	int getVersion() {
+		return _version;
+	}
+
+	/**
+	 * Add station, if it does not exist yet.
+	 *
+	 * @param s the name of the station to add.
+	 * @return the station with the given name.
+	 */
+	Station addStation(String s) {
+		return _stations.register(s);
+	}
+
+	/**
+	 * Checks if a station exists.
+	 *
+	 * @param s the station to check.
+	 * @return true if the station exists.
+	 */
+	boolean checkStation(String s) {
+		return _stations.contains(s);
+	}
+
+	/**
+	 * Returns the identifier of a station.
+	 *
+	 * @param s the name of the station.
+	 * @return the identifier of the station, or -1 if it does not exist.
+	 */
+	int getStationId(String s) {
+		return _stations.getId(s);
+	}
+
+	/**
+	 * Returns the stations of the timetable.
+	 *
+	 * @return the station registry of the timetable.
+	 */
+	StationRegistry getStations() {
+		return _stations;
+	}
+
+	/**
+	 * Add Service.
+	 *
+	 * @param id the service's id.
+	 * @param service the service to add.
+	 */
+	void addService(int id, Service service) {
+		_version = VERSIONS.incrementAndGet();
+
+		Service replaced = _servicesMap.put(id, service);
+		if (replaced != null) {
+			_stationServices.remove(replaced);
+		}
+		_stationServices.add(service);
+		_connections = null;
+	}
+
+	/**
+	 * Get a service given its identifier.
+	 *
+	 * @param id the service's identifier.
+	 * @return the service with the given identifier.
+	 */
+	Service getService(int id) throws NoSuchServiceIdException {
+		Service service = _servicesMap.get(id);
+		if (service == null) throw new NoSuchServiceIdException(id);
+		return service;
+	}
+
+	/**
+	 * Returns the collection of services of this timetable.
+	 *
+	 * @return the collection of services of this timetable ordered by id.
+	 */
+	Collection<Service> getServices() {
+		Collection<Service> services = _servicesMap.values();
+		return Collections.unmodifiableCollection(services);
+	}
+
+	/**
+	 * Returns every service of the timetable: the services whose train stops are indexed,
+	 * in train stop id order (including services replaced on import, whose train stops
+	 * are still indexed), followed by the services without stops.
+	 *
+	 * @return the services of the timetable.
+	 */
+	ArrayList<Service> getTimetableServices() {
+		ArrayList<Service> services = new ArrayList<Service>();
+		TransferIndex transfers = getTransfers();
+
+		int id = 0;
+		while (id < _numberOfTrainStops) {
+			Service service = transfers.getTrainStop(id).getService();
+			services.add(service);
+			id = service.getFirstTrainStopId() + service.getTimetable().getNumberOfStops();
+		}
+		for (Service service : getServices()) {
+			if (service.getTimetable().getNumberOfStops() == 0) services.add(service);
+		}
+
+		return services;
+	}
+
+	/**
+	 * Looks up services with a given start station name.
+	 *
+	 * @param search the station name to look for.
+	 * @return the services that have the search start station, sorted by start time.
+	 */
+	Collection<Service> searchServiceWithStartStation( String search ) throws NoSuchStationNameException {
+
+		if (checkStation(search)) {
+			return _stationServices.getDeparting( getStationId(search) );
+		} else {
+			throw new NoSuchStationNameException(search);
+		}
+
+	}
+
+	/**
+	 * Looks up services with a given end station name.
+	 *
+	 * @param search the station name to look for.
+	 * @return the services that have the search end station, sorted by end time.
+	 */
+	Collection<Service> searchServiceWithEndStation( String search ) throws NoSuchStationNameException {
+
+		if (checkStation(search)) {
+			return _stationServices.getArriving( getStationId(search) );
+		} else {
+			throw new NoSuchStationNameException(search);
+		}
+
+	}
+
+	/**
+	 * Restores the TrainStops of a service read from a snapshot. The train stops that
+	 * follow them must be restored with the transfers, once all train stops are restored.
+	 *
+	 * @param service the service whose trainstops are restored.
+	 */
+	void restoreTrainStops(Service service) {
+		_numberOfTrainStops += service.getTimetable().getNumberOfStops();
+		_transfers.restore(service);
+	}
+
+	/**
+	 * Adds the TrainStops of an imported service, without the train stops that follow
+	 * them: they are linked by linkTrainStops, once all services are imported.
+	 *
+	 * @param service the service whose trainstops are added.
+	 */
+	void addTrainStops(Service service) {
+		_numberOfTrainStops += service.getTimetable().getNumberOfStops();
+		_transfers.register(service);
+	}
+
+	/**
+	 * Links the TrainStops added by addTrainStops with the train stops that follow them.
+	 */
+	void linkTrainStops() {
+		_transfers.compile();
+	}
+
+	/**
+	 * Restores the train stops of each station sorted by time, read from a snapshot, which
+	 * link each train stop with the ones that follow it.
+	 *
+	 * @param stationOffsets the first train stop of each station, followed by the number of train stops.
+	 * @param stops the ids of the train stops, grouped by station and sorted by time and id.
+	 * @throws IllegalArgumentException if the train stops are not the ones restored,
+	 *         grouped by station and sorted by time.
+	 */
+	void restoreTransfers(int[] stationOffsets, int[] stops) {
+		_transfers.restore(stationOffsets, stops);
+	}
+
+	/**
+	 * Returns a train stop given its identifier.
+	 *
+	 * @param id the identifier of the train stop.
+	 * @param arrival whether it is the arrival at the stop or the departure from it.
+	 * @return the train stop, or null if it does not exist.
+	 */
+	TrainStop getTrainStop(int id, boolean arrival) {
+		if (id < 0 || id >= _numberOfTrainStops) return null;
+
+		TrainStop trainstop = _transfers.getTrainStop(id);
+		return new TrainStop(trainstop.getService(), trainstop.getPosition(), arrival);
+	}
+
+	/**
+	 * Returns the first time at or after a given time when a train stops at a station.
+	 *
+	 * @param stationId the identifier of the station.
+	 * @param time the time, in seconds of the day.
+	 * @return the time of the train stop, in seconds of the day, or -1 if no train stops
+	 *         at the station at or after the time.
+	 */
+	int getNextStopTime(int stationId, int time) {
+		TransferIndex transfers = getTransfers();
+
+		int position = transfers.findStationStop(stationId, time);
+		if (position == transfers.getLastStationStop(stationId)) return -1;
+		return transfers.getTime(transfers.getStop(position));
+	}
+
+	/**
+	 * Get the number of TrainStops.
+	 *
+	 * @return the number of trainstops of the timetable.
+	 */
+	int getNumberOfTrainStops() {
+		return _numberOfTrainStops;
+	}
+
+	/**
+	 * Get the index of the train stops that can follow each train stop.
+	 *
+	 * @return the transfer index of the timetable.
+	 */
+	TransferIndex getTransfers() {
+		_transfers.compile();
+		return _transfers;
+	}
+
+	/**
+	 * Builds the search indexes of the timetable, once the services are imported.
+	 */
+	void index() {
+		getConnections();
+		getTransfers();
+	}
+
+	/**
+	 * Returns the connections of the services, sorted by departure time. The table is
+	 * built once after the services are imported (threads searching a mapped timetable
+	 * at once may each build an equal one).
+	 *
+	 * @return the connection table.
+	 */
+	ConnectionTable getConnections() {
+		ConnectionTable connections = _connections;
+		if (connections == null) {
+			connections = new ConnectionTable(getServices(), _stations);
+			_connections = connections;
+		}
+		return connections;
+	}
+
+}
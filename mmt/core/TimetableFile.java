@@ -0,0 +1,376 @@
+package mmt.core;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Compiled timetable file. It holds the services of a train company in the layout they are
+ * searched in, so it is mapped into memory and read in place instead of being parsed:
+ * opening it only creates the stations and services, and the pages of the file are shared
+ * by every process that maps it.
+ *
+ * <pre>
+ * header     magic, version, number of stations, services and train stops, number of
+ *            stations with train stops, length of the station names, (unused), length
+ *            and modification time of the import file it was compiled from
+ * stations   the length and UTF-8 bytes of each name, padded to 8 bytes
+ * services   for each service: id, first train stop id, number of stops, whether it is
+ *            current (not replaced on import), cost
+ * columns    station id, time and cumulative minutes of every train stop, padded to 8
+ *            bytes, then the cumulative cost of every train stop
+ * transfers  the first train stop of each station (followed by the number of train
+ *            stops) and the ids of the train stops grouped by station and sorted by
+ *            time, as in the transfer index
+ * </pre>
+ *
+ * The train stops of a service are consecutive in the columns, starting at its first
+ * train stop id. All values are big endian, as written by DataOutputStream.
+ *
+ * A file is only opened in place of the import file it was compiled from while that file
+ * has the length and modification time recorded in the header.
+ */
+final class TimetableFile {
+
+	/** The first bytes of a compiled timetable file ("MMTT"). */
+	static final int MAGIC = 0x4D4D5454;
+
+	/** The version of the file format. */
+	static final int VERSION = 3;
+
+	/** Bytes of the header. */
+	private static final int HEADER = 48;
+
+	/** Bytes of each service record. */
+	private static final int SERVICE = 24;
+
+	/** No instances. */
+	private TimetableFile() {}
+
+	/**
+	 * Writes a timetable. It is written to a temporary file, forced to disk and renamed
+	 * over the file, so a process mapping the file never sees it partly written.
+	 *
+	 * @param timetable the timetable.
+	 * @param fileName the name of the file.
+	 * @param importFile the name of the import file the timetable was imported from.
+	 * @throws IOException if errors occur in file writing, or the import file cannot be read.
+	 */
+	static void write(Timetable timetable, String fileName, String importFile) throws IOException {
+		Path source = Paths.get(importFile);
+		long importLength = Files.size(source);
+		long importModified = Files.getLastModifiedTime(source).toMillis();
+
+		Path path = Paths.get(fileName).toAbsolutePath();
+		Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+
+		try {
+			FileOutputStream file = new FileOutputStream(temporary.toFile());
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file));
+			try {
+				write(timetable, out, importLength, importModified);
+				out.flush();
+				file.getChannel().force(true);
+			} finally {
+				out.close();
+			}
+
+			Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+		} catch (IOException e) {
+			Files.deleteIfExists(temporary);
+			throw e;
+		}
+	}
+
+	/**
+	 * Writes a timetable to a stream.
+	 */
+	private static void write(Timetable timetable, DataOutputStream out, long importLength, long importModified)
+			throws IOException {
+		ArrayList<Service> services = timetable.getTimetableServices();
+		TransferIndex transfers = timetable.getTransfers();
+		int trainStops = timetable.getNumberOfTrainStops();
+
+		/* Station names */
+		ArrayList<byte[]> names = new ArrayList<byte[]>();
+		int namesLength = 0;
+		for (Station station : timetable.getStations().getStations()) {
+			byte[] name = station.getName().getBytes(StandardCharsets.UTF_8);
+			names.add(name);
+			namesLength += 4 + name.length;
+		}
+
+		/* Header */
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(names.size());
+		out.writeInt(services.size());
+		out.writeInt(trainStops);
+		out.writeInt(transfers.getNumberOfStations());
+		out.writeInt(namesLength);
+		out.writeInt(0);
+		out.writeLong(importLength);
+		out.writeLong(importModified);
+
+		/* Stations */
+		for (byte[] name : names) {
+			out.writeInt(name.length);
+			out.write(name);
+		}
+		pad(out, namesLength);
+
+		/* Services */
+		Set<Service> current = new HashSet<Service>(timetable.getServices());
+		for (Service service : services) {
+			out.writeInt(service.getId());
+			out.writeInt(service.getFirstTrainStopId());
+			out.writeInt(service.getTimetable().getNumberOfStops());
+			out.writeInt(current.contains(service) ? 1 : 0);
+			out.writeDouble(service.getCost());
+		}
+
+		/* Columns */
+		for (Service service : services) {
+			ServiceTimetable columns = service.getTimetable();
+			for (int position = 0; position < columns.getNumberOfStops(); position++) {
+				out.writeInt(columns.getStationId(position));
+			}
+		}
+		for (Service service : services) {
+			ServiceTimetable columns = service.getTimetable();
+			for (int position = 0; position < columns.getNumberOfStops(); position++) {
+				out.writeInt(columns.getTime(position));
+			}
+		}
+		for (Service service : services) {
+			ServiceTimetable columns = service.getTimetable();
+			for (int position = 0; position < columns.getNumberOfStops(); position++) {
+				out.writeInt(columns.getCumulativeMinutes(position));
+			}
+		}
+		pad(out, 3 * 4 * trainStops);
+		for (Service service : services) {
+			ServiceTimetable columns = service.getTimetable();
+			for (int position = 0; position < columns.getNumberOfStops(); position++) {
+				out.writeDouble(columns.getCumulativeCost(position));
+			}
+		}
+
+		/* Transfers */
+		out.writeInt(0);
+		for (int station = 0; station < transfers.getNumberOfStations(); station++) {
+			out.writeInt(transfers.getLastStationStop(station));
+		}
+		for (int i = 0; i < trainStops; i++) {
+			out.writeInt(transfers.getStop(i));
+		}
+	}
+
+	/**
+	 * Writes zeros after a block, so the next one starts at a multiple of 8 bytes.
+	 */
+	private static void pad(DataOutputStream out, int length) throws IOException {
+		for (int i = length; i % 8 != 0; i++) {
+			out.writeByte(0);
+		}
+	}
+
+	/**
+	 * Maps a compiled timetable file into a new train company.
+	 *
+	 * @param fileName the name of the file.
+	 * @param importFile the name of the import file the timetable must have been compiled from.
+	 * @return a train company with the timetable and no passengers.
+	 * @throws IOException if errors occur in file reading, the file is not a valid
+	 *         timetable, or the import file changed since it was compiled.
+	 */
+	static TrainCompany read(String fileName, String importFile) throws IOException {
+		Path source = Paths.get(importFile);
+		long importLength = Files.size(source);
+		long importModified = Files.getLastModifiedTime(source).toMillis();
+
+		MappedByteBuffer file;
+		try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+
+			/* The header is checked before the file is mapped */
+			ByteBuffer header = ByteBuffer.allocate(HEADER);
+			while (header.hasRemaining() && channel.read(header) >= 0) {}
+			if (header.hasRemaining()) {
+				throw new IOException("Truncated timetable file " + fileName);
+			}
+			header.flip();
+			checkHeader(header, channel.size());
+
+			if (header.getLong(32) != importLength || header.getLong(40) != importModified) {
+				throw new IOException("The timetable " + fileName + " was not compiled from " + importFile + " as it is");
+			}
+
+			file = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+
+		try {
+			return read(file);
+		} catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+			throw new IOException("Truncated timetable file " + fileName, e);
+		}
+	}
+
+	/**
+	 * Checks the header of a file: its magic number and version, its counts, and that the
+	 * file has the length they give.
+	 *
+	 * @param header the header of the file.
+	 * @param size the length of the file.
+	 * @throws IOException if the file is not a valid timetable.
+	 */
+	private static void checkHeader(ByteBuffer header, long size) throws IOException {
+		if (header.getInt() != MAGIC) {
+			throw new IOException("Not a compiled timetable");
+		}
+		int version = header.getInt();
+		if (version != VERSION) {
+			throw new IOException("Unsupported timetable version " + version);
+		}
+		int numberOfStations = header.getInt();
+		int numberOfServices = header.getInt();
+		int trainStops = header.getInt();
+		int numberOfStationsWithStops = header.getInt();
+		int namesLength = header.getInt();
+
+		if (numberOfStations < 0 || numberOfServices < 0 || trainStops < 0 || namesLength < 4L * numberOfStations
+				|| numberOfStationsWithStops < 0 || numberOfStationsWithStops > numberOfStations) {
+			throw new IOException("Invalid timetable header");
+		}
+
+		long columns = ((HEADER + (long) namesLength + 7) & ~7L) + (long) SERVICE * numberOfServices;
+		long transfers = ((columns + 3 * 4L * trainStops + 7) & ~7L) + 8L * trainStops;
+		long length = transfers + 4L * (numberOfStationsWithStops + 1) + 4L * trainStops;
+		if (size != length || length > Integer.MAX_VALUE) {
+			throw new IOException("Invalid timetable file length " + size + " (expected " + length + ")");
+		}
+	}
+
+	/**
+	 * Reads the timetable in a mapped file, whose header was checked.
+	 */
+	private static TrainCompany read(ByteBuffer file) throws IOException {
+
+		/* Header */
+		file.position(8);
+		int numberOfStations = file.getInt();
+		int numberOfServices = file.getInt();
+		int trainStops = file.getInt();
+		int numberOfStationsWithStops = file.getInt();
+		int namesLength = file.getInt();
+
+		Timetable timetable = new Timetable();
+
+		/* Stations */
+		file.position(HEADER);
+		for (int i = 0; i < numberOfStations; i++) {
+			byte[] name = new byte[file.getInt()];
+			file.get(name);
+			timetable.addStation(new String(name, StandardCharsets.UTF_8));
+		}
+
+		/* Columns and transfers, read in place */
+		int services = align(HEADER + namesLength);
+		int columns = services + SERVICE * numberOfServices;
+		int costs = align(columns + 3 * 4 * trainStops);
+		int transfers = costs + 8 * trainStops;
+
+		IntBuffer stations = slice(file, columns, 4 * trainStops).asIntBuffer();
+		IntBuffer times = slice(file, columns + 4 * trainStops, 4 * trainStops).asIntBuffer();
+		IntBuffer cumulativeMinutes = slice(file, columns + 8 * trainStops, 4 * trainStops).asIntBuffer();
+		DoubleBuffer cumulativeCosts = slice(file, costs, 8 * trainStops).asDoubleBuffer();
+
+		for (int i = 0; i < trainStops; i++) {
+			if (stations.get(i) < 0 || stations.get(i) >= numberOfStations) {
+				throw new IOException("Invalid station id " + stations.get(i));
+			}
+		}
+
+		/* Services */
+		ArrayList<Service> current = new ArrayList<Service>();
+		file.position(services);
+		for (int i = 0; i < numberOfServices; i++) {
+			int id = file.getInt();
+			int first = file.getInt();
+			int stops = file.getInt();
+			boolean isCurrent = file.getInt() != 0;
+			double cost = file.getDouble();
+
+			if (stops > 0 && first != timetable.getNumberOfTrainStops()) {
+				throw new IOException("Invalid train stop id " + first);
+			}
+
+			ServiceTimetable serviceTimetable = new MappedServiceTimetable(timetable.getStations(), stations, times, cumulativeCosts,
+					cumulativeMinutes, first, stops);
+			Service service = new Service(id, cost, serviceTimetable, first);
+			timetable.restoreTrainStops(service);
+
+			if (isCurrent) current.add(service);
+		}
+
+		if (timetable.getNumberOfTrainStops() != trainStops) {
+			throw new IOException("Invalid number of train stops " + trainStops);
+		}
+
+		/* Transfers, copied in bulk from the mapped file */
+		int[] stationOffsets = new int[numberOfStationsWithStops + 1];
+		int[] stops = new int[trainStops];
+		slice(file, transfers, 4 * stationOffsets.length).asIntBuffer().get(stationOffsets);
+		slice(file, transfers + 4 * stationOffsets.length, 4 * stops.length).asIntBuffer().get(stops);
+
+		try {
+			timetable.restoreTransfers(stationOffsets, stops);
+		} catch (IllegalArgumentException e) {
+			throw new IOException("Invalid transfers", e);
+		}
+
+		for (Service service : current) {
+			timetable.addService(service.getId(), service);
+		}
+
+		TrainCompany company = new TrainCompany();
+		company.setTimetable(timetable);
+		return company;
+	}
+
+	/**
+	 * Returns the position of the next block, at a multiple of 8 bytes.
+	 */
+	private static int align(int position) {
+		return (position + 7) & ~7;
+	}
+
+	/**
+	 * Returns a block of the file.
+	 */
+	private static ByteBuffer slice(ByteBuffer file, int position, int length) {
+		ByteBuffer block = file.duplicate();
+		block.position(position);
+		block.limit(position + length);
+		return block.slice();
+	}
+
+}
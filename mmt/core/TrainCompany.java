@@ -1,13 +1,25 @@
 package mmt.core;
 
-import java.util.Comparator;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamException;
+import java.io.ObjectStreamField;
+
+import java.nio.ByteBuffer;
 
 import java.util.ArrayList;
-import java.util.Map;
-import java.util.TreeMap;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import java.time.LocalTime;
 import java.time.LocalDate;
@@ -25,47 +37,158 @@ import mmt.core.exceptions.BadDateSpecificationException;
 /**
  * A train company has schedules (services) for its trains and passengers that
  * acquire itineraries based on those schedules.
+ *
+ * A train company is serialized as its binary snapshot (see CompanySnapshot), in a
+ * single array, so Java serialization does not walk its passengers, itineraries and
+ * train stops object by object.
+ *
+ * Passengers may be added, read and changed by several threads, and itineraries searched
+ * by several threads (see TicketOffice): passenger ids are taken from an atomic counter,
+ * the passengers are kept in shards of consecutive ids (see PassengerStore), and the
+ * timetable is an immutable Timetable, replaced as a whole when services are imported.
  */
 public class TrainCompany implements java.io.Serializable {
 
 	/** Serial number for serialization. */
 	private static final long serialVersionUID = 201708301010L;
 
-	/** The passengers held by the train company indexed by unique identifier. */
-	private Map<Integer, Passenger> _passengersMap = new TreeMap<Integer, Passenger>();
-
-	/** The services held by the train company indexed by unique identifier. */
-	private Map<Integer, Service> _servicesMap = new TreeMap<Integer, Service>();
+	/**
+	 * The serialized fields of a train company, as files were saved before snapshots: the
+	 * next passenger id is an int. A train company is now written as its snapshot, so these
+	 * fields are only read (see readObject).
+	 */
+	private static final ObjectStreamField[] serialPersistentFields = {
+		new ObjectStreamField("_passengersMap", Map.class),
+		new ObjectStreamField("_servicesMap", Map.class),
+		new ObjectStreamField("_stationsList", ArrayList.class),
+		new ObjectStreamField("_trainStops", ArrayList.class),
+		new ObjectStreamField("_categories", CategoryManager.class),
+		new ObjectStreamField("_nextPassengerId", Integer.TYPE),
+	};
 
-	/** The station names held by the train company. */
-	private ArrayList<String> _stationsList = new ArrayList<String>();
+	/** The passengers held by the train company indexed by unique identifier. */
+	private PassengerStore _passengers = new PassengerStore();
 
-	/** The train stops held by the train company. */
-	private ArrayList<TrainStop> _trainStops = new ArrayList<TrainStop>();
+	/** The timetable of the train company, replaced as a whole when services are imported. */
+	private AtomicReference<Timetable> _timetable = new AtomicReference<Timetable>(new Timetable());
 
 	/* The different categories for a passenger. */
 	private CategoryManager _categories = new CategoryManager();
 
 	/* Give each passenger a unique identifier. */
-	private int _nextPassengerId;
+	private AtomicInteger _nextPassengerId = new AtomicInteger();
+
+	/** The sequence number of the last change recorded in the journal. */
+	private long _journalSequence;
+
+	/** The pages of passengers changed since they were last frozen to be saved (see CompanySnapshot). */
+	private BitSet _changedPages = new BitSet();
 
 	/**
 	 * Constructor.
 	 */
 	TrainCompany() {
-		_nextPassengerId = 0;
 	}
 
 	/**
-	 * Add passenger.
+	 * Replaces this train company, when serialized, by its snapshot.
+	 *
+	 * @return the serialized form of this train company.
+	 * @throws ObjectStreamException never.
+	 */
+	private Object writeReplace() throws ObjectStreamException {
+		return new SerializedForm(this);
+	}
+
+	/**
+	 * Reads a train company saved before snapshots, in its serialized fields.
+	 */
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		ObjectInputStream.GetField fields = in.readFields();
+
+		_passengers = new PassengerStore();
+		_timetable = new AtomicReference<Timetable>(new Timetable());
+		_changedPages = new BitSet();
+
+		CategoryManager categories = (CategoryManager) fields.get("_categories", null);
+		_categories = categories != null ? categories : new CategoryManager();
+		_nextPassengerId = new AtomicInteger(fields.get("_nextPassengerId", 0));
+
+		/* Files saved before snapshots are read through a LegacyInputStream */
+		if (!(in instanceof LegacyInputStream)) {
+			throw new InvalidObjectException("A train company saved before snapshots must be read with a LegacyInputStream");
+		}
+		LegacyInputStream.restore(this, fields.get("_passengersMap", null), fields.get("_servicesMap", null),
+				fields.get("_stationsList", null), fields.get("_trainStops", null));
+	}
+
+	/**
+	 * Add passenger, under its identifier. Identifiers up to it are no longer assigned.
 	 * 
 	 * @param p the passenger to add.
 	 */
 	void addPassenger(Passenger p) {
-		int id = _nextPassengerId++;
-		_passengersMap.put(id, p);
+		int id = p.getId();
 		p.setCategory ( updateCategory( p.getLastValues() ) );
+		_passengers.put(id, p);
+		_nextPassengerId.accumulateAndGet(id + 1, Math::max);
+		passengerChanged(id);
+
+	}
+
+	/**
+	 * Creates a passenger with the next identifier, to be added with addPassenger. The
+	 * identifier is taken atomically, so each thread creating a passenger gets its own.
+	 *
+	 * @param name the passenger's name.
+	 * @return the new passenger.
+	 * @throws InvalidPassengerNameException if the name is null or an empty String (no
+	 *         identifier is taken).
+	 */
+	Passenger createPassenger(String name) throws InvalidPassengerNameException {
+		if (!Passenger.validName(name)) throw new InvalidPassengerNameException(name);
+		return new Passenger(_nextPassengerId.getAndIncrement(), name, this);
+	}
+
+	/**
+	 * Records that a passenger or its itineraries changed, so its page is written on the
+	 * next save.
+	 *
+	 * @param id the passenger's identifier.
+	 */
+	synchronized void passengerChanged(int id) {
+		_changedPages.set(CompanySnapshot.getPage(id));
+	}
+
+	/**
+	 * Returns the pages of passengers changed since the last call, and starts recording
+	 * the changes again.
+	 *
+	 * @return the numbers of the changed pages.
+	 */
+	synchronized BitSet takeChangedPages() {
+		BitSet changed = _changedPages;
+		_changedPages = new BitSet();
+		return changed;
+	}
 
+	/**
+	 * Records again pages taken by takeChangedPages, which could not be saved.
+	 *
+	 * @param pages the numbers of the pages.
+	 */
+	synchronized void restoreChangedPages(BitSet pages) {
+		_changedPages.or(pages);
+	}
+
+	/**
+	 * Restores a passenger read from a snapshot, keeping its category and spending history.
+	 *
+	 * @param key the key under which the passenger was added.
+	 * @param p the passenger to restore.
+	 */
+	void restorePassenger(int key, Passenger p) {
+		_passengers.put(key, p);
 	}
 
 	/**
@@ -77,11 +200,9 @@ public class TrainCompany implements java.io.Serializable {
 	 *         exist.
 	 */
 	Passenger getPassenger(int id) throws NoSuchPassengerIdException {
-		if (passengerExists(id)) {
-			return _passengersMap.get(id);
-		} else {
-			throw new NoSuchPassengerIdException (id);
-		}
+		Passenger p = _passengers.get(id);
+		if (p == null) throw new NoSuchPassengerIdException (id);
+		return p;
 	}
 
 	/**
@@ -90,7 +211,34 @@ public class TrainCompany implements java.io.Serializable {
 	 * @return the next passenger's assigned id.
 	 */
 	int getNextPassengerId() {
-		return _nextPassengerId;
+		return _nextPassengerId.get();
+	}
+
+	/**
+	 * Sets the next passenger's assigned id.
+	 *
+	 * @param id the next passenger's assigned id.
+	 */
+	void setNextPassengerId(int id) {
+		_nextPassengerId.set(id);
+	}
+
+	/**
+	 * Returns the sequence number of the last change recorded in the journal.
+	 *
+	 * @return the sequence number of the last journal record.
+	 */
+	long getJournalSequence() {
+		return _journalSequence;
+	}
+
+	/**
+	 * Sets the sequence number of the last change recorded in the journal.
+	 *
+	 * @param sequence the sequence number of the last journal record.
+	 */
+	void setJournalSequence(long sequence) {
+		_journalSequence = sequence;
 	}
 
 	/**
@@ -101,7 +249,7 @@ public class TrainCompany implements java.io.Serializable {
 	 * @return true, if the passenger exists; false, otherwise.
 	 */
 	boolean passengerExists(int id) {
-		return _passengersMap.get(id) != null;
+		return _passengers.get(id) != null;
 	}
 
 	/**
@@ -113,6 +261,7 @@ public class TrainCompany implements java.io.Serializable {
 	void changePassengerName(int id, String newname) throws NoSuchPassengerIdException, InvalidPassengerNameException {
 		if (passengerExists(id)) {
 			getPassenger(id).setName(newname);
+			passengerChanged(id);
 		} else {
 			throw new NoSuchPassengerIdException(id);
 		}
@@ -127,6 +276,15 @@ public class TrainCompany implements java.io.Serializable {
 		return _categories.getCategory(value);
 	}
 
+	/**
+	 * Returns the categories a passenger may belong to.
+	 *
+	 * @return the category manager of the company.
+	 */
+	CategoryManager getCategories() {
+		return _categories;
+	}
+
 	/**
 	 * Returns a passenger's String description, given it's id.
 	 *
@@ -147,69 +305,69 @@ public class TrainCompany implements java.io.Serializable {
 	 * @return the collection of passengers of this trainCompany ordered by id.
 	 */
 	Collection<Passenger> getPassengers() {
-		Collection<Passenger> passengers = _passengersMap.values();
+		Collection<Passenger> passengers = _passengers.map((Passenger p) -> p);
 		return Collections.unmodifiableCollection(passengers);
 	}
 
 	/**
-	 * Resets the passengers list of this train company.
+	 * Returns the descriptions of the passengers of this TrainCompany, built in parallel.
+	 *
+	 * @return the descriptions of the passengers, ordered by id.
 	 */
-	void deletePassengers() {
-		_passengersMap.clear();
-		_nextPassengerId = 0;
+	List<String> getPassengerDescriptions() {
+		return _passengers.map((Passenger p) -> p.toString());
 	}
 
 	/**
-	 * Add station.
-	 * 
-	 * @param s the station to add.
+	 * Returns the passengers whose identifiers are in a range.
+	 *
+	 * @param first the first identifier of the range.
+	 * @param end the identifier after the last one of the range.
+	 * @return the passengers in the range, ordered by id.
 	 */
-	void addStation(String s) {
-		_stationsList.add(s);
+	Collection<Passenger> getPassengers(int first, int end) {
+		return Collections.unmodifiableCollection(_passengers.get(first, end));
 	}
 
 	/**
-	 * Checks if a station exists.
-	 * 
-	 * @param s the station to check.
-	 * @return true if the station exists.
+	 * Resets the passengers list of this train company.
 	 */
-	boolean checkStation(String s) {
-		return _stationsList.contains(s);
+	void deletePassengers() {
+		_passengers.clear();
+		_nextPassengerId.set(0);
+		takeChangedPages();
 	}
 
 	/**
-	 * Add Service.
-	 * 
-	 * @param id the service's id.
-	 * @param service the service to add.
+	 * Returns the timetable published last. A search reads the timetable once, and
+	 * searches it as it was when it started.
+	 *
+	 * @return the timetable of the company.
 	 */
-	void addService(int id, Service service) {
-		_servicesMap.put(id, service);
+	Timetable getTimetable() {
+		return _timetable.get();
 	}
 
 	/**
-	 * Get a service given its identifier.
-	 * 
-	 * @param id the service's identifier.
-	 * @return the service with the given identifier.
+	 * Publishes a new timetable. It is not changed once published: its transfers are
+	 * compiled first, and the connection table is built when it is first searched, if it
+	 * was not built yet (see Timetable#index).
+	 *
+	 * @param timetable the new timetable.
 	 */
-	Service getService(int id) throws NoSuchServiceIdException {
-		if (serviceExists(id)) {
-			return _servicesMap.get(id);
-		} else {
-			throw new NoSuchServiceIdException(id);
-		}
+	void setTimetable(Timetable timetable) {
+		timetable.getTransfers();
+		_timetable.set(timetable);
 	}
 
 	/**
-	 * Check whether a service exists (given an identifier).
+	 * Get a service given its identifier.
 	 * 
-	 * @param id the identifier to check.
-	 * @return true, if the service exists; false, otherwise.
+	 * @param id the service's identifier.
+	 * @return the service with the given identifier.
 	 */
-	boolean serviceExists(int id) {
-		return ( _servicesMap.get(id) != null );
+	Service getService(int id) throws NoSuchServiceIdException {
+		return getTimetable().getService(id);
 	}
 
 	/**
@@ -218,119 +376,56 @@ public class TrainCompany implements java.io.Serializable {
 	 * @return the collection of services of this trainCompany ordered by id.
 	 */
 	Collection<Service> getServices() {
-		Collection<Service> services = _servicesMap.values();
-		return Collections.unmodifiableCollection(services);
+		return getTimetable().getServices();
 	}
 
 	/**
 	 * Looks up services with a given start station name.
 	 *
 	 * @param search the station name to look for.
-	 * @return the services that have the search start station.
+	 * @return the services that have the search start station, sorted by start time.
 	 */
 	Collection<Service> searchServiceWithStartStation( String search ) throws NoSuchStationNameException {
-
-		if (checkStation(search)) {
-			
-			/* Converts the collection to an array to be sorted */
-			ArrayList<Service> services = new ArrayList<Service>( getServices() );
-
-			/* Service collection to be returned */
-			Collection<Service> result = new ArrayList<Service>();
-
-			/* Compares two services based on their start time */
-			Comparator<Service> comparator = new Comparator<Service>() {
-				@Override
-				public int compare(Service left, Service right) {
-					return left.getStartTime().toSecondOfDay() - right.getStartTime().toSecondOfDay();
-				}
-			};
-
-			/* Sorts the collection */
-			Collections.sort(services, comparator);
-
-			/* Search for the service */
-			services.forEach ((Service s)-> {
-				if ( search.equals( s.getStartStation().getName() ) ) {
-					result.add(s);
-				}
-			});
-
-			return Collections.unmodifiableCollection(result);
-
-		} else {
-			throw new NoSuchStationNameException(search);
-		}
-
+		return getTimetable().searchServiceWithStartStation(search);
 	}
 
 	/**
 	 * Looks up services with a given end station name.
 	 *
 	 * @param search the station name to look for.
-	 * @return the services that have the search end station.
+	 * @return the services that have the search end station, sorted by end time.
 	 */
 	Collection<Service> searchServiceWithEndStation( String search ) throws NoSuchStationNameException {
-
-		if (checkStation(search)) {
-
-			/* Converts the collection to an array to be sorted */
-			ArrayList<Service> services = new ArrayList<Service>( getServices() );
-
-			/* Service collection to be returned */
-			Collection<Service> result = new ArrayList<Service>();
-
-			/* Compares two services based on their start time */
-			Comparator<Service> comparator = new Comparator<Service>() {
-				@Override
-				public int compare(Service left, Service right) {
-					return left.getEndTime().toSecondOfDay() - right.getEndTime().toSecondOfDay();
-				}
-			};
-
-			/* Sorts the collection */
-			Collections.sort(services, comparator);
-
-			/* Search for the service */
-			services.forEach((Service s)-> {
-				if ( search.equals( s.getEndStation().getName() ) ) {
-					result.add(s);
-				}
-			});
-
-			return Collections.unmodifiableCollection(result);
-
-		} else {
-			throw new NoSuchStationNameException(search);
-		}
-	
-	}
-
-	/**
-	 * Add TrainStop.
-	 * 
-	 * @param trainstop the trainstop to add.
-	 */
-	void addTrainStop(TrainStop trainstop) {
-		_trainStops.add(trainstop);
+		return getTimetable().searchServiceWithEndStation(search);
 	}
 
 	/**
-	 * Get TrainStops.
-	 * 
-	 * @return the trainstops of the company.
+	 * Looks up all possible itineraries for a given passenger.
+	 *
+	 * @param passengerId id of the passenger that is looking for the itinerary.
+	 * @param departureStation the station where the passenger wants to start his trip.
+	 * @param arrivalStation the date when the trip should start.
+	 * @param departureDate the time when the trip should start.
+	 * @return the possible itineraries for the passenger to buy.
+	 * @throws NoSuchStationNameException if station name does not exist.
+	 * @throws NoSuchPassengerIdException if the passenger id does not exist.
+	 * @throws BadTimeSpecificationException if the time isn't well formatted.
+	 * @throws BadDateSpecificationException if the date isn't well formatted.
 	 */
-	ArrayList<TrainStop> getTrainStops() {
-		return _trainStops;
+	ArrayList<Itinerary> searchItineraries(int passengerId, String departureStation, String arrivalStation, String departureDate,
+			String departureTime) 
+			throws NoSuchPassengerIdException, BadTimeSpecificationException, NoSuchStationNameException, BadDateSpecificationException {
+		return searchItineraries(passengerId, departureStation, arrivalStation, departureDate, departureTime, new DepthFirstRouter());
 	}
 
 	/**
-	 * Looks up all possible itineraries for a given passenger.
+	 * Looks up the itineraries for a given passenger using a given router.
 	 *
 	 * @param passengerId id of the passenger that is looking for the itinerary.
 	 * @param departureStation the station where the passenger wants to start his trip.
 	 * @param arrivalStation the date when the trip should start.
 	 * @param departureDate the time when the trip should start.
+	 * @param router the router which searches the itineraries.
 	 * @return the possible itineraries for the passenger to buy.
 	 * @throws NoSuchStationNameException if station name does not exist.
 	 * @throws NoSuchPassengerIdException if the passenger id does not exist.
@@ -338,22 +433,27 @@ public class TrainCompany implements java.io.Serializable {
 	 * @throws BadDateSpecificationException if the date isn't well formatted.
 	 */
 	ArrayList<Itinerary> searchItineraries(int passengerId, String departureStation, String arrivalStation, String departureDate,
-			String departureTime) 
+			String departureTime, Router router)
 			throws NoSuchPassengerIdException, BadTimeSpecificationException, NoSuchStationNameException, BadDateSpecificationException {
 
 		if ( !passengerExists( passengerId ) ) {
 			throw new NoSuchPassengerIdException( passengerId );
 		}
 
-		if ( !checkStation( departureStation ) ) {
+		/* The whole search reads the timetable published when it starts */
+		Timetable timetable = getTimetable();
+
+		if ( !timetable.checkStation( departureStation ) ) {
 			throw new NoSuchStationNameException( departureStation );
 
-		} else if ( !checkStation( arrivalStation ) ) {
+		} else if ( !timetable.checkStation( arrivalStation ) ) {
 			throw new NoSuchStationNameException( arrivalStation );
 		}
 
-		ItineraryBuilder builder = new ItineraryBuilder(departureStation, arrivalStation, departureDate, departureTime, this);
-		return builder.getItineraryOptions();
+		LocalTime time = ItineraryBuilder.parseDepartureTime(departureTime);
+		Date date = ItineraryBuilder.parseDepartureDate(departureDate);
+
+		return router.search(timetable, departureStation, arrivalStation, date, time);
 	}
 
 	/**
@@ -365,6 +465,7 @@ public class TrainCompany implements java.io.Serializable {
 	 */
 	public void commitItinerary(int passengerId, Itinerary itinerary) throws NoSuchPassengerIdException {
 		getPassenger(passengerId).addItinerary(itinerary);
+		passengerChanged(passengerId);
 	}
 	
 	/**
@@ -400,12 +501,15 @@ public class TrainCompany implements java.io.Serializable {
 	 */
 	String showAllItineraries() {
 		StringBuffer buf = new StringBuffer();
-		_passengersMap.forEach((Integer i, Passenger p) -> {
-			if ( p.getNumberOfItineraries() > 0 ) {
-				buf.append("== Passageiro " + i +": " + p.getName() + " ==\n");
-				buf.append(p.showItineraries());
+
+		/* The passengers are shown in parallel, and appended in id order */
+		_passengers.map((Passenger p) -> {
+			synchronized (p) {
+				if ( p.getNumberOfItineraries() == 0 ) return null;
+				return "== Passageiro " + p.getId() +": " + p.getName() + " ==\n" + p.showItineraries();
 			}
-		});
+		}).forEach(buf::append);
+
 		return buf.toString();
 	}
 
@@ -417,4 +521,50 @@ public class TrainCompany implements java.io.Serializable {
 			itineraryOptions.get(i).updateId(i + 1);
 		}
 	}
-}
\ No newline at end of file
+
+	/**
+	 * The serialized form of a train company: its binary snapshot.
+	 */
+	private static class SerializedForm implements java.io.Serializable {
+
+		/** Serial number for serialization. */
+		private static final long serialVersionUID = 201708301026L;
+
+		/** The snapshot of the train company. */
+		private final byte[] _snapshot;
+
+		/**
+		 * Constructor.
+		 *
+		 * @param company the train company to write.
+		 */
+		SerializedForm(TrainCompany company) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			try {
+				DataOutputStream out = new DataOutputStream(bytes);
+				CompanySnapshot.write(company, out);
+				out.close();
+			} catch (IOException e) {
+				/* Writing to memory does not fail */
+				throw new IllegalStateException(e);
+			}
+			_snapshot = bytes.toByteArray();
+		}
+
+		/**
+		 * Reads the train company from the snapshot.
+		 *
+		 * @return the train company.
+		 * @throws ObjectStreamException if the snapshot is not valid.
+		 */
+		private Object readResolve() throws ObjectStreamException {
+			try {
+				return CompanySnapshot.read(ByteBuffer.wrap(_snapshot));
+			} catch (IOException e) {
+				InvalidObjectException invalid = new InvalidObjectException(e.getMessage());
+				invalid.initCause(e);
+				throw invalid;
+			}
+		}
+	}
+}
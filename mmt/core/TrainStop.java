@@ -1,75 +1,111 @@
 package mmt.core;
 
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+
+import java.time.Duration;
 import java.time.LocalTime;
 
 /**
  * Class describing a TrainStop, which is an event when a train stops at a certain time at a certain station.
+ *
+ * A TrainStop is a lightweight view over a stop position of its service's timetable: the departure
+ * from a stop (which starts a segment) or the arrival at it (which ends a segment).
  */
 public class TrainStop implements java.io.Serializable, Visitable {
 
 	/** Serial number for serialization. */
 	private static final long serialVersionUID = 201708301014L;
 
-	/** Stores the station of this TrainStop event. */
-	private Station _station;
-
-	/** Stores the instant of this TrainStop event. */
-	private LocalTime _time;
-
-	/** Stores the segment to which it belongs. */
-	private Segment _segment;
-
 	/** Stores the service to which it belongs. */
 	private Service _service;
 
-	/** Stores the next train stop of the service to which it belongs. */
-	private TrainStop _next;
+	/** Stores the position of the stop in the service's timetable. */
+	private int _position;
 
-	private boolean _hasNext;
+	/** Whether this is the arrival at the stop (end of a segment) or the departure from it. */
+	private boolean _arrival;
 
 	/**
 	 * Constructor.
 	 *
-	 * @param station the station where the train stops.
-	 * @param time the time when the train arrives.
-	 * @param segment the segment to which the trainstop belongs.
+	 * @param service the service to which the trainstop belongs.
+	 * @param position the position of the stop in the service.
+	 * @param arrival true if the train stop ends a segment, false if it starts one.
 	 */
-	TrainStop(Station station, LocalTime time, Segment segment, Service service) {
-		_station = station;
-		_time = time;
-		_segment = segment;
+	TrainStop(Service service, int position, boolean arrival) {
 		_service = service;
-		_hasNext = false;
+		_position = position;
+		_arrival = arrival;
+	}
+
+	/**
+	 * Reads this TrainStop. It is written as its service and position, so it is read
+	 * without following other train stops; the position must be one of the service.
+	 */
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+
+		if (_service == null || _service.getTimetable() == null || _position < 0
+				|| _position >= _service.getTimetable().getNumberOfStops()) {
+			throw new InvalidObjectException("Invalid train stop position " + _position);
+		}
 	}
 
-	/** 
+	/**
+	 * Returns the identifier of this TrainStop. The arrival at a station and the
+	 * departure from it in the same service share the same identifier.
+	 *
+	 * @return the identifier of this TrainStop.
+	 */
+	int getId() {
+		return _service.getFirstTrainStopId() + _position;
+	}
+
+	/**
+	 * Returns the position of this TrainStop in its service.
+	 *
+	 * @return the position of this TrainStop.
+	 */
+	int getPosition() {
+		return _position;
+	}
+
+	/**
 	 * Returns the Station of this TrainStop.
 	 *
 	 * @return the station of this TrainStop.
 	 */
 	Station getStation() {
-		return _station;
+		return _service.getTimetable().getStation(_position);
 	}
 
-	/** 
+	/**
 	 * Returns the time of this TrainStop.
 	 *
 	 * @return the time of this TrainStop event.
 	 */
 	LocalTime getTime() {
-		return _time;
+		return LocalTime.ofSecondOfDay(_service.getTimetable().getTime(_position));
 	}
 
-	/** 
+	/**
 	 * Returns the segment of this TrainStop.
 	 *
-	 * @return the segment of this TrainStop event. 
+	 * @return the segment of this TrainStop event.
 	 */
 	Segment getSegment() {
-		return _segment;
+		ServiceTimetable timetable = _service.getTimetable();
+		int start = _arrival ? _position - 1 : _position;
+
+		double cost = timetable.getCumulativeCost(start + 1) - timetable.getCumulativeCost(start);
+		Duration duration = Duration.ofSeconds(timetable.getTime(start + 1) - timetable.getTime(start));
+
+		return new Segment(cost, duration);
 	}
 
-	/** 
+	/**
 	 * Returns the Service of this TrainStop.
 	 *
 	 * @return the service of this TrainStop.
@@ -78,34 +114,33 @@ public class TrainStop implements java.io.Serializable, Visitable {
 		return _service;
 	}
 
-	/** 
+	/**
 	 * Returns the next trainstop.
 	 *
 	 * @return the next trainstop.
 	 */
 	TrainStop nextTrainStop() {
-		return _next;
+		return hasNextTrainStop() ? new TrainStop(_service, _position + 1, true) : null;
 	}
 
-	/** 
-	 * Adds the next trainstop.
+	/**
+	 * Returns whether or not this trainStop has a next trainstop.
 	 *
-	 * @param the next trainstop.
+	 * @return true if this trainstop has a next trainStop, false otherwise.
 	 */
-	void addNextTrainStop( TrainStop trainstop ) {
-		_hasNext = true;
-		_next = trainstop;
+	boolean hasNextTrainStop() {
+		return !_arrival;
 	}
 
 	/**
-	 * Returns whether or not this trainStop has a next trainstop.
+	 * Returns whether this TrainStop is the arrival at its stop.
 	 *
-	 * @return true if this trainstop has a next trainStop, false otherwise.
+	 * @return true if this trainstop ends a segment, false if it starts one.
 	 */
-	boolean hasNextTrainStop() {
-		return _hasNext;
+	boolean isArrival() {
+		return _arrival;
 	}
 
 	public void accept(Visitor visitor) {}
 
-}
\ No newline at end of file
+}
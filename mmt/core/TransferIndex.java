@@ -0,0 +1,425 @@
+package mmt.core;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Index of the train stops that can follow each train stop of the company: the next stop
+ * of the same service, or a stop of another service at the same station at the same time
+ * or later. It only depends on the timetable, so it is kept up to date as train stops are
+ * imported instead of being rebuilt for every itinerary search.
+ *
+ * Train stops are identified by their dense id. The train stops of each station are kept
+ * sorted by time, and compiled one station after the other into a single array (the
+ * train stops of station s are _stops[_stationOffsets[s]] to
+ * _stops[_stationOffsets[s + 1] - 1]). The train stops that can follow a train stop are
+ * then a slice of that array: from the first train stop at its station at the same time
+ * or later (_firstSuccessors) to the last train stop at its station. So the index grows
+ * with the number of train stops, not with the number of transfers.
+ *
+ * The successors of a train stop only depend on the train stops at its station, so
+ * train stops are registered in any number and compiled all at once.
+ *
+ * An index restored from a snapshot or a compiled timetable file only keeps the service
+ * of each train stop and the compiled array: the train stops of each station are listed
+ * again from them if more train stops are registered.
+ */
+public class TransferIndex implements java.io.Serializable {
+
+	/** Serial number for serialization. */
+	private static final long serialVersionUID = 201708301021L;
+
+	/** The number of train stops in the index. */
+	private int _size;
+
+	/** The service of each train stop, indexed by id. */
+	private Service[] _services = new Service[16];
+
+	/** The ids of the train stops of each station (indexed by station id), in the order they were added (null if restored). */
+	private int[][] _stationStops = new int[16][];
+
+	/** The number of train stops of each station. */
+	private int[] _stationSizes = new int[16];
+
+	/** The number of stations with train stops. */
+	private int _numberOfStations;
+
+	/** First train stop of each station in the compiled array (null when outdated). */
+	private int[] _stationOffsets;
+
+	/** The ids of the train stops, grouped by station and sorted by time and id. */
+	private int[] _stops;
+
+	/** Position in the compiled array of the first train stop that may follow each train stop. */
+	private int[] _firstSuccessors;
+
+	/**
+	 * Returns a copy of the index, to add train stops to. The lists of the stations are
+	 * copied, and the compiled arrays, which are never changed in place, are shared.
+	 *
+	 * @return the copy.
+	 */
+	TransferIndex copy() {
+		TransferIndex copy = new TransferIndex();
+		copy._size = _size;
+		copy._services = _services.clone();
+		if (_stationStops != null) {
+			copy._stationStops = new int[_stationStops.length][];
+			for (int i = 0; i < _stationStops.length; i++) {
+				if (_stationStops[i] != null) copy._stationStops[i] = _stationStops[i].clone();
+			}
+			copy._stationSizes = _stationSizes.clone();
+		} else {
+			copy._stationStops = null;
+		}
+		copy._numberOfStations = _numberOfStations;
+		copy._stationOffsets = _stationOffsets;
+		copy._stops = _stops;
+		copy._firstSuccessors = _firstSuccessors;
+		return copy;
+	}
+
+	/**
+	 * Adds the train stops of a service to the index. They are linked with the other
+	 * train stops when the index is compiled. Train stops must be added in id order.
+	 *
+	 * @param service the service whose train stops are added.
+	 */
+	void register(Service service) {
+		int first = service.getFirstTrainStopId();
+
+		for (int id = first; id < first + service.getTimetable().getNumberOfStops(); id++) {
+			register(service, id);
+		}
+	}
+
+	/**
+	 * Adds a train stop to the index.
+	 *
+	 * @param service the service of the train stop.
+	 * @param id the id of the train stop.
+	 */
+	private void register(Service service, int id) {
+		if (_stationStops == null) listStationStops();
+
+		_stationOffsets = null;
+
+		if (id >= _services.length) {
+			_services = Arrays.copyOf(_services, 2 * _services.length);
+		}
+		_services[id] = service;
+		_size = id + 1;
+
+		addStationStop(id);
+	}
+
+	/**
+	 * Adds the train stops of a service restored with the compiled train stops of the
+	 * stations (see restore), without listing them by station. Train stops must be added
+	 * in id order.
+	 *
+	 * @param service the service whose train stops are added.
+	 */
+	void restore(Service service) {
+		int first = service.getFirstTrainStopId();
+		int end = first + service.getTimetable().getNumberOfStops();
+		if (end == first) return;
+
+		_stationOffsets = null;
+		_stationStops = null;
+
+		if (end > _services.length) {
+			_services = Arrays.copyOf(_services, Math.max(2 * _services.length, end));
+		}
+		Arrays.fill(_services, first, end, service);
+		_size = end;
+	}
+
+	/**
+	 * Lists the train stops of each station, after train stops were restored without them.
+	 */
+	private void listStationStops() {
+		_stationStops = new int[16][];
+		_stationSizes = new int[16];
+		_numberOfStations = 0;
+
+		for (int id = 0; id < _size; id++) {
+			addStationStop(id);
+		}
+	}
+
+	/**
+	 * Adds a train stop to the list of its station.
+	 *
+	 * @param id the id of the train stop.
+	 */
+	private void addStationStop(int id) {
+		int station = stationId(id);
+
+		if (station >= _stationSizes.length) {
+			int length = Math.max(2 * _stationSizes.length, station + 1);
+			_stationStops = Arrays.copyOf(_stationStops, length);
+			_stationSizes = Arrays.copyOf(_stationSizes, length);
+		}
+		if (_stationStops[station] == null) {
+			_stationStops[station] = new int[2];
+		}
+		_stationStops[station] = append(_stationStops[station], _stationSizes[station]++, id);
+		_numberOfStations = Math.max(_numberOfStations, station + 1);
+	}
+
+	/**
+	 * Stores a value at a given position of a growable array.
+	 *
+	 * @param array the array.
+	 * @param position the position.
+	 * @param value the value.
+	 * @return the array, or a larger copy of it.
+	 */
+	private int[] append(int[] array, int position, int value) {
+		if (position == array.length) {
+			array = Arrays.copyOf(array, 2 * position);
+		}
+		array[position] = value;
+		return array;
+	}
+
+	/**
+	 * Compiles the train stops of the stations, if they changed: the train stops of each
+	 * station are sorted by time, in parallel.
+	 */
+	void compile() {
+		if (_stationOffsets != null) return;
+		if (_stationStops == null) listStationStops();
+
+		int[] stationOffsets = new int[_numberOfStations + 1];
+		for (int station = 0; station < _numberOfStations; station++) {
+			stationOffsets[station + 1] = stationOffsets[station] + _stationSizes[station];
+		}
+
+		int[] stops = new int[_size];
+		IntStream.range(0, _numberOfStations).parallel().forEach(station -> {
+			long[] keys = new long[_stationSizes[station]];
+			for (int k = 0; k < keys.length; k++) {
+				int id = _stationStops[station][k];
+				keys[k] = ((long) time(id) << 32) | id;
+			}
+			Arrays.sort(keys);
+
+			for (int k = 0; k < keys.length; k++) {
+				stops[stationOffsets[station] + k] = (int) keys[k];
+			}
+		});
+
+		restore(stationOffsets, stops);
+	}
+
+	/**
+	 * Restores the compiled train stops of the stations, such as the ones saved in a
+	 * snapshot, and finds the successors of each train stop in them.
+	 *
+	 * @param stationOffsets the first train stop of each station, followed by the number of train stops.
+	 * @param stops the ids of the train stops, grouped by station and sorted by time and id.
+	 * @throws IllegalArgumentException if the train stops are not the ones registered,
+	 *         grouped by station and sorted by time.
+	 */
+	void restore(int[] stationOffsets, int[] stops) {
+		if (stops.length != _size || stationOffsets.length == 0 || stationOffsets[0] != 0
+				|| stationOffsets[stationOffsets.length - 1] != _size) {
+			throw new IllegalArgumentException("Invalid number of train stops " + stops.length);
+		}
+
+		int[] firstSuccessors = new int[_size];
+		Arrays.fill(firstSuccessors, -1);
+
+		for (int station = 0; station + 1 < stationOffsets.length; station++) {
+			int start = stationOffsets[station];
+			int end = stationOffsets[station + 1];
+			if (end < start) throw new IllegalArgumentException("Invalid station offset " + end);
+
+			int sameTime = start;
+			for (int position = start; position < end; position++) {
+				int id = stops[position];
+				if (id < 0 || id >= _size || firstSuccessors[id] >= 0 || stationId(id) != station) {
+					throw new IllegalArgumentException("Invalid train stop id " + id);
+				}
+				if (position > start) {
+					int previous = time(stops[position - 1]);
+					if (previous > time(id)) throw new IllegalArgumentException("Unsorted train stop " + id);
+					if (previous < time(id)) sameTime = position;
+				}
+
+				/* From the start station of its service the passenger can only stay on board */
+				firstSuccessors[id] = isServiceStart(id) ? position : sameTime;
+			}
+		}
+
+		_stops = stops;
+		_firstSuccessors = firstSuccessors;
+		_stationOffsets = stationOffsets;
+	}
+
+	/** @return the position of a train stop in its service. */
+	private int position(int id) {
+		return id - _services[id].getFirstTrainStopId();
+	}
+
+	/** @return the station id of a train stop. */
+	private int stationId(int id) {
+		return _services[id].getTimetable().getStationId(position(id));
+	}
+
+	/** @return the time of a train stop, in seconds of the day. */
+	private int time(int id) {
+		return _services[id].getTimetable().getTime(position(id));
+	}
+
+	/** @return true if a train stop has a next train stop in its service. */
+	private boolean hasNext(int id) {
+		return position(id) < _services[id].getNumberOfSegments();
+	}
+
+	/**
+	 * Checks whether a train stop is at the station where its service starts. From there
+	 * the passenger can only continue in the same service.
+	 *
+	 * @param id the id of the train stop to check.
+	 * @return true if the train stop is at the start station of its service.
+	 */
+	private boolean isServiceStart(int id) {
+		return stationId(id) == _services[id].getTimetable().getStationId(0);
+	}
+
+	/**
+	 * Returns the number of train stops in the index.
+	 *
+	 * @return the number of train stops.
+	 */
+	int size() {
+		return _size;
+	}
+
+	/**
+	 * Returns the train stop with a given id.
+	 *
+	 * @param id the id of the train stop.
+	 * @return the train stop.
+	 */
+	TrainStop getTrainStop(int id) {
+		return _services[id].getTrainStop(position(id));
+	}
+
+	/**
+	 * Returns the time of the train stop with a given id.
+	 *
+	 * @param id the id of the train stop.
+	 * @return the time of the train stop, in seconds of the day.
+	 */
+	int getTime(int id) {
+		return _services[id].getTimetable().getTime(position(id));
+	}
+
+	/**
+	 * Returns the position in the compiled array of the first train stop that may follow
+	 * a train stop.
+	 *
+	 * @param id the id of the train stop.
+	 * @return the position of its first successor.
+	 */
+	int getFirstSuccessor(int id) {
+		return _firstSuccessors[id];
+	}
+
+	/**
+	 * Returns the position in the compiled array following the last train stop that may
+	 * follow a train stop.
+	 *
+	 * @param id the id of the train stop.
+	 * @return the position following its last successor.
+	 */
+	int getLastSuccessor(int id) {
+		if (isServiceStart(id)) return _firstSuccessors[id] + 1;
+		return _stationOffsets[stationId(id) + 1];
+	}
+
+	/**
+	 * Returns the train stop that follows a train stop through a position of the compiled
+	 * array: the train stop at that position, or, if it is of the same service, the next
+	 * stop of the service, as the passenger stays on board.
+	 *
+	 * @param id the id of the train stop.
+	 * @param position a position from its first successor to its last.
+	 * @return the id of the train stop that follows, or -1 if none does.
+	 */
+	int getSuccessor(int id, int position) {
+		int other = _stops[position];
+		if (_services[id].getId() != _services[other].getId()) return other;
+		return hasNext(other) ? other + 1 : -1;
+	}
+
+	/**
+	 * Returns the number of stations in the compiled array.
+	 *
+	 * @return the number of stations with train stops.
+	 */
+	int getNumberOfStations() {
+		return _stationOffsets.length - 1;
+	}
+
+	/**
+	 * Returns the position of the first train stop of a station in the compiled array.
+	 *
+	 * @param station the id of the station.
+	 * @return the position of its first train stop.
+	 */
+	int getFirstStationStop(int station) {
+		if (station < 0 || station >= getNumberOfStations()) return 0;
+		return _stationOffsets[station];
+	}
+
+	/**
+	 * Returns the position in the compiled array following the last train stop of a station.
+	 *
+	 * @param station the id of the station.
+	 * @return the position following its last train stop.
+	 */
+	int getLastStationStop(int station) {
+		if (station < 0 || station >= getNumberOfStations()) return 0;
+		return _stationOffsets[station + 1];
+	}
+
+	/**
+	 * Returns the position in the compiled array of the first train stop of a station at
+	 * a given time or later.
+	 *
+	 * @param station the id of the station.
+	 * @param time the time, in seconds of the day.
+	 * @return the position of the train stop, or the one following the last train stop
+	 *         of the station if none is at that time or later.
+	 */
+	int findStationStop(int station, int time) {
+		int low = getFirstStationStop(station);
+		int high = getLastStationStop(station);
+
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (getTime(_stops[middle]) < time) {
+				low = middle + 1;
+			} else {
+				high = middle;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Returns the id of the train stop at a given position of the compiled array.
+	 *
+	 * @param position the position in the compiled array.
+	 * @return the id of the train stop.
+	 */
+	int getStop(int position) {
+		return _stops[position];
+	}
+
+}
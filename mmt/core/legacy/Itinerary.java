@@ -0,0 +1,52 @@
+package mmt.core.legacy;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * An itinerary as saved by the first versions of the application, before snapshots, with
+ * the train stops where its passenger enters and leaves each service. It is only read
+ * from such files (see mmt.core.LegacyInputStream).
+ */
+public class Itinerary implements java.io.Serializable {
+
+	/** Serial number for serialization. */
+	private static final long serialVersionUID = 201708301020L;
+
+	/** The itinerary's id. */
+	private int _id;
+
+	/** The id of the itinerary's passenger. */
+	private int _passengerId;
+
+	/** The itinerary's departure date. */
+	private Date _departureDate;
+
+	/** The train stops that compose the itinerary. */
+	private ArrayList<TrainStop> _trainStops;
+
+	/** No instances but the ones read. */
+	private Itinerary() {}
+
+	/** @return the itinerary's id. */
+	public int getId() {
+		return _id;
+	}
+
+	/** @return the id of the itinerary's passenger. */
+	public int getPassengerId() {
+		return _passengerId;
+	}
+
+	/** @return the itinerary's departure date. */
+	public Date getDepartureDate() {
+		return _departureDate;
+	}
+
+	/** @return the train stops that compose the itinerary. */
+	public List<TrainStop> getTrainStops() {
+		return _trainStops;
+	}
+
+}
@@ -0,0 +1,76 @@
+package mmt.core.legacy;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+
+import mmt.core.Category;
+
+/**
+ * A passenger as saved by the first versions of the application, before snapshots. It
+ * is read instead of the current passengers, whose itineraries hold the current train
+ * stops, and converted once the whole file is read (see mmt.core.LegacyInputStream).
+ */
+public class Passenger implements java.io.Serializable {
+
+	/** Serial number for serialization. */
+	private static final long serialVersionUID = 201708301011L;
+
+	/** The passenger's unique identifier. */
+	private int _id;
+
+	/** The passenger's name. */
+	private String _name;
+
+	/** The passenger's category. */
+	private Category _category;
+
+	/** The passenger's itineraries, by the number they were bought in. */
+	private TreeMap<Integer, Itinerary> _itineraries;
+
+	/** The values of the passenger's last 10 itineraries, oldest first. */
+	private ArrayBlockingQueue<Double> _lastValues;
+
+	/** The passenger's total spent money. */
+	private Double _totalSpent;
+
+	/** No instances but the ones read. */
+	private Passenger() {}
+
+	/** @return the passenger's unique identifier. */
+	public int getId() {
+		return _id;
+	}
+
+	/** @return the passenger's name. */
+	public String getName() {
+		return _name;
+	}
+
+	/** @return the passenger's category. */
+	public Category getCategory() {
+		return _category;
+	}
+
+	/** @return the passenger's itineraries, by the number they were bought in. */
+	public Map<Integer, Itinerary> getItineraries() {
+		return _itineraries;
+	}
+
+	/** @return the values of the passenger's last 10 itineraries, oldest first. */
+	public double[] getLastValues() {
+		ArrayList<Double> values = new ArrayList<Double>(_lastValues);
+		double[] result = new double[values.size()];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = values.get(i);
+		}
+		return result;
+	}
+
+	/** @return the passenger's total spent money. */
+	public double getTotalSpent() {
+		return _totalSpent;
+	}
+
+}
@@ -0,0 +1,51 @@
+package mmt.core.legacy;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A service as saved by the first versions of the application, before snapshots, with a
+ * train stop for the departure and the arrival of each segment. It is only read from
+ * such files (see mmt.core.LegacyInputStream).
+ */
+public class Service implements java.io.Serializable {
+
+	/** Serial number for serialization. */
+	private static final long serialVersionUID = 201708301012L;
+
+	/** The id that identifies the service. */
+	private int _id;
+
+	/** The cost of this service. */
+	private double _cost;
+
+	/** The departure train stops: the one of segment i departs from stop i. */
+	private ArrayList<TrainStop> _startTrainStops;
+
+	/** The arrival train stops: the one of segment i arrives at stop i + 1. */
+	private ArrayList<TrainStop> _endTrainStops;
+
+	/** No instances but the ones read. */
+	private Service() {}
+
+	/** @return the id that identifies the service. */
+	public int getId() {
+		return _id;
+	}
+
+	/** @return the cost of this service. */
+	public double getCost() {
+		return _cost;
+	}
+
+	/** @return the departure train stops, one per segment. */
+	public List<TrainStop> getStartTrainStops() {
+		return _startTrainStops;
+	}
+
+	/** @return the arrival train stops, one per segment. */
+	public List<TrainStop> getEndTrainStops() {
+		return _endTrainStops;
+	}
+
+}
@@ -0,0 +1,54 @@
+package mmt.core.legacy;
+
+import java.time.LocalTime;
+
+import mmt.core.Segment;
+import mmt.core.Station;
+
+/**
+ * A train stop as saved by the first versions of the application, before snapshots: the
+ * departure from a station or the arrival at it, with the segment it starts or ends. It
+ * is only read from such files (see mmt.core.LegacyInputStream), to be converted into
+ * the train stops of the timetable; the fields it no longer needs are skipped.
+ */
+public class TrainStop implements java.io.Serializable {
+
+	/** Serial number for serialization. */
+	private static final long serialVersionUID = 201708301014L;
+
+	/** The station of the train stop. */
+	private Station _station;
+
+	/** The time of the train stop. */
+	private LocalTime _time;
+
+	/** The segment the train stop starts or ends. */
+	private Segment _segment;
+
+	/** The service to which it belongs. */
+	private Service _service;
+
+	/** No instances but the ones read. */
+	private TrainStop() {}
+
+	/** @return the station of the train stop. */
+	public Station getStation() {
+		return _station;
+	}
+
+	/** @return the time of the train stop. */
+	public LocalTime getTime() {
+		return _time;
+	}
+
+	/** @return the segment the train stop starts or ends. */
+	public Segment getSegment() {
+		return _segment;
+	}
+
+	/** @return the service to which it belongs. */
+	public Service getService() {
+		return _service;
+	}
+
+}
@@ -1,10 +1,20 @@
 #!/bin/bash
 
+# A test may set system properties (e.g. router=csa), one per line of its .props file
+properties() {
+    props=()
+    if [ -e $1.props ]; then
+        while read -r p; do [ -n "$p" ] && props+=("-D$p"); done < $1.props
+    fi
+}
+
 for x in tests/*.in; do
+    properties ${x%.in}
+
     if [ -e ${x%.in}.import ]; then
-        java -cp :po-uilib.jar:. -Dimport=${x%.in}.import -Din=$x -Dout=${x%.in}.outhyp mmt.app.App;
+        java -cp :po-uilib.jar:. "${props[@]}" -Dimport=${x%.in}.import -Din=$x -Dout=${x%.in}.outhyp mmt.app.App;
     else
-        java -cp po-uilib.jar:. -Din=$x -Dout=${x%.in}.outhyp mmt.app.App;
+        java -cp po-uilib.jar:. "${props[@]}" -Din=$x -Dout=${x%.in}.outhyp mmt.app.App;
     fi
 
     diff -cB -w ${x%.in}.out ${x%.in}.outhyp > ${x%.in}.diff ;
@@ -16,7 +26,32 @@ for x in tests/*.in; do
     fi
 done
 
-rm -f saved*
+# A batch script writes its output to the script name with .out added
+for x in tests/*.batch; do
+    [ -e $x ] || continue
+    properties ${x%.batch}
+
+    if [ -e ${x%.batch}.import ]; then
+        java -cp :po-uilib.jar:. "${props[@]}" -Dimport=${x%.batch}.import -Dbatch=$x -DbatchThreads=1 mmt.app.App;
+    else
+        java -cp po-uilib.jar:. "${props[@]}" -Dbatch=$x -DbatchThreads=1 mmt.app.App;
+    fi
+
+    if [ $? -ne 0 ]; then
+        echo "FAIL: $x. The script could not be run " ;
+        continue;
+    fi
+
+    diff -cB -w ${x%.batch}.out $x.out > ${x%.batch}.diff ;
+    if [ -s ${x%.batch}.diff ]; then
+        echo "FAIL: $x. See file ${x%.batch}.diff " ;
+    else
+        echo -n "."
+        rm -f ${x%.batch}.diff $x.out ; 
+    fi
+done
+
+rm -f saved* tests/*.log
 
 echo "Done."
 